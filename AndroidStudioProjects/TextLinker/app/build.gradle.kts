@@ -39,6 +39,13 @@ android {
 
     buildFeatures {
         viewBinding = true
+        // BuildConfig.DEBUG gates debug-only instrumentation such as QueryStats
+        buildConfig = true
+    }
+
+    sourceSets {
+        // MigrationTestHelper reads the exported schemas from the test APK's assets
+        getByName("androidTest").assets.srcDir("$projectDir/schemas")
     }
 
     packaging {
@@ -101,9 +108,15 @@ dependencies {
     // HTTP Client
     implementation("com.squareup.okhttp3:okhttp:4.12.0")
     
+    // RecyclerView (ListAdapter, bindingAdapter); pinned above the version Material pulls in
+    implementation("androidx.recyclerview:recyclerview:1.3.2")
+
     // Swipe to refresh
     implementation("androidx.swiperefreshlayout:swiperefreshlayout:1.1.0")
 
+    // WorkManager for idle/charging database maintenance
+    implementation("androidx.work:work-runtime-ktx:2.9.1")
+
     // Socket.IO Client - Removed due to conflict with Android's built-in org.json package
     // implementation("io.socket:socket.io-client:2.1.0")
 
@@ -111,4 +124,5 @@ dependencies {
     testImplementation("junit:junit:4.13.2")
     androidTestImplementation("androidx.test.ext:junit:1.2.1")
     androidTestImplementation("androidx.test.espresso:espresso-core:3.6.1")
+    androidTestImplementation("androidx.room:room-testing:2.6.1")
 }
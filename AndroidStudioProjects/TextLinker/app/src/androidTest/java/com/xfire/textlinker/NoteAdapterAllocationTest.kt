@@ -0,0 +1,83 @@
+package com.xfire.textlinker
+
+import android.os.Debug
+import android.view.ContextThemeWrapper
+import android.widget.FrameLayout
+import android.widget.TextView
+import androidx.recyclerview.widget.ListAdapter
+import androidx.recyclerview.widget.RecyclerView
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Binding rows as a fling does, one holder cycling through many notes, must allocate nothing
+ * beyond what TextView.setText itself allocates for the same titles.
+ */
+@RunWith(AndroidJUnit4::class)
+@Suppress("DEPRECATION") // Debug alloc counting is deprecated but still counts on ART
+class NoteAdapterAllocationTest {
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+    private val context = ContextThemeWrapper(instrumentation.targetContext, R.style.Theme_TextLinker)
+
+    // Allocations made on this thread by action
+    private fun countAllocations(action: () -> Unit): Int {
+        Debug.resetThreadAllocCount()
+        Debug.startAllocCounting()
+        try {
+            action()
+        } finally {
+            Debug.stopAllocCounting()
+        }
+        return Debug.getThreadAllocCount()
+    }
+
+    // Submits on the main thread and waits for the list to be committed
+    private fun <T> submit(adapter: ListAdapter<T, *>, list: List<T>) {
+        val committed = CountDownLatch(1)
+        instrumentation.runOnMainSync { adapter.submitList(list) { committed.countDown() } }
+        assertTrue(committed.await(5, TimeUnit.SECONDS))
+    }
+
+    private fun <VH : RecyclerView.ViewHolder> assertBindAddsNothing(
+        adapter: RecyclerView.Adapter<VH>,
+        titleView: (VH) -> TextView,
+        titles: List<String>
+    ) {
+        var setText = 0
+        var bind = 0
+        instrumentation.runOnMainSync {
+            val holder = adapter.onCreateViewHolder(FrameLayout(context), 0)
+            val view = titleView(holder)
+            val rows = 0 until adapter.itemCount
+            // Warm up: first binds load classes and fill caches
+            repeat(3) { for (i in rows) adapter.onBindViewHolder(holder, i) }
+            setText = countAllocations { for (i in rows) view.text = titles[i] }
+            bind = countAllocations { for (i in rows) adapter.onBindViewHolder(holder, i) }
+        }
+        assumeTrue("Allocation counting unsupported on this runtime", setText > 0 || bind > 0)
+        assertEquals(setText, bind)
+    }
+
+    @Test
+    fun textLinkAdapter_bindAddsNoAllocations() {
+        val notes = (1..200).map { NoteSummary(it, "Note $it", it * 1000L, 10, "body $it") }
+        val adapter = TextLinkAdapter({}, {}, {})
+        submit(adapter, notes.map { TextLinkAdapter.Row(it, null, "") })
+        assertBindAddsNothing(adapter, { it.itemView.findViewById(R.id.efabNote) }, notes.map { it.title })
+    }
+
+    @Test
+    fun textAdapter_bindAddsNoAllocations() {
+        val notes = (1..200).map { NoteEntity(id = it, title = "Note $it") }
+        val adapter = TextAdapter({}, {}, { _, _ -> })
+        submit(adapter, notes)
+        assertBindAddsNothing(adapter, { it.itemView.findViewById(R.id.tvItemTitle) }, notes.map { it.title })
+    }
+}
@@ -0,0 +1,87 @@
+package com.xfire.textlinker
+
+import androidx.recyclerview.widget.ListAdapter
+import androidx.recyclerview.widget.RecyclerView
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Re-emitting a list with one changed note must notify exactly that row, with a payload, so
+ * RecyclerView rebinds one view holder and leaves the rest (and their animations) alone.
+ */
+@RunWith(AndroidJUnit4::class)
+class NoteAdapterDiffTest {
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+
+    private class Recorder : RecyclerView.AdapterDataObserver() {
+        val events = ArrayList<String>()
+        override fun onChanged() { events += "all" }
+        override fun onItemRangeChanged(positionStart: Int, itemCount: Int, payload: Any?) {
+            events += "changed $positionStart+$itemCount $payload"
+        }
+        override fun onItemRangeInserted(positionStart: Int, itemCount: Int) { events += "inserted $positionStart+$itemCount" }
+        override fun onItemRangeRemoved(positionStart: Int, itemCount: Int) { events += "removed $positionStart+$itemCount" }
+        override fun onItemRangeMoved(fromPosition: Int, toPosition: Int, itemCount: Int) { events += "moved $fromPosition>$toPosition" }
+    }
+
+    private fun summaries(changedId: Int = -1) = (500 downTo 1).map {
+        NoteSummary(it, if (it == changedId) "Renamed" else "Note $it", it * 1000L, 10, "body $it")
+    }
+
+    // Submits on the main thread and waits for the background diff to be dispatched
+    private fun <T> submit(adapter: ListAdapter<T, *>, list: List<T>) {
+        val committed = CountDownLatch(1)
+        instrumentation.runOnMainSync { adapter.submitList(list) { committed.countDown() } }
+        assertTrue(committed.await(5, TimeUnit.SECONDS))
+        instrumentation.waitForIdleSync()
+    }
+
+    @Test
+    fun textLinkAdapter_titleChangeTouchesOneRow() {
+        val adapter = TextLinkAdapter({}, {}, {})
+        submit(adapter, summaries().map { TextLinkAdapter.Row(it, null, "") })
+        val recorder = Recorder()
+        instrumentation.runOnMainSync { adapter.registerAdapterDataObserver(recorder) }
+
+        // Equal content in new objects, or changes the row doesn't show: nothing to rebind
+        submit(adapter, summaries().map { TextLinkAdapter.Row(it.copy(timestamp = 0L), null, "") })
+        assertEquals(emptyList<String>(), recorder.events)
+
+        submit(adapter, summaries(changedId = 498).map { TextLinkAdapter.Row(it, null, "") })
+        assertEquals(listOf("changed 2+1 ${TextLinkAdapter.PAYLOAD_TEXT}"), recorder.events)
+        assertEquals(498L, adapter.getItemId(2))
+    }
+
+    @Test
+    fun textLinkAdapter_sameHighlightIsNotRebound() {
+        val adapter = TextLinkAdapter({}, {}, {})
+        val notes = summaries().take(50)
+        submit(adapter, notes.map { TextLinkAdapter.Row(it, "hl ${it.id}", "note") })
+        val recorder = Recorder()
+        instrumentation.runOnMainSync { adapter.registerAdapterDataObserver(recorder) }
+
+        // Highlights rebuilt for the same query compare equal; a new one for row 0 only resets its text
+        submit(adapter, notes.mapIndexed { i, it -> TextLinkAdapter.Row(it, "hl ${it.id}", if (i == 0) "note 5" else "note") })
+        assertEquals(listOf("changed 0+1 ${TextLinkAdapter.PAYLOAD_TEXT}"), recorder.events)
+    }
+
+    @Test
+    fun textAdapter_titleChangeTouchesOneRow() {
+        val adapter = TextAdapter({}, {}, { _, _ -> })
+        fun entities(changedId: Int = -1) = (300 downTo 1).map {
+            NoteEntity(id = it, title = if (it == changedId) "Renamed" else "Note $it", timestamp = 1L, updatedAt = 1L, openedAt = 1L)
+        }
+        submit(adapter, entities())
+        val recorder = Recorder()
+        instrumentation.runOnMainSync { adapter.registerAdapterDataObserver(recorder) }
+
+        submit(adapter, entities(changedId = 100))
+        assertEquals(listOf("changed 200+1 ${TextAdapter.PAYLOAD_TITLE}"), recorder.events)
+    }
+}
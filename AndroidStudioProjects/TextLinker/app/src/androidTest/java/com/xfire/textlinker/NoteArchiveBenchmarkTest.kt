@@ -0,0 +1,77 @@
+package com.xfire.textlinker
+
+import android.content.Context
+import android.util.Log
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+
+/**
+ * Export and import throughput for 10k notes through NoteArchive, between two on-disk databases,
+ * with and without compression.
+ */
+@RunWith(AndroidJUnit4::class)
+class NoteArchiveBenchmarkTest {
+    private lateinit var context: Context
+    private lateinit var source: NoteDatabase
+    private lateinit var target: NoteDatabase
+    private lateinit var archive: File
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getInstrumentation().targetContext
+        context.deleteDatabase(SOURCE_DB)
+        context.deleteDatabase(TARGET_DB)
+        source = Room.databaseBuilder(context, NoteDatabase::class.java, SOURCE_DB).build()
+        target = Room.databaseBuilder(context, NoteDatabase::class.java, TARGET_DB).build()
+        archive = File(context.cacheDir, "benchmark.tlna")
+    }
+
+    @After
+    fun tearDown() {
+        source.close()
+        target.close()
+        context.deleteDatabase(SOURCE_DB)
+        context.deleteDatabase(TARGET_DB)
+        archive.delete()
+    }
+
+    @Test
+    fun exportImport10k() = runBlocking {
+        val dao = source.noteDao()
+        (1..COUNT).chunked(1_000).forEach { chunk ->
+            dao.saveNotes(chunk.map { Note(title = "Note $it", content = "Body of note $it with some words ".repeat(30)) })
+        }
+
+        for (compress in listOf(false, true)) {
+            target.clearAllTables()
+            val exportStart = System.nanoTime()
+            val exported = archive.outputStream().use { NoteArchive.export(dao, it, compress) }
+            val exportMs = (System.nanoTime() - exportStart) / 1_000_000
+
+            val importStart = System.nanoTime()
+            val imported = archive.inputStream().use { NoteArchive.import(target.writeQueue, it) }
+            val importMs = (System.nanoTime() - importStart) / 1_000_000
+
+            assertEquals(COUNT, exported)
+            assertEquals(COUNT, imported)
+            assertEquals(COUNT, target.noteDao().countNotes())
+            Log.d("NoteArchiveBenchmark", "compress=$compress notes=$COUNT archiveBytes=${archive.length()} " +
+                "export=${exportMs}ms (${COUNT * 1_000L / maxOf(exportMs, 1)} notes/s) " +
+                "import=${importMs}ms (${COUNT * 1_000L / maxOf(importMs, 1)} notes/s)")
+        }
+    }
+
+    private companion object {
+        const val COUNT = 10_000
+        const val SOURCE_DB = "archive_benchmark_source.db"
+        const val TARGET_DB = "archive_benchmark_target.db"
+    }
+}
@@ -0,0 +1,99 @@
+package com.xfire.textlinker
+
+import android.content.Context
+import android.util.Log
+import androidx.room.Room
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Commit count and wall time for importing 1k notes one by one versus through NoteDao.saveNotes.
+ * Uses an on-disk database so each commit pays its real journal sync.
+ *
+ * Commits are counted where they happen: an endTransaction() that leaves the connection outside any
+ * transaction. Nested @Transaction calls only end a savepoint-like inner level and aren't counted.
+ */
+@RunWith(AndroidJUnit4::class)
+class NoteBulkWriteBenchmarkTest {
+    private lateinit var context: Context
+    private lateinit var db: NoteDatabase
+    private val commits = AtomicInteger()
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getInstrumentation().targetContext
+        context.deleteDatabase(DB_NAME)
+        db = Room.databaseBuilder(context, NoteDatabase::class.java, DB_NAME)
+            .openHelperFactory(CommitCountingFactory(commits))
+            .build()
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+        context.deleteDatabase(DB_NAME)
+    }
+
+    @Test
+    fun import1k_perNoteVersusBatch() = runBlocking {
+        val dao = db.noteDao()
+        val notes = (1..COUNT).map { Note(title = "Imported $it", content = "Body of imported note $it ".repeat(20)) }
+
+        commits.set(0)
+        val perNoteStart = System.nanoTime()
+        notes.forEach { dao.saveNote(it) }
+        val perNoteMs = (System.nanoTime() - perNoteStart) / 1_000_000
+        val perNoteCommits = commits.get()
+
+        commits.set(0)
+        val batchStart = System.nanoTime()
+        dao.saveNotes(notes)
+        val batchMs = (System.nanoTime() - batchStart) / 1_000_000
+        val batchCommits = commits.get()
+
+        Log.d("NoteBulkWriteBenchmark", "perNote: commits=$perNoteCommits ms=$perNoteMs; batch: commits=$batchCommits ms=$batchMs")
+        assertEquals(COUNT, perNoteCommits)
+        assertEquals(1, batchCommits)
+    }
+
+    private class CommitCountingFactory(private val commits: AtomicInteger) : SupportSQLiteOpenHelper.Factory {
+        private val delegate = FrameworkSQLiteOpenHelperFactory()
+
+        override fun create(configuration: SupportSQLiteOpenHelper.Configuration): SupportSQLiteOpenHelper {
+            val helper = delegate.create(configuration)
+            return object : SupportSQLiteOpenHelper by helper {
+                override val writableDatabase: SupportSQLiteDatabase
+                    get() = CommitCountingDatabase(helper.writableDatabase, commits)
+
+                override val readableDatabase: SupportSQLiteDatabase
+                    get() = CommitCountingDatabase(helper.readableDatabase, commits)
+            }
+        }
+    }
+
+    // No transaction in this test rolls back, so every outermost end is a commit
+    private class CommitCountingDatabase(
+        private val delegate: SupportSQLiteDatabase,
+        private val commits: AtomicInteger
+    ) : SupportSQLiteDatabase by delegate {
+        override fun endTransaction() {
+            delegate.endTransaction()
+            if (!delegate.inTransaction()) commits.incrementAndGet()
+        }
+    }
+
+    private companion object {
+        const val DB_NAME = "bulk_write_benchmark.db"
+        const val COUNT = 1_000
+    }
+}
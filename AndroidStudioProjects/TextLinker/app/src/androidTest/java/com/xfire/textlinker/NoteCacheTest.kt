@@ -0,0 +1,55 @@
+package com.xfire.textlinker
+
+import androidx.room.Room
+import androidx.room.withTransaction
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Writes straight through NoteDao, not just the write queue, must drop the cached copy, and only
+ * once their transaction has ended.
+ */
+@RunWith(AndroidJUnit4::class)
+class NoteCacheTest {
+    private lateinit var db: NoteDatabase
+    private lateinit var dao: NoteDao
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        db = Room.inMemoryDatabaseBuilder(context, NoteDatabase::class.java).build()
+        dao = db.noteDao()
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun directDaoWrites_invalidateCachedNote() = runBlocking {
+        val id = dao.saveNote(Note(title = "draft", content = "first"))
+        assertEquals("first", db.noteCache.get(id)?.content)
+
+        dao.saveNote(Note(id = id, title = "draft", content = "second"))
+        assertNull(db.noteCache.peek(id))
+        assertEquals("second", db.noteCache.get(id)?.content)
+
+        db.withTransaction {
+            dao.saveNote(Note(id = id, title = "draft", content = "third"))
+            // Still open: a reader on another connection could cache "second" now, so it isn't dropped yet
+            assertEquals("second", db.noteCache.peek(id)?.content)
+        }
+        assertNull(db.noteCache.peek(id))
+
+        dao.deleteNoteById(id)
+        assertNull(db.noteCache.get(id))
+    }
+}
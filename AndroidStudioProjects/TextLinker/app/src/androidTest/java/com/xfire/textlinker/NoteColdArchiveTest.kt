@@ -0,0 +1,106 @@
+package com.xfire.textlinker
+
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Archiving a cold received note and restoring it gives back the same note, and it stays
+ * searchable in between. A note whose body is gone or unreadable isn't archived as an empty one,
+ * and doesn't hold back the rest of its batch.
+ */
+@RunWith(AndroidJUnit4::class)
+class NoteColdArchiveTest {
+    private lateinit var db: NoteDatabase
+    private lateinit var dao: NoteDao
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        db = Room.inMemoryDatabaseBuilder(context, NoteDatabase::class.java).build()
+        dao = db.noteDao()
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    // Everything saved so far counts as idle
+    private fun cutoff() = System.currentTimeMillis() + 1_000
+
+    @Test
+    fun archiveAndRestore_roundTrips() = runBlocking {
+        val original = Note(title = "Receipt", content = "order 4471 shipped ".repeat(300), timestamp = 1_700_000_000_000L, fromServer = true)
+        val id = dao.saveNote(original)
+        val local = dao.saveNote(Note(title = "Local", content = "never archived"))
+
+        assertEquals(listOf(id), dao.archiveColdNotes(cutoff(), 100).archived)
+        assertNull(dao.getNoteById(id))
+        assertTrue(dao.isArchived(id))
+        assertEquals(listOf(id), dao.getArchivedSummaries().map { it.id })
+        assertEquals(listOf(local), dao.getNoteSummariesBefore(Int.MAX_VALUE, 50).map { it.id })
+        assertEquals(listOf(id), dao.searchNotes("4471").map { it.id })
+
+        assertTrue(dao.restoreArchivedNote(id))
+        assertFalse(dao.isArchived(id))
+        assertEquals(original.copy(id = id), dao.getNoteById(id))
+        assertEquals(listOf(id), dao.searchNotes("4471").map { it.id })
+
+        // The restored note holds a body reference again, so deleting it unindexes it cleanly
+        dao.deleteNoteById(id)
+        assertTrue(dao.searchNotes("4471").isEmpty())
+    }
+
+    @Test
+    fun missingBody_isNotArchived() = runBlocking {
+        val id = dao.saveNote(Note(title = "Lost", content = "body that goes missing", fromServer = true))
+        db.openHelper.writableDatabase.execSQL("DELETE FROM note_bodies")
+
+        assertTrue(dao.archiveColdNotes(cutoff(), 100).archived.isEmpty())
+        assertFalse(dao.isArchived(id))
+        assertEquals(listOf(id), dao.getNoteSummariesBefore(Int.MAX_VALUE, 50).map { it.id })
+    }
+
+    @Test
+    fun corruptBody_staysBehindWithoutFailingTheBatch() = runBlocking {
+        val corrupt = dao.saveNote(Note(title = "Corrupt", content = "deflated then damaged ".repeat(300), fromServer = true))
+        val fine = dao.saveNote(Note(title = "Fine", content = "readable body", fromServer = true))
+        // Not a Deflate stream, so Inflater throws DataFormatException
+        db.openHelper.writableDatabase.execSQL(
+            "UPDATE note_bodies SET data = X'FFFFFFFF' WHERE codec = ${NoteBodyCodec.CODEC_DEFLATE}"
+        )
+
+        assertEquals(listOf(fine), dao.archiveColdNotes(cutoff(), 100).archived)
+        assertFalse(dao.isArchived(corrupt))
+        assertTrue(dao.isArchived(fine))
+    }
+
+    @Test
+    fun skippedNote_isPassedOverByTheNextBatch() = runBlocking {
+        val corrupt = dao.saveNote(Note(title = "Corrupt", content = "deflated then damaged ".repeat(300), fromServer = true))
+        val fine = dao.saveNote(Note(title = "Fine", content = "readable body", fromServer = true))
+        db.openHelper.writableDatabase.execSQL(
+            "UPDATE note_bodies SET data = X'FFFFFFFF' WHERE codec = ${NoteBodyCodec.CODEC_DEFLATE}"
+        )
+
+        // A full batch that moved nothing still advances past the note it left behind
+        val first = dao.archiveColdNotes(cutoff(), 1)
+        assertTrue(first.archived.isEmpty())
+        assertEquals(1, first.examined)
+        assertEquals(corrupt, first.lastId)
+
+        val second = dao.archiveColdNotes(cutoff(), 1, afterId = first.lastId)
+        assertEquals(listOf(fine), second.archived)
+        assertEquals(0, dao.archiveColdNotes(cutoff(), 1, afterId = second.lastId).examined)
+    }
+}
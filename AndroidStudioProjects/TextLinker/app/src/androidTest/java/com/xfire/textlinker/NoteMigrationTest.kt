@@ -0,0 +1,157 @@
+package com.xfire.textlinker
+
+import androidx.room.testing.MigrationTestHelper
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.xfire.textlinker.util.ContentHash
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Old databases taken through every migration to the current version keep each body intact,
+ * hashed, stored once with the right reference count, and findable through notes_fts.
+ */
+@RunWith(AndroidJUnit4::class)
+class NoteMigrationTest {
+    @get:Rule
+    val helper = MigrationTestHelper(InstrumentationRegistry.getInstrumentation(), NoteDatabase::class.java)
+
+    private val shared = "milk, eggs, bread"
+    private val long = "lorem ipsum dolor sit amet ".repeat(400)
+    private val accented = "crème brûlée for the café"
+
+    // What every install in the field runs: 2 -> 3 adds notes_fts, 3 -> 4 moves content out of notes
+    @Test
+    fun version2_keepsBodiesAndDeduplicatesThem() {
+        helper.createDatabase(TEST_DB, 2).apply {
+            insertOriginalNotes()
+            close()
+        }
+
+        val db = helper.runMigrationsAndValidate(TEST_DB, LATEST, true, *NoteDatabase.MIGRATIONS)
+
+        assertOriginalNotesMigrated(db)
+        db.close()
+    }
+
+    @Test
+    fun version3_keepsBodiesAndDeduplicatesThem() {
+        helper.createDatabase(TEST_DB, 3).apply {
+            insertOriginalNotes()
+            close()
+        }
+
+        val db = helper.runMigrationsAndValidate(TEST_DB, LATEST, false, *NoteDatabase.MIGRATIONS)
+
+        assertOriginalNotesMigrated(db)
+        db.close()
+    }
+
+    @Test
+    fun version5_dropsTombstoneReferences() {
+        helper.createDatabase(TEST_DB, 5).apply {
+            insertV5(1, "Live", shared, deleted = false)
+            insertV5(2, "Deleted copy", shared, deleted = true)
+            insertV5(3, "Deleted", "only the tombstone had this", deleted = true)
+            close()
+        }
+
+        val db = helper.runMigrationsAndValidate(TEST_DB, LATEST, false, *NoteDatabase.MIGRATIONS)
+
+        assertEquals(mapOf(ContentHash.sha256(shared) to 1), refCounts(db))
+        assertEquals(shared, bodyOf(db, 1))
+        db.query("SELECT id FROM notes WHERE deleted = 1 AND content_hash = '' ORDER BY id").use {
+            val ids = ArrayList<Int>()
+            while (it.moveToNext()) ids += it.getInt(0)
+            assertEquals(listOf(2, 3), ids)
+        }
+        db.close()
+    }
+
+    // Versions 2 and 3 store notes the same way, with the body inline
+    private fun SupportSQLiteDatabase.insertOriginalNotes() {
+        insertV2(1, "Shopping", shared, fromServer = false)
+        insertV2(2, "Copy of shopping", shared, fromServer = true)
+        insertV2(3, "Long", long, fromServer = false)
+        insertV2(4, "Dessert", accented, fromServer = true)
+    }
+
+    private fun assertOriginalNotesMigrated(db: SupportSQLiteDatabase) {
+        val expected = mapOf(1 to shared, 2 to shared, 3 to long, 4 to accented)
+        for ((id, content) in expected) {
+            db.query("SELECT content_hash, content_length, preview, sync_state FROM notes WHERE id = ?", arrayOf<Any>(id)).use {
+                assertTrue(it.moveToFirst())
+                assertEquals(ContentHash.sha256(content), it.getString(0))
+                assertEquals(content.length, it.getInt(1))
+                assertEquals(content.take(Note.PREVIEW_LENGTH), it.getString(2))
+                val state = if (id % 2 == 1) NoteEntity.SYNC_STATE_DIRTY else NoteEntity.SYNC_STATE_SYNCED
+                assertEquals(state, it.getInt(3))
+            }
+            assertEquals(content, bodyOf(db, id))
+        }
+
+        // One row per distinct body, counted once per note using it
+        assertEquals(
+            mapOf(ContentHash.sha256(shared) to 2, ContentHash.sha256(long) to 1, ContentHash.sha256(accented) to 1),
+            refCounts(db)
+        )
+        db.query("SELECT codec FROM note_bodies WHERE hash = ?", arrayOf<Any>(ContentHash.sha256(long))).use {
+            assertTrue(it.moveToFirst())
+            assertNotEquals(NoteBodyCodec.CODEC_PLAIN, it.getInt(0))
+        }
+
+        assertEquals(listOf(1, 2), match(db, "milk"))
+        assertEquals(listOf(4), match(db, "brulee"))
+        assertEquals(listOf(3), match(db, "lorem"))
+    }
+
+    private fun SupportSQLiteDatabase.insertV2(id: Int, title: String, content: String, fromServer: Boolean) {
+        execSQL(
+            "INSERT INTO notes (id, title, content, timestamp, from_server) VALUES (?, ?, ?, ?, ?)",
+            arrayOf<Any>(id, title, content, 1_000L * id, if (fromServer) 1 else 0)
+        )
+    }
+
+    private fun SupportSQLiteDatabase.insertV5(id: Int, title: String, content: String, deleted: Boolean) {
+        execSQL(
+            "INSERT INTO notes (id, title, timestamp, from_server, content_length, preview, updated_at, content_hash, sync_state, deleted) VALUES (?, ?, ?, 0, ?, ?, ?, ?, ?, ?)",
+            arrayOf<Any>(id, title, 1_000L * id, content.length, content.take(Note.PREVIEW_LENGTH), 1_000L * id,
+                ContentHash.sha256(content), NoteEntity.SYNC_STATE_DIRTY, if (deleted) 1 else 0)
+        )
+        execSQL("INSERT INTO note_bodies (note_id, content) VALUES (?, ?)", arrayOf<Any>(id, content))
+        if (!deleted) execSQL("INSERT INTO notes_fts (docid, title, content) VALUES (?, ?, ?)", arrayOf<Any>(id, title, content))
+    }
+
+    private fun bodyOf(db: SupportSQLiteDatabase, id: Int): String =
+        db.query(
+            "SELECT note_bodies.codec, note_bodies.data FROM notes JOIN note_bodies ON note_bodies.hash = notes.content_hash WHERE notes.id = ?",
+            arrayOf<Any>(id)
+        ).use {
+            assertTrue(it.moveToFirst())
+            NoteBodyCodec.decode(it.getInt(0), it.getBlob(1))
+        }
+
+    private fun refCounts(db: SupportSQLiteDatabase): Map<String, Int> =
+        db.query("SELECT hash, ref_count FROM note_bodies").use {
+            val counts = HashMap<String, Int>()
+            while (it.moveToNext()) counts[it.getString(0)] = it.getInt(1)
+            counts
+        }
+
+    private fun match(db: SupportSQLiteDatabase, query: String): List<Int> =
+        db.query("SELECT docid FROM notes_fts WHERE notes_fts MATCH ? ORDER BY docid", arrayOf<Any>(query)).use {
+            val ids = ArrayList<Int>()
+            while (it.moveToNext()) ids += it.getInt(0)
+            ids
+        }
+
+    companion object {
+        private const val TEST_DB = "migration-test"
+        private const val LATEST = 12
+    }
+}
@@ -0,0 +1,48 @@
+package com.xfire.textlinker
+
+import androidx.room.Room
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Checks that the sync queries are answered from the notes indices rather than a table scan.
+ */
+@RunWith(AndroidJUnit4::class)
+class NoteQueryPlanTest {
+    private lateinit var db: NoteDatabase
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        db = Room.inMemoryDatabaseBuilder(context, NoteDatabase::class.java).build()
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun dirtySinceLastSync_usesFromServerDeletedUpdatedAtIndex() {
+        val plan = explain(NoteDao.DIRTY_SINCE_LAST_SYNC_QUERY.replace(":token", "?"), "token-x")
+        assertTrue(plan, plan.contains("index_notes_from_server_deleted_updated_at"))
+        assertFalse(plan, plan.contains("SCAN notes") || plan.contains("SCAN TABLE notes"))
+    }
+
+    private fun explain(sql: String, vararg args: Any): String {
+        val cursor = db.openHelper.readableDatabase.query(SimpleSQLiteQuery("EXPLAIN QUERY PLAN $sql", args))
+        return cursor.use {
+            val detail = it.getColumnIndexOrThrow("detail")
+            buildString {
+                while (it.moveToNext()) appendLine(it.getString(detail))
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.xfire.textlinker
+
+import android.util.Log
+import androidx.room.Room
+import androidx.room.withTransaction
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.random.Random
+
+/**
+ * Compares the old in-memory contains() filter with the notes_fts index at 10k and 50k notes.
+ * Timings go to Logcat under "NoteSearchScaleTest".
+ */
+@RunWith(AndroidJUnit4::class)
+class NoteSearchScaleTest {
+    private lateinit var db: NoteDatabase
+    private lateinit var dao: NoteDao
+
+    private val words = listOf(
+        "kotlin", "android", "server", "token", "upload", "linker", "note", "room",
+        "query", "index", "cursor", "window", "payload", "refresh", "camera", "scanner"
+    )
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        db = Room.inMemoryDatabaseBuilder(context, NoteDatabase::class.java).build()
+        dao = db.noteDao()
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun search_10k() = compareAt(10_000)
+
+    @Test
+    fun search_50k() = compareAt(50_000)
+
+    private fun compareAt(count: Int) = runBlocking {
+        val random = Random(count)
+        val notes = (1..count).map { i ->
+            val body = (0 until 60).joinToString(" ") { words[random.nextInt(words.size)] }
+            Note(id = i, title = "Note $i ${words[i % words.size]}", content = "$body zebra$i")
+        }
+        db.withTransaction { notes.forEach { dao.saveNote(it) } }
+
+        // A token that appears in exactly one note, so both approaches must agree on the result
+        val query = "zebra${count / 2}"
+
+        val linearStart = System.nanoTime()
+        val linear = notes.filter {
+            it.title.contains(query, ignoreCase = true) || it.content.contains(query, ignoreCase = true)
+        }
+        val linearMs = (System.nanoTime() - linearStart) / 1_000_000.0
+
+        val ftsStart = System.nanoTime()
+        val hits = NoteSearch.rank(dao.searchNotes(NoteSearch.toMatchQuery(query)!!))
+        val ftsMs = (System.nanoTime() - ftsStart) / 1_000_000.0
+
+        Log.d("NoteSearchScaleTest", "count=$count linearMs=$linearMs ftsMs=$ftsMs hits=${hits.size}")
+        assertEquals(linear.map { it.id }, hits.map { it.id })
+    }
+}
@@ -0,0 +1,99 @@
+package com.xfire.textlinker
+
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * The dirty set for a token covers every local change since its last upload, deletes included,
+ * and nothing that was saved back unchanged. A tombstone is only purged once its delete was uploaded.
+ */
+@RunWith(AndroidJUnit4::class)
+class NoteSyncTest {
+    private lateinit var db: NoteDatabase
+    private lateinit var dao: NoteDao
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        db = Room.inMemoryDatabaseBuilder(context, NoteDatabase::class.java).build()
+        dao = db.noteDao()
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun deletedNote_isDirtyWithoutBody() = runBlocking {
+        val kept = dao.saveNote(Note(title = "kept", content = "still here"))
+        val gone = dao.saveNote(Note(title = "gone", content = "about to be deleted"))
+        val syncedAt = System.currentTimeMillis()
+        dao.markSynced("token-x", listOf(kept, gone), syncedAt)
+        assertTrue(dao.getDirtyNotesForToken("token-x").isEmpty())
+
+        // updated_at must land after the watermark
+        Thread.sleep(5)
+        dao.deleteNoteById(gone)
+
+        val dirty = dao.getDirtyNotesForToken("token-x")
+        assertEquals(listOf(gone), dirty.map { it.note.id })
+        assertTrue(dirty.single().deleted)
+        assertEquals("gone", dirty.single().note.title)
+        assertEquals("", dirty.single().note.content)
+
+        // A new token sees the tombstone alongside the live note, which keeps its body
+        val all = dao.getDirtyNotesForToken("token-y").associateBy { it.note.id }
+        assertFalse(all.getValue(kept).deleted)
+        assertEquals("still here", all.getValue(kept).note.content)
+        assertTrue(all.getValue(gone).deleted)
+
+        dao.markSynced("token-x", listOf(gone), System.currentTimeMillis())
+        assertTrue(dao.getDirtyNotesForToken("token-x").isEmpty())
+    }
+
+    @Test
+    fun unchangedSave_writesNothing() = runBlocking {
+        val note = Note(title = "plan", content = "buy milk")
+        val id = dao.saveNote(note)
+        dao.markSynced("token-x", listOf(id), System.currentTimeMillis())
+        Thread.sleep(5)
+
+        // An editor closed without changes still stamps a new timestamp
+        dao.saveNote(note.copy(id = id, timestamp = System.currentTimeMillis()))
+        assertTrue(dao.getDirtyNotesForToken("token-x").isEmpty())
+
+        // A rename keeps the body but is written and reindexed under the new title
+        dao.saveNote(note.copy(id = id, title = "shopping"))
+        assertEquals(listOf(id), dao.getDirtyNotesForToken("token-x").map { it.note.id })
+        assertEquals(listOf(id), dao.searchNotes("shopping").map { it.id })
+        assertTrue(dao.searchNotes("plan").isEmpty())
+        assertEquals(listOf(id), dao.searchNotes("milk").map { it.id })
+    }
+
+    @Test
+    fun tombstone_isPurgedOnlyOnceUploaded() = runBlocking {
+        val uploaded = dao.saveNote(Note(title = "uploaded", content = "delete reaches the server"))
+        val pending = dao.saveNote(Note(title = "pending", content = "delete not uploaded yet"))
+        val received = dao.saveNote(Note(title = "received", content = "never uploaded", fromServer = true))
+        dao.deleteNotesByIds(listOf(uploaded, pending, received))
+        val later = System.currentTimeMillis() + 1_000
+
+        // Too recent for the cutoff, so nothing goes
+        assertEquals(0, dao.purgeTombstones(later - 60_000))
+
+        dao.markSynced("token-x", listOf(uploaded), later)
+        assertEquals(2, dao.purgeTombstones(later))
+        // Only the tombstone still waiting for an upload is left for a token to see
+        assertEquals(listOf(pending), dao.getDirtyNotesForToken("token-y").map { it.note.id })
+    }
+}
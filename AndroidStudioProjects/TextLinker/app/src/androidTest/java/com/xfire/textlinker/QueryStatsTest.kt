@@ -0,0 +1,63 @@
+package com.xfire.textlinker
+
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Checks that statements run through InstrumentedOpenHelperFactory land in QueryStats with
+ * their row counts, and dumps the collected stats for a small workload.
+ */
+@RunWith(AndroidJUnit4::class)
+class QueryStatsTest {
+    private lateinit var db: NoteDatabase
+    private lateinit var dao: NoteDao
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        db = Room.inMemoryDatabaseBuilder(context, NoteDatabase::class.java)
+            .openHelperFactory(InstrumentedOpenHelperFactory())
+            .build()
+        dao = db.noteDao()
+        QueryStats.reset()
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun recordsLatencyAndRowsPerStatement() = runBlocking {
+        dao.saveNotes((1..120).map { Note(title = "Note $it", content = "body $it") })
+        repeat(3) { dao.getNoteSummariesBefore(Int.MAX_VALUE, 50) }
+
+        val page = QueryStats.find("WHERE id < ? AND deleted = 0")
+        assertNotNull(page)
+        assertEquals(3L, page!!.count)
+        assertEquals(150L, page.rows)
+        assertEquals(0L, page.mainThreadCount)
+        assertTrue(page.buckets.sum() == page.count)
+        assertNotNull(QueryStats.find("END TRANSACTION"))
+        QueryStats.dump()
+    }
+
+    @Test
+    fun distinctStatementsAreCapped() {
+        val extra = 50
+        repeat(QueryStats.MAX_STATEMENTS + extra) { QueryStats.record("SELECT $it FROM notes", 1_000, 1, mainThread = false) }
+
+        val stats = QueryStats.snapshot()
+        assertEquals(QueryStats.MAX_STATEMENTS + 1, stats.size)
+        assertEquals(extra.toLong(), QueryStats.find(QueryStats.OTHER_STATEMENTS)!!.count)
+    }
+}
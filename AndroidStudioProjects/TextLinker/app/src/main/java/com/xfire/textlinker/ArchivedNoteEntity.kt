@@ -0,0 +1,24 @@
+package com.xfire.textlinker
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+// Cold tier: a received note nobody has opened for a while, moved out of notes with its body
+// inlined and compressed. It keeps its id and its notes_fts entries, so search still finds it, and
+// opening it (from search or the archived-notes list) moves it back (NoteDao.restoreArchivedNote).
+@Entity(tableName = "notes_archive")
+class ArchivedNoteEntity(
+    @PrimaryKey val id: Int,
+    val title: String,
+    val timestamp: Long,
+    @ColumnInfo(name = "from_server") val fromServer: Boolean,
+    @ColumnInfo(name = "content_length") val contentLength: Int,
+    val preview: String,
+    @ColumnInfo(name = "updated_at") val updatedAt: Long,
+    val codec: Int,
+    val data: ByteArray,
+    @ColumnInfo(name = "archived_at") val archivedAt: Long
+) {
+    fun toSearchText(): NoteSearchText = NoteSearchText(id, title, NoteBodyCodec.decode(codec, data))
+}
@@ -0,0 +1,64 @@
+package com.xfire.textlinker
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+
+/**
+ * Open helper factory that creates new database files in incremental auto-vacuum mode, so
+ * [NoteMaintenance] can release free pages in small steps without first rewriting the file.
+ *
+ * auto_vacuum can only be switched for free before the first table exists. Room's onCreate
+ * callback runs after it has created the tables, inside a transaction, so the switch happens in
+ * onConfigure instead, which runs first and outside any transaction.
+ */
+class AutoVacuumOpenHelperFactory(
+    private val delegate: SupportSQLiteOpenHelper.Factory = FrameworkSQLiteOpenHelperFactory()
+) : SupportSQLiteOpenHelper.Factory {
+    override fun create(configuration: SupportSQLiteOpenHelper.Configuration): SupportSQLiteOpenHelper =
+        delegate.create(
+            SupportSQLiteOpenHelper.Configuration.builder(configuration.context)
+                .name(configuration.name)
+                .callback(AutoVacuumCallback(configuration.callback))
+                .noBackupDirectory(configuration.useNoBackupDirectory)
+                .allowDataLossOnRecovery(configuration.allowDataLossOnRecovery)
+                .build()
+        )
+}
+
+private class AutoVacuumCallback(
+    private val delegate: SupportSQLiteOpenHelper.Callback
+) : SupportSQLiteOpenHelper.Callback(delegate.version) {
+
+    override fun onConfigure(db: SupportSQLiteDatabase) {
+        if (isEmpty(db)) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL")
+            // Turning on WAL already wrote the header; rewriting a file with no tables is instant
+            if (longQuery(db, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) db.execSQL("VACUUM")
+        }
+        delegate.onConfigure(db)
+    }
+
+    override fun onCreate(db: SupportSQLiteDatabase) = delegate.onCreate(db)
+
+    override fun onUpgrade(db: SupportSQLiteDatabase, oldVersion: Int, newVersion: Int) =
+        delegate.onUpgrade(db, oldVersion, newVersion)
+
+    override fun onDowngrade(db: SupportSQLiteDatabase, oldVersion: Int, newVersion: Int) =
+        delegate.onDowngrade(db, oldVersion, newVersion)
+
+    override fun onOpen(db: SupportSQLiteDatabase) = delegate.onOpen(db)
+
+    override fun onCorruption(db: SupportSQLiteDatabase) = delegate.onCorruption(db)
+
+    // A file Room hasn't created anything in yet
+    private fun isEmpty(db: SupportSQLiteDatabase): Boolean =
+        db.version == 0 && longQuery(db, "SELECT COUNT(*) FROM sqlite_master") == 0L
+
+    private fun longQuery(db: SupportSQLiteDatabase, sql: String): Long =
+        db.query(sql).use { if (it.moveToFirst()) it.getLong(0) else 0L }
+
+    companion object {
+        private const val AUTO_VACUUM_INCREMENTAL = 2L
+    }
+}
@@ -0,0 +1,108 @@
+package com.xfire.textlinker
+
+import java.io.ByteArrayOutputStream
+
+/**
+ * Edit operations recorded by the note editor and stored in note_edits.ops.
+ *
+ * An op replaces [Op.removed] chars at [Op.start] of the title or content with [Op.inserted], in
+ * the same terms a TextWatcher reports. Encoded as a field byte, start, removed and inserted byte
+ * length as varints, then the inserted text as UTF-8, so a journal row costs about as much as
+ * the text typed.
+ */
+object EditJournal {
+    const val FIELD_TITLE = 0
+    const val FIELD_CONTENT = 1
+
+    // Journal bytes after which the editor folds the journal into the stored note
+    const val COMPACT_THRESHOLD_BYTES = 32 * 1024
+
+    data class Op(val field: Int, val start: Int, val removed: Int, val inserted: String)
+
+    /**
+     * Adds [op] to [ops], merging it into the previous op when it continues or corrects the text
+     * that op inserted (typing, backspacing, IME composing), so a typed word is one op, not one per key.
+     */
+    fun coalesce(ops: MutableList<Op>, op: Op) {
+        val prev = ops.lastOrNull()
+        if (prev != null && prev.field == op.field) {
+            val prevEnd = prev.start + prev.inserted.length
+            if (op.start >= prev.start && op.start <= prevEnd && op.start + op.removed == prevEnd) {
+                ops[ops.size - 1] = prev.copy(inserted = prev.inserted.substring(0, op.start - prev.start) + op.inserted)
+                return
+            }
+        }
+        ops += op
+    }
+
+    /** The single op that turns [from] into [to] in [field]: everything between their common prefix and suffix. Null if equal. */
+    fun diff(field: Int, from: String, to: String): Op? {
+        if (from == to) return null
+        var prefix = 0
+        val maxPrefix = minOf(from.length, to.length)
+        while (prefix < maxPrefix && from[prefix] == to[prefix]) prefix++
+        var suffix = 0
+        val maxSuffix = maxPrefix - prefix
+        while (suffix < maxSuffix && from[from.length - 1 - suffix] == to[to.length - 1 - suffix]) suffix++
+        return Op(field, prefix, from.length - prefix - suffix, to.substring(prefix, to.length - suffix))
+    }
+
+    /** Applies [ops] in order. Throws IllegalArgumentException if an op doesn't fit the text. */
+    fun apply(title: String, content: String, ops: List<Op>): Pair<String, String> {
+        val fields = arrayOf(StringBuilder(title), StringBuilder(content))
+        for (op in ops) {
+            val text = fields.getOrNull(op.field) ?: throw IllegalArgumentException("Unknown field ${op.field}")
+            if (op.start < 0 || op.removed < 0 || op.start + op.removed > text.length) {
+                throw IllegalArgumentException("Edit at ${op.start}+${op.removed} outside text of length ${text.length}")
+            }
+            text.replace(op.start, op.start + op.removed, op.inserted)
+        }
+        return fields[0].toString() to fields[1].toString()
+    }
+
+    fun encode(ops: List<Op>): ByteArray {
+        val out = ByteArrayOutputStream(16 + ops.sumOf { it.inserted.length })
+        for (op in ops) {
+            val inserted = op.inserted.toByteArray(Charsets.UTF_8)
+            out.write(op.field)
+            writeVarint(out, op.start)
+            writeVarint(out, op.removed)
+            writeVarint(out, inserted.size)
+            out.write(inserted)
+        }
+        return out.toByteArray()
+    }
+
+    fun decode(data: ByteArray): List<Op> {
+        val ops = ArrayList<Op>()
+        var pos = 0
+        fun varint(): Int {
+            var result = 0
+            var shift = 0
+            while (true) {
+                val b = data[pos++].toInt()
+                result = result or ((b and 0x7F) shl shift)
+                if (b and 0x80 == 0) return result
+                shift += 7
+            }
+        }
+        while (pos < data.size) {
+            val field = data[pos++].toInt()
+            val start = varint()
+            val removed = varint()
+            val length = varint()
+            ops += Op(field, start, removed, String(data, pos, length, Charsets.UTF_8))
+            pos += length
+        }
+        return ops
+    }
+
+    private fun writeVarint(out: ByteArrayOutputStream, value: Int) {
+        var v = value
+        while (v and 0x7F.inv() != 0) {
+            out.write((v and 0x7F) or 0x80)
+            v = v ushr 7
+        }
+        out.write(v)
+    }
+}
@@ -12,20 +12,25 @@ import android.widget.EditText
 import android.widget.TextView
 import android.widget.Toast
 import androidx.appcompat.app.AlertDialog
+import androidx.core.widget.TextViewCompat
 import androidx.fragment.app.Fragment
 import androidx.fragment.app.activityViewModels
 import androidx.navigation.fragment.findNavController
 import androidx.lifecycle.Observer
+import androidx.lifecycle.lifecycleScope
 import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout
 import com.google.android.material.floatingactionbutton.FloatingActionButton
 import com.xfire.textlinker.network.TextLinkerApiService
+import com.xfire.textlinker.util.CombinedPayload
+import kotlinx.coroutines.launch
 
 class FirstFragment : Fragment() {
 
     private lateinit var searchEditText: EditText
     private lateinit var tvEmpty: TextView
+    private lateinit var tvArchived: TextView
     private lateinit var recyclerView: RecyclerView
     private lateinit var fabAdd: FloatingActionButton
     private lateinit var fabQrScanner: FloatingActionButton
@@ -34,8 +39,6 @@ class FirstFragment : Fragment() {
     private var swipeRefreshLayout: SwipeRefreshLayout? = null
     private val serverUrl = "https://textlinker.pro"
     private val apiService: TextLinkerApiService by lazy { TextLinkerApiService(serverUrl) }
-    private val NOTE_DELIM = "\n\n---TEXTLINKER NOTE---\n\n"
-    private val COMBINED_HEADER = "// TextLinker Combined v1\n"
 
     // Shared ViewModel backed by Room
     private val viewModel: NotesViewModel by activityViewModels()
@@ -51,6 +54,7 @@ class FirstFragment : Fragment() {
         super.onViewCreated(view, savedInstanceState)
         searchEditText = view.findViewById(R.id.etSearch)
         tvEmpty = view.findViewById(R.id.tvEmpty)
+        tvArchived = view.findViewById(R.id.tvArchived)
         recyclerView = view.findViewById(R.id.rvItems)
         fabAdd = view.findViewById(R.id.fabAdd)
         fabQrScanner = view.findViewById(R.id.fabQrScanner)
@@ -59,14 +63,15 @@ class FirstFragment : Fragment() {
 
         // Initialize adapter with the new FAB item layout.
         adapter = TextLinkAdapter(
-            listOf(),
             { selectedNote ->
-                // Navigate to the editor (ThirdFragment) with note details for editing.
-                val action = FirstFragmentDirections.actionFirstFragmentToThirdFragment(
-                    title = selectedNote.title,
-                    content = selectedNote.content,
-                    noteId = selectedNote.id
-                )
+                // By id; each screen loads the body itself. Notes big enough to be file-backed open in
+                // the paged viewer (SecondFragment), which never holds the whole body as one String;
+                // editing one from there loads it in full.
+                val action = if (NoteBodyFiles.mayStore(selectedNote.contentLength)) {
+                    FirstFragmentDirections.actionFirstFragmentToSecondFragment(noteId = selectedNote.id)
+                } else {
+                    FirstFragmentDirections.actionFirstFragmentToThirdFragment(noteId = selectedNote.id)
+                }
                 findNavController().navigate(action)
             },
             { noteToDelete ->
@@ -74,66 +79,76 @@ class FirstFragment : Fragment() {
                     .setTitle("Delete Note")
                     .setMessage("Are you sure you want to delete this note?")
                     .setPositiveButton("Delete") { _, _ ->
-                        viewModel.delete(noteToDelete)
+                        viewModel.deleteById(noteToDelete.id)
                     }
                     .setNegativeButton("Cancel", null)
                     .show()
             },
             { noteToShare ->
-                // Set the selected note in the ViewModel
-                viewModel.setSelectedNote(noteToShare)
-                // Navigate to the ShareFragment with arguments
-                val action = FirstFragmentDirections.actionFirstFragmentToShareFragment(
-                    noteId = noteToShare.id,
-                    noteTitle = noteToShare.title,
-                    noteContent = noteToShare.content
-                )
+                // Navigate to the ShareFragment by id; it resolves the note from the cache
+                val action = FirstFragmentDirections.actionFirstFragmentToShareFragment(noteId = noteToShare.id)
                 findNavController().navigate(action)
             }
         )
-        recyclerView.layoutManager = LinearLayoutManager(requireContext())
+        // Search results are highlighted and measured off the main thread with the rows' own text metrics
+        val probe = layoutInflater.inflate(R.layout.item_note_fab, recyclerView, false) as TextView
+        viewModel.rowTextParams = TextViewCompat.getTextMetricsParams(probe)
+
+        val layoutManager = LinearLayoutManager(requireContext())
+        // Hand rows back to the activity's pool when this view goes, so coming back doesn't inflate them again
+        layoutManager.recycleChildrenOnDetach = true
+        recyclerView.layoutManager = layoutManager
+        (activity as? MainActivity)?.let { recyclerView.setRecycledViewPool(it.noteViewPool) }
         recyclerView.adapter = adapter
 
+        // Pull the next page of summaries when the user nears the end of the loaded window
+        recyclerView.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+            override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+                if (searchEditText.text.isNotEmpty() || dy <= 0) return
+                if (layoutManager.findLastVisibleItemPosition() >= adapter.itemCount - PREFETCH_DISTANCE) {
+                    viewModel.loadMoreNotes()
+                }
+            }
+        })
+
         swipeRefreshLayout?.setOnRefreshListener {
             refreshFromServer()
         }
 
-        viewModel.allNotes.observe(viewLifecycleOwner) { notes ->
-            if (notes.isEmpty()) {
-                tvEmpty.text = "Any text you save will be displayed here"
-                tvEmpty.visibility = View.VISIBLE
-            } else {
-                tvEmpty.visibility = View.GONE
-            }
-            updateFilteredList(searchEditText.text.toString(), notes)
+        viewModel.noteSummaries.observe(viewLifecycleOwner) { notes ->
+            // While searching, the pipeline re-runs the query itself when notes change
+            if (searchEditText.text.isEmpty()) showFilteredList("", notes, notes)
+        }
+
+        // Results for anything but the newest query arrived late and are dropped
+        viewModel.searchResults.observe(viewLifecycleOwner) { result ->
+            if (result.seq != viewModel.latestSearchSeq || result.query != searchEditText.text.toString()) return@observe
+            showFilteredList(result.query, viewModel.noteSummaries.value ?: listOf(), result.summaries, result.texts)
         }
 
         searchEditText.addTextChangedListener(object : TextWatcher {
             override fun afterTextChanged(s: Editable?) {
                 val query = s.toString()
-                val notes = viewModel.allNotes.value ?: listOf()
-                val filtered = if (query.isEmpty()) {
-                    notes
-                } else {
-                    notes.filter {
-                        it.title.contains(query, ignoreCase = true) ||
-                                it.content.contains(query, ignoreCase = true)
-                    }
-                }
-                adapter.updateList(filtered)
-                tvEmpty.visibility = if (query.isNotEmpty() && filtered.isEmpty()) View.VISIBLE else View.GONE
-                if (query.isNotEmpty() && filtered.isEmpty()) {
-                    tvEmpty.text = "No matching text"
-                } else if (notes.isEmpty()) {
-                    tvEmpty.text = "Any text you save will be displayed here"
+                viewModel.submitSearch(query)
+                if (query.isEmpty()) {
+                    val notes = viewModel.noteSummaries.value ?: listOf()
+                    showFilteredList(query, notes, notes)
                 }
             }
             override fun beforeTextChanged(s: CharSequence?, start: Int, count: Int, after: Int) {}
             override fun onTextChanged(s: CharSequence?, start: Int, before: Int, count: Int) {}
         })
 
+        viewLifecycleOwner.lifecycleScope.launch {
+            viewModel.archivedCount.collect { count ->
+                tvArchived.text = "Archived notes ($count)"
+                tvArchived.visibility = if (count > 0) View.VISIBLE else View.GONE
+            }
+        }
+        tvArchived.setOnClickListener { showArchivedNotes() }
+
         fabAdd.setOnClickListener {
-            val action = FirstFragmentDirections.actionFirstFragmentToThirdFragment("", "", 0)
+            val action = FirstFragmentDirections.actionFirstFragmentToThirdFragment(noteId = 0)
             findNavController().navigate(action)
         }
 
@@ -144,16 +159,33 @@ class FirstFragment : Fragment() {
         fabHelp.setOnClickListener {
             findNavController().navigate(R.id.action_firstFragment_to_helpFragment)
         }
-        // Developer: long-press Help to dump recent network logs
+        // Developer: long-press Help to dump recent network logs and database query stats
         fabHelp.setOnLongClickListener {
             try {
                 apiService.dumpRecentNetworkLogs(300)
-                Toast.makeText(requireContext(), "Dumped last 300 network logs to Logcat", Toast.LENGTH_SHORT).show()
+                QueryStats.dump()
+                Toast.makeText(requireContext(), "Dumped last 300 network logs and query stats to Logcat", Toast.LENGTH_SHORT).show()
             } catch (_: Exception) {}
             true
         }
     }
 
+    // Opening an archived note in the editor moves it back into the list
+    private fun showArchivedNotes() {
+        viewLifecycleOwner.lifecycleScope.launch {
+            val archived = viewModel.getArchivedSummaries()
+            if (archived.isEmpty()) return@launch
+            AlertDialog.Builder(requireContext())
+                .setTitle("Archived notes")
+                .setItems(archived.map { it.title.ifEmpty { it.preview } }.toTypedArray()) { _, which ->
+                    val action = FirstFragmentDirections.actionFirstFragmentToThirdFragment(noteId = archived[which].id)
+                    findNavController().navigate(action)
+                }
+                .setNegativeButton("Close", null)
+                .show()
+        }
+    }
+
     private fun refreshFromServer() {
         val token = getLastToken()
         if (token.isNullOrEmpty()) {
@@ -238,11 +270,11 @@ class FirstFragment : Fragment() {
                 for (i in arr.length() - 1 downTo 0) {
                     val t = arr.optJSONObject(i)?.optString("text", null)
                     if (!t.isNullOrEmpty() && t.length < 200_000 && t != lastUploaded) {
-                        candidate = if (t.contains(NOTE_DELIM) || t.startsWith(COMBINED_HEADER) || t.count { ch -> ch == '\n' } > 200) extractCandidateFromCombined(t) else t
+                        candidate = if (CombinedPayload.looksCombined(t)) CombinedPayload.extractCandidate(t) else t
                         break
                     }
                 }
-                val delimCount = candidate?.let { countDelims(it) } ?: 0
+                val delimCount = candidate?.let { CombinedPayload.countDelims(it) } ?: 0
                 Log.d("FirstFragment", "PARSE: messagesArr=${arr.length()} candidateLen=${candidate?.length ?: -1} delimCount=$delimCount")
                 if (candidate == null) {
                     Log.d("FirstFragment", "REFRESH SKIPPED ECHO token=${token.take(6)}")
@@ -252,8 +284,8 @@ class FirstFragment : Fragment() {
                 handleFetchedText(token, candidate)
             } else if (json.has("text")) {
                 val rawText = json.getString("text")
-                val candidate = if (rawText.contains(NOTE_DELIM) || rawText.startsWith(COMBINED_HEADER) || rawText.count { it == '\n' } > 200) extractCandidateFromCombined(rawText) else rawText
-                val delimCount = countDelims(rawText)
+                val candidate = if (CombinedPayload.looksCombined(rawText)) CombinedPayload.extractCandidate(rawText) else rawText
+                val delimCount = CombinedPayload.countDelims(rawText)
                 Log.d("FirstFragment", "PARSE: messagesArr=0 candidateLen=${candidate.length} delimCount=$delimCount")
                 val last = getLastUploadedPayloadForToken(token)
                 if (candidate == last) {
@@ -295,19 +327,6 @@ class FirstFragment : Fragment() {
         Toast.makeText(context, "Received 1 new message", Toast.LENGTH_SHORT).show()
     }
 
-    private fun countDelims(text: String): Int {
-        val body = if (text.startsWith(COMBINED_HEADER)) text.removePrefix(COMBINED_HEADER) else text
-        return body.split(NOTE_DELIM).size - 1
-    }
-
-    private fun extractCandidateFromCombined(text: String): String {
-        val body = if (text.startsWith(COMBINED_HEADER)) text.removePrefix(COMBINED_HEADER) else text
-        val parts = body.split(NOTE_DELIM)
-        if (parts.size >= 2) return parts.last().trim()
-        val paragraphs = body.split(Regex("\n{2,}"))
-        return paragraphs.last().trim()
-    }
-
     private fun getLastToken(): String? {
         val prefs = requireContext().getSharedPreferences("textlinker_prefs", Context.MODE_PRIVATE)
         return prefs.getString("last_token", null)
@@ -327,7 +346,7 @@ class FirstFragment : Fragment() {
         val lines = text.lines()
         val firstLine = lines.firstOrNull()?.trim().orEmpty()
         val title = if (firstLine.isNotEmpty() && firstLine.length <= 50) firstLine else "Text from Website"
-        val note = NoteEntity(
+        val note = Note(
             id = 0, // Let Room auto-generate the ID
             title = title, 
             content = text, 
@@ -339,16 +358,13 @@ class FirstFragment : Fragment() {
         Log.d("FirstFragment", "Saved received note token=$token fromServer=true len=${text.length}")
     }
 
-    private fun updateFilteredList(query: String, notes: List<NoteEntity>) {
-        val filtered = if (query.isEmpty()) {
-            notes
-        } else {
-            notes.filter {
-                it.title.contains(query, ignoreCase = true) ||
-                        it.content.contains(query, ignoreCase = true)
-            }
-        }
-        adapter.updateList(filtered)
+    private fun showFilteredList(
+        query: String,
+        notes: List<NoteSummary>,
+        filtered: List<NoteSummary>,
+        texts: Map<Int, CharSequence> = emptyMap()
+    ) {
+        adapter.updateList(filtered, texts, query)
         tvEmpty.visibility = if (notes.isEmpty() || (query.isNotEmpty() && filtered.isEmpty())) View.VISIBLE else View.GONE
         if (notes.isEmpty()) {
             tvEmpty.text = "Any text you save will be displayed here"
@@ -356,4 +372,9 @@ class FirstFragment : Fragment() {
             tvEmpty.text = "No matching text"
         }
     }
+
+    companion object {
+        // Rows from the end of the loaded window at which the next page is requested
+        private const val PREFETCH_DISTANCE = 10
+    }
 }
@@ -1,15 +1,32 @@
 package com.xfire.textlinker
 
+import android.net.Uri
 import android.os.Bundle
+import android.util.Log
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
 import android.widget.Button
+import android.widget.Toast
+import androidx.activity.result.contract.ActivityResultContracts
 import androidx.fragment.app.Fragment
+import androidx.fragment.app.activityViewModels
+import androidx.lifecycle.lifecycleScope
 import androidx.navigation.fragment.findNavController
+import kotlinx.coroutines.launch
 
 class HelpFragment : Fragment() {
 
+    private val viewModel: NotesViewModel by activityViewModels()
+
+    private val exportLauncher = registerForActivityResult(
+        ActivityResultContracts.CreateDocument("application/octet-stream")
+    ) { uri -> uri?.let { exportNotes(it) } }
+
+    private val importLauncher = registerForActivityResult(
+        ActivityResultContracts.OpenDocument()
+    ) { uri -> uri?.let { importNotes(it) } }
+
     override fun onCreateView(
         inflater: LayoutInflater, container: ViewGroup?,
         savedInstanceState: Bundle?
@@ -25,5 +42,37 @@ class HelpFragment : Fragment() {
         view.findViewById<Button>(R.id.btnBack).setOnClickListener {
             findNavController().navigateUp()
         }
+
+        view.findViewById<Button>(R.id.btnExportNotes).setOnClickListener {
+            exportLauncher.launch("textlinker-notes.tlna")
+        }
+
+        view.findViewById<Button>(R.id.btnImportNotes).setOnClickListener {
+            importLauncher.launch(arrayOf("*/*"))
+        }
+    }
+
+    private fun exportNotes(uri: Uri) {
+        viewLifecycleOwner.lifecycleScope.launch {
+            try {
+                val count = viewModel.exportNotes(uri)
+                Toast.makeText(context, "Exported $count notes", Toast.LENGTH_SHORT).show()
+            } catch (e: Exception) {
+                Log.e("HelpFragment", "Error exporting notes", e)
+                Toast.makeText(context, "Export failed: ${e.message}", Toast.LENGTH_LONG).show()
+            }
+        }
+    }
+
+    private fun importNotes(uri: Uri) {
+        viewLifecycleOwner.lifecycleScope.launch {
+            try {
+                val count = viewModel.importNotes(uri)
+                Toast.makeText(context, "Imported $count notes", Toast.LENGTH_SHORT).show()
+            } catch (e: Exception) {
+                Log.e("HelpFragment", "Error importing notes", e)
+                Toast.makeText(context, "Import failed: ${e.message}", Toast.LENGTH_LONG).show()
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,161 @@
+package com.xfire.textlinker
+
+import android.database.Cursor
+import android.database.CursorWrapper
+import android.os.CancellationSignal
+import android.os.Looper
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import androidx.sqlite.db.SupportSQLiteQuery
+import androidx.sqlite.db.SupportSQLiteStatement
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+
+/**
+ * Open helper factory that times every statement Room runs and records it in [QueryStats].
+ *
+ * SQLite only steps a query when its cursor is read, so a query is timed from the call until
+ * Room closes the cursor, which includes filling the window and mapping the rows.
+ * Commits are recorded as "END TRANSACTION" so write cost shows up next to the statements.
+ */
+class InstrumentedOpenHelperFactory(
+    private val delegate: SupportSQLiteOpenHelper.Factory = FrameworkSQLiteOpenHelperFactory()
+) : SupportSQLiteOpenHelper.Factory {
+    override fun create(configuration: SupportSQLiteOpenHelper.Configuration): SupportSQLiteOpenHelper =
+        InstrumentedOpenHelper(delegate.create(configuration))
+}
+
+private class InstrumentedOpenHelper(
+    private val delegate: SupportSQLiteOpenHelper
+) : SupportSQLiteOpenHelper by delegate {
+    // Room asks for the database on every statement, so keep one wrapper per underlying connection
+    @Volatile private var wrapped: InstrumentedDatabase? = null
+
+    override val writableDatabase: SupportSQLiteDatabase
+        get() = wrap(delegate.writableDatabase)
+
+    override val readableDatabase: SupportSQLiteDatabase
+        get() = wrap(delegate.readableDatabase)
+
+    private fun wrap(db: SupportSQLiteDatabase): SupportSQLiteDatabase {
+        val current = wrapped
+        if (current != null && current.delegate === db) return current
+        return InstrumentedDatabase(db).also { wrapped = it }
+    }
+}
+
+private fun isMainThread(): Boolean = Looper.myLooper() == Looper.getMainLooper()
+
+private class InstrumentedDatabase(
+    val delegate: SupportSQLiteDatabase
+) : SupportSQLiteDatabase by delegate {
+
+    override fun query(query: String): Cursor = timedQuery(query) { delegate.query(query) }
+
+    override fun query(query: String, bindArgs: Array<out Any?>): Cursor =
+        timedQuery(query) { delegate.query(query, bindArgs) }
+
+    override fun query(query: SupportSQLiteQuery): Cursor = timedQuery(query.sql) { delegate.query(query) }
+
+    override fun query(query: SupportSQLiteQuery, cancellationSignal: CancellationSignal?): Cursor =
+        timedQuery(query.sql) { delegate.query(query, cancellationSignal) }
+
+    override fun execSQL(sql: String) = timed(sql) { delegate.execSQL(sql) }
+
+    override fun execSQL(sql: String, bindArgs: Array<out Any?>) = timed(sql) { delegate.execSQL(sql, bindArgs) }
+
+    override fun compileStatement(sql: String): SupportSQLiteStatement =
+        InstrumentedStatement(sql, delegate.compileStatement(sql))
+
+    override fun endTransaction() = timed("END TRANSACTION") { delegate.endTransaction() }
+
+    private inline fun timed(sql: String, block: () -> Unit) {
+        val start = System.nanoTime()
+        try {
+            block()
+        } finally {
+            QueryStats.record(sql, System.nanoTime() - start, 0, isMainThread())
+        }
+    }
+
+    private inline fun timedQuery(sql: String, open: () -> Cursor): Cursor {
+        val start = System.nanoTime()
+        val mainThread = isMainThread()
+        val cursor = try {
+            open()
+        } catch (e: Exception) {
+            QueryStats.record(sql, System.nanoTime() - start, 0, mainThread)
+            throw e
+        }
+        return TimedCursor(cursor, sql, start, mainThread)
+    }
+}
+
+private class TimedCursor(
+    cursor: Cursor,
+    private val sql: String,
+    private val start: Long,
+    private val mainThread: Boolean
+) : CursorWrapper(cursor) {
+    private var recorded = false
+
+    override fun close() {
+        if (!recorded) {
+            recorded = true
+            // Room has already walked the cursor, so the count is cached by now
+            val rows = try { count } catch (_: Exception) { 0 }
+            QueryStats.record(sql, System.nanoTime() - start, rows, mainThread)
+        }
+        super.close()
+    }
+}
+
+private class InstrumentedStatement(
+    private val sql: String,
+    private val delegate: SupportSQLiteStatement
+) : SupportSQLiteStatement by delegate {
+
+    override fun execute() {
+        timed { delegate.execute(); 0 }
+    }
+
+    override fun executeUpdateDelete(): Int = timed { delegate.executeUpdateDelete() }
+
+    override fun executeInsert(): Long {
+        val start = System.nanoTime()
+        try {
+            return delegate.executeInsert()
+        } finally {
+            QueryStats.record(sql, System.nanoTime() - start, 1, isMainThread())
+        }
+    }
+
+    override fun simpleQueryForLong(): Long {
+        val start = System.nanoTime()
+        try {
+            return delegate.simpleQueryForLong()
+        } finally {
+            QueryStats.record(sql, System.nanoTime() - start, 1, isMainThread())
+        }
+    }
+
+    override fun simpleQueryForString(): String? {
+        val start = System.nanoTime()
+        try {
+            return delegate.simpleQueryForString()
+        } finally {
+            QueryStats.record(sql, System.nanoTime() - start, 1, isMainThread())
+        }
+    }
+
+    // Rows for updates/deletes are the affected row count
+    private inline fun timed(block: () -> Int): Int {
+        val start = System.nanoTime()
+        var rows = 0
+        try {
+            rows = block()
+            return rows
+        } finally {
+            QueryStats.record(sql, System.nanoTime() - start, rows, isMainThread())
+        }
+    }
+}
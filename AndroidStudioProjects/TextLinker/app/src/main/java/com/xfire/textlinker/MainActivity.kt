@@ -2,8 +2,14 @@ package com.xfire.textlinker
 
 import androidx.appcompat.app.AppCompatActivity
 import android.os.Bundle
+import androidx.recyclerview.widget.RecyclerView
 
 class MainActivity : AppCompatActivity() {
+    // Outlives the note list's view, so rows survive FirstFragment's view being rebuilt
+    val noteViewPool = RecyclerView.RecycledViewPool().apply {
+        setMaxRecycledViews(TextLinkAdapter.VIEW_TYPE, MAX_POOLED_ROWS)
+    }
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_main)
@@ -11,4 +17,9 @@ class MainActivity : AppCompatActivity() {
         // If you're using a toolbar or other UI setup, you can do it here.
         // For now, this just hosts the NavHostFragment from activity_main.xml
     }
-}
\ No newline at end of file
+
+    companion object {
+        // About a screenful of rows
+        private const val MAX_POOLED_ROWS = 20
+    }
+}
@@ -0,0 +1,33 @@
+package com.xfire.textlinker
+
+import com.xfire.textlinker.util.ContentHash
+
+/**
+ * A note together with its body, as the editor, detail and share screens use it.
+ * Stored as a [NoteEntity] row pointing at a shared [NoteBodyEntity]; see [NoteDao.saveNote].
+ */
+data class Note(
+    val id: Int = 0,
+    val title: String = "",
+    val content: String = "",
+    val timestamp: Long = System.currentTimeMillis(),
+    val fromServer: Boolean = false
+) {
+    // Local writes are dirty until uploaded; notes received from the server start out synced.
+    fun toEntity(updatedAt: Long = System.currentTimeMillis()): NoteEntity = NoteEntity(
+        id = id,
+        title = title,
+        timestamp = timestamp,
+        fromServer = fromServer,
+        contentLength = content.length,
+        preview = content.take(PREVIEW_LENGTH),
+        updatedAt = updatedAt,
+        contentHash = ContentHash.sha256(content),
+        syncState = if (fromServer) NoteEntity.SYNC_STATE_SYNCED else NoteEntity.SYNC_STATE_DIRTY,
+        openedAt = updatedAt
+    )
+
+    companion object {
+        const val PREVIEW_LENGTH = 120
+    }
+}
@@ -0,0 +1,219 @@
+package com.xfire.textlinker
+
+import android.util.Log
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+
+/**
+ * Streaming backup format for moving notes between devices.
+ *
+ * Layout: the magic "TLNA", a format version byte and a flags byte (bit 0 = Deflate), then one
+ * record per note until a zero length. A record is its byte length as a varint followed by the
+ * timestamp (8 bytes), from_server (1 byte), the title length as a varint, the UTF-8 title and
+ * the UTF-8 body. Everything after the header is Deflate-compressed when the flag is set.
+ *
+ * Export reads from a cursor and import commits in batches of at most [IMPORT_BATCH_SIZE] notes
+ * and [IMPORT_BATCH_BYTES] of text, so memory use does not depend on how many notes the archive
+ * holds or how large they are.
+ */
+object NoteArchive {
+    const val FORMAT_VERSION = 1
+    const val FLAG_DEFLATE = 1
+    const val IMPORT_BATCH_SIZE = 500
+    // In-memory size of a batch's titles and bodies (UTF-16), so a run of huge notes commits early
+    const val IMPORT_BATCH_BYTES = 8L * 1024 * 1024
+
+    private val MAGIC = byteArrayOf('T'.code.toByte(), 'L'.code.toByte(), 'N'.code.toByte(), 'A'.code.toByte())
+    private const val BUFFER_SIZE = 64 * 1024
+    // Rejects corrupt lengths before allocating for them
+    private const val MAX_RECORD_BYTES = 64 * 1024 * 1024
+
+    class Writer(out: OutputStream, compress: Boolean = true) : Closeable {
+        // Level 1: backups are I/O bound and it gets most of the size win for little CPU
+        private val deflater = if (compress) Deflater(Deflater.BEST_SPEED) else null
+        private val deflating = deflater?.let { DeflaterOutputStream(out, it, BUFFER_SIZE) }
+        private val data: DataOutputStream
+        private val scratch = ByteArray(5)
+
+        init {
+            out.write(MAGIC)
+            out.write(FORMAT_VERSION)
+            out.write(if (compress) FLAG_DEFLATE else 0)
+            data = DataOutputStream(BufferedOutputStream(deflating ?: out, BUFFER_SIZE))
+        }
+
+        fun write(title: String, timestamp: Long, fromServer: Boolean, content: ByteArray) {
+            val titleBytes = title.toByteArray(Charsets.UTF_8)
+            writeVarint(8 + 1 + varintSize(titleBytes.size) + titleBytes.size + content.size)
+            data.writeLong(timestamp)
+            data.writeByte(if (fromServer) 1 else 0)
+            writeVarint(titleBytes.size)
+            data.write(titleBytes)
+            data.write(content)
+        }
+
+        /** Writes the end marker and finishes the compressed stream; the underlying stream stays open. */
+        fun finish() {
+            writeVarint(0)
+            data.flush()
+            deflating?.finish()
+        }
+
+        override fun close() {
+            deflater?.end()
+        }
+
+        private fun writeVarint(value: Int) {
+            var v = value
+            var n = 0
+            while (v and 0x7F.inv() != 0) {
+                scratch[n++] = ((v and 0x7F) or 0x80).toByte()
+                v = v ushr 7
+            }
+            scratch[n++] = v.toByte()
+            data.write(scratch, 0, n)
+        }
+
+        private fun varintSize(value: Int): Int {
+            var v = value ushr 7
+            var n = 1
+            while (v != 0) {
+                n++
+                v = v ushr 7
+            }
+            return n
+        }
+    }
+
+    class Reader(input: InputStream) : Closeable {
+        private val inflater: Inflater?
+        private val data: DataInputStream
+
+        init {
+            val buffered = BufferedInputStream(input, BUFFER_SIZE)
+            val header = ByteArray(MAGIC.size + 2)
+            DataInputStream(buffered).readFully(header)
+            if (!header.copyOfRange(0, MAGIC.size).contentEquals(MAGIC)) throw IOException("Not a note archive")
+            val version = header[MAGIC.size].toInt()
+            if (version != FORMAT_VERSION) throw IOException("Unsupported note archive version $version")
+            val compressed = header[MAGIC.size + 1].toInt() and FLAG_DEFLATE != 0
+            inflater = if (compressed) Inflater() else null
+            data = DataInputStream(if (inflater != null) InflaterInputStream(buffered, inflater, BUFFER_SIZE) else buffered)
+        }
+
+        /** The next note (id 0, ready to insert), or null at the end marker. */
+        fun next(): Note? {
+            val length = try {
+                readVarint()
+            } catch (e: EOFException) {
+                throw IOException("Truncated note archive", e)
+            }
+            if (length == 0) return null
+            if (length < 10 || length > MAX_RECORD_BYTES) throw IOException("Corrupt note archive record length $length")
+            val record = ByteArray(length)
+            data.readFully(record)
+
+            var pos = 0
+            var timestamp = 0L
+            repeat(8) { timestamp = (timestamp shl 8) or (record[pos++].toLong() and 0xFF) }
+            val fromServer = record[pos++].toInt() != 0
+            var titleLength = 0
+            var shift = 0
+            while (true) {
+                if (pos >= length) throw IOException("Corrupt note archive record: title length runs past the record")
+                val b = record[pos++].toInt()
+                titleLength = titleLength or ((b and 0x7F) shl shift)
+                if (b and 0x80 == 0) break
+                shift += 7
+                if (shift > 28) throw IOException("Corrupt note archive record: title length varint too long")
+            }
+            // A fifth byte can set the sign bit, so a negative length is as corrupt as an oversized one
+            if (titleLength < 0 || titleLength > length - pos) throw IOException("Corrupt note archive title length $titleLength")
+            val title = String(record, pos, titleLength, Charsets.UTF_8)
+            pos += titleLength
+            val content = String(record, pos, length - pos, Charsets.UTF_8)
+            return Note(title = title, content = content, timestamp = timestamp, fromServer = fromServer)
+        }
+
+        override fun close() {
+            inflater?.end()
+        }
+
+        private fun readVarint(): Int {
+            var result = 0
+            var shift = 0
+            while (true) {
+                val b = data.readUnsignedByte()
+                result = result or ((b and 0x7F) shl shift)
+                if (b and 0x80 == 0) return result
+                shift += 7
+                if (shift > 28) throw IOException("Corrupt note archive record length varint")
+            }
+        }
+    }
+
+    /** Streams every live note into [out]. Returns the number of notes written. Call off the main thread. */
+    fun export(noteDao: NoteDao, out: OutputStream, compress: Boolean = true): Int {
+        var count = 0
+        Writer(out, compress).use { writer ->
+            noteDao.openExportCursor().use { cursor ->
+                while (cursor.moveToNext()) {
+                    val codec = cursor.getInt(3)
+                    val data = cursor.getBlob(4)
+                    // Plain and file bodies are already UTF-8, so they go out without a String round trip
+                    val content = when (codec) {
+                        NoteBodyCodec.CODEC_PLAIN -> data
+                        NoteBodyCodec.CODEC_FILE -> NoteBodyFiles.readBytes(String(data, Charsets.UTF_8))
+                        else -> NoteBodyCodec.decode(codec, data).toByteArray(Charsets.UTF_8)
+                    }
+                    writer.write(cursor.getString(0), cursor.getLong(1), cursor.getInt(2) != 0, content)
+                    count++
+                }
+            }
+            writer.finish()
+        }
+        out.flush()
+        Log.d("NoteArchive", "Exported $count notes")
+        return count
+    }
+
+    /**
+     * Reads an archive into new notes, committing each batch through the write queue so the list
+     * picks them up. Returns the number of notes imported.
+     */
+    suspend fun import(writeQueue: NoteWriteQueue, input: InputStream): Int {
+        var count = 0
+        Reader(input).use { reader ->
+            val batch = ArrayList<Note>(IMPORT_BATCH_SIZE)
+            var batchBytes = 0L
+            while (true) {
+                val note = reader.next()
+                if (note != null) {
+                    batch += note
+                    batchBytes += 2L * (note.title.length + note.content.length)
+                }
+                val full = batch.size == IMPORT_BATCH_SIZE || batchBytes >= IMPORT_BATCH_BYTES
+                if (full || (note == null && batch.isNotEmpty())) {
+                    writeQueue.saveAll(ArrayList(batch)).await()
+                    count += batch.size
+                    batch.clear()
+                    batchBytes = 0
+                }
+                if (note == null) break
+            }
+        }
+        Log.d("NoteArchive", "Imported $count notes")
+        return count
+    }
+}
@@ -0,0 +1,81 @@
+package com.xfire.textlinker
+
+import java.io.ByteArrayOutputStream
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Encodes note bodies for note_bodies.data. Bodies of [COMPRESS_THRESHOLD] bytes or more are
+ * raw-Deflate compressed when that saves at least [MIN_SAVING_PERCENT]; everything else is
+ * stored as plain UTF-8 so small notes cost nothing extra to read. The cold archive passes a
+ * lower threshold and a higher level since it is written once and rarely read.
+ */
+object NoteBodyCodec {
+    const val CODEC_PLAIN = 0
+    const val CODEC_DEFLATE = 1
+    // data is the name of a NoteBodyFiles file holding the plain UTF-8 body
+    const val CODEC_FILE = 2
+
+    const val COMPRESS_THRESHOLD = 4 * 1024
+    private const val MIN_SAVING_PERCENT = 10
+
+    class Encoded(val codec: Int, val data: ByteArray)
+
+    fun encode(
+        content: String,
+        level: Int = Deflater.DEFAULT_COMPRESSION,
+        threshold: Int = COMPRESS_THRESHOLD
+    ): Encoded {
+        val raw = content.toByteArray(Charsets.UTF_8)
+        if (raw.size < threshold) return Encoded(CODEC_PLAIN, raw)
+        val compressed = deflate(raw, level)
+        return if (compressed.size * 100 <= raw.size * (100 - MIN_SAVING_PERCENT)) {
+            Encoded(CODEC_DEFLATE, compressed)
+        } else {
+            Encoded(CODEC_PLAIN, raw)
+        }
+    }
+
+    fun decode(codec: Int, data: ByteArray): String = when (codec) {
+        CODEC_PLAIN -> String(data, Charsets.UTF_8)
+        CODEC_DEFLATE -> String(inflate(data), Charsets.UTF_8)
+        CODEC_FILE -> NoteBodyFiles.read(String(data, Charsets.UTF_8))
+        else -> throw IllegalArgumentException("Unknown note body codec $codec")
+    }
+
+    private fun deflate(input: ByteArray, level: Int): ByteArray {
+        val deflater = Deflater(level, true)
+        try {
+            deflater.setInput(input)
+            deflater.finish()
+            val out = ByteArrayOutputStream(input.size / 4 + 64)
+            val buffer = ByteArray(8 * 1024)
+            while (!deflater.finished()) {
+                val n = deflater.deflate(buffer)
+                out.write(buffer, 0, n)
+            }
+            return out.toByteArray()
+        } finally {
+            deflater.end()
+        }
+    }
+
+    private fun inflate(input: ByteArray): ByteArray {
+        val inflater = Inflater(true)
+        try {
+            inflater.setInput(input)
+            val out = ByteArrayOutputStream(input.size * 4)
+            val buffer = ByteArray(8 * 1024)
+            while (!inflater.finished()) {
+                val n = inflater.inflate(buffer)
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw IllegalStateException("Truncated note body")
+                }
+                out.write(buffer, 0, n)
+            }
+            return out.toByteArray()
+        } finally {
+            inflater.end()
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.xfire.textlinker
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+// Content-addressed note body: stored once per distinct content, keyed by its SHA-256
+// (notes.content_hash points here). ref_count is the number of live notes using it; the row
+// is dropped when it reaches zero. data holds the body as encoded by NoteBodyCodec, or for very
+// large bodies the name of the NoteBodyFiles file holding it.
+@Entity(tableName = "note_bodies")
+class NoteBodyEntity(
+    @PrimaryKey val hash: String,
+    val codec: Int,
+    val data: ByteArray,
+    @ColumnInfo(name = "ref_count") val refCount: Int
+) {
+    fun decode(): String = NoteBodyCodec.decode(codec, data)
+
+    companion object {
+        fun of(hash: String, content: String, refCount: Int = 1): NoteBodyEntity {
+            NoteBodyFiles.store(hash, content)?.let {
+                return NoteBodyEntity(hash, NoteBodyCodec.CODEC_FILE, it.toByteArray(Charsets.UTF_8), refCount)
+            }
+            val encoded = NoteBodyCodec.encode(content)
+            return NoteBodyEntity(hash, encoded.codec, encoded.data, refCount)
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.xfire.textlinker
+
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * File store for bodies of [FILE_THRESHOLD] UTF-8 bytes or more, so they skip SQLite's 2 MB
+ * CursorWindow. The note_bodies row keeps its hash and ref_count with codec
+ * [NoteBodyCodec.CODEC_FILE] and the file name as data; the file holds plain UTF-8.
+ *
+ * Files are content-addressed like the rows (named after the hash) and never change once written.
+ * A write goes to a temp file that is synced and renamed into place, so a reader sees the old file
+ * or the whole new one. Files whose row is gone are removed by [sweep] during maintenance.
+ */
+object NoteBodyFiles {
+    const val FILE_THRESHOLD = 128 * 1024
+
+    // Younger files may belong to a transaction that hasn't committed yet
+    private const val ORPHAN_GRACE_MS = 60L * 60 * 1000
+    private const val TEMP_SUFFIX = ".tmp"
+
+    // Unset (e.g. in-memory test databases) means every body stays in the database
+    @Volatile var directory: File? = null
+        private set
+
+    fun init(dir: File) {
+        dir.mkdirs()
+        directory = dir
+    }
+
+    /**
+     * Whether a body of [contentLength] chars could be file-backed. At most 3 UTF-8 bytes per UTF-16
+     * char, so shorter bodies are ruled out without encoding them.
+     */
+    fun mayStore(contentLength: Int): Boolean = contentLength * 3L >= FILE_THRESHOLD
+
+    /** Writes [content] to the file for [hash] if it is big enough. Returns the file name, or null to keep it in the row. */
+    fun store(hash: String, content: String): String? {
+        val dir = directory ?: return null
+        if (!mayStore(content.length)) return null
+        val bytes = content.toByteArray(Charsets.UTF_8)
+        if (bytes.size < FILE_THRESHOLD) return null
+        val name = "$hash.txt"
+        // Always rewritten, even if present: the fresh mtime keeps a concurrent sweep off it
+        writeAtomically(File(dir, name), bytes)
+        return name
+    }
+
+    fun read(name: String): String = String(readBytes(name), Charsets.UTF_8)
+
+    // Read straight into the array; mapping first would fault every page in only to copy it out again
+    fun readBytes(name: String): ByteArray {
+        FileInputStream(fileFor(name)).channel.use { channel ->
+            val size = channel.size()
+            if (size > Int.MAX_VALUE) throw IOException("Note body file $name is too large ($size bytes)")
+            val buffer = ByteBuffer.allocate(size.toInt())
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw IOException("Note body file $name ended early")
+            }
+            return buffer.array()
+        }
+    }
+
+    /** Maps the body read-only; pages are faulted in as [MappedNoteBody.read] touches them. */
+    fun map(name: String): MappedNoteBody {
+        RandomAccessFile(fileFor(name), "r").use { file ->
+            // The mapping stays valid after the channel is closed
+            return MappedNoteBody(file.channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length()))
+        }
+    }
+
+    /**
+     * Deletes body files not in [referenced] (and abandoned temp files) older than the grace
+     * period. Returns the bytes freed.
+     */
+    fun sweep(referenced: Set<String>, now: Long = System.currentTimeMillis()): Long {
+        val files = directory?.listFiles() ?: return 0L
+        var freed = 0L
+        for (file in files) {
+            if (file.name in referenced || now - file.lastModified() < ORPHAN_GRACE_MS) continue
+            val size = file.length()
+            if (file.delete()) freed += size
+        }
+        return freed
+    }
+
+    private fun fileFor(name: String): File {
+        val dir = directory ?: throw IOException("Note body file store is not initialized")
+        if (name.isEmpty() || name.contains('/') || name.startsWith(".")) throw IOException("Invalid note body file name '$name'")
+        return File(dir, name)
+    }
+
+    private fun writeAtomically(target: File, bytes: ByteArray) {
+        val temp = File.createTempFile(target.name, TEMP_SUFFIX, target.parentFile)
+        try {
+            FileOutputStream(temp).use {
+                it.write(bytes)
+                it.fd.sync()
+            }
+            if (!temp.renameTo(target)) throw IOException("Could not move ${temp.name} to ${target.name}")
+        } catch (e: IOException) {
+            temp.delete()
+            throw e
+        }
+    }
+}
+
+/** A file-backed body mapped into memory, read in UTF-8-aligned pages so it never has to be one String. */
+class MappedNoteBody(buffer: ByteBuffer) {
+    class Page(val text: String, val end: Int)
+
+    val buffer: ByteBuffer = buffer.asReadOnlyBuffer()
+    val byteLength: Int get() = buffer.limit()
+
+    /** Decodes up to [maxBytes] starting at [offset], ending on a character boundary. [Page.end] is where the next page starts. */
+    fun read(offset: Int, maxBytes: Int): Page {
+        var end = minOf(byteLength, offset + maxBytes)
+        // Back off UTF-8 continuation bytes (10xxxxxx) so no character is split between pages
+        while (end in (offset + 1) until byteLength && buffer.get(end).toInt() and 0xC0 == 0x80) end--
+        val slice = buffer.duplicate()
+        slice.position(offset)
+        slice.limit(end)
+        return Page(Charsets.UTF_8.decode(slice).toString(), end)
+    }
+}
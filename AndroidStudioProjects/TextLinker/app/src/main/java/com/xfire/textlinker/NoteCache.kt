@@ -0,0 +1,67 @@
+package com.xfire.textlinker
+
+import android.util.LruCache
+
+/**
+ * Bounded in-memory cache of full notes by id, in front of [NoteDao.getNoteById].
+ *
+ * Screens navigate with a note id only and resolve the note through here, so reopening a note
+ * doesn't hit the database. Size is the approximate heap cost of the title and body (UTF-16),
+ * capped at [maxBytes]; one oversized note simply isn't kept. Every NoteDao write path reports its
+ * ids to [NoteDatabase.onNotesWritten], which calls [invalidate] once the transaction has ended,
+ * so writes that skip the write queue can't leave a stale copy either. A note that isn't in the
+ * hot table is handed to [restore] so an archived note opens like any other.
+ */
+class NoteCache(
+    private val noteDao: NoteDao,
+    private val maxBytes: Int = defaultMaxBytes(),
+    private val restore: suspend (Int) -> Boolean = { false }
+) {
+    private val cache = object : LruCache<Int, Note>(maxBytes) {
+        override fun sizeOf(key: Int, value: Note): Int = sizeOf(value)
+    }
+
+    // Bumped on every invalidation so a load that raced with a write can't cache the old version
+    private var version = 0L
+
+    /** The cached note, without touching the database. */
+    fun peek(id: Int): Note? = cache.get(id)
+
+    suspend fun get(id: Int): Note? {
+        cache.get(id)?.let { return it }
+        val loadedAt = synchronized(this) { version }
+        val note = noteDao.getNoteById(id)
+            ?: (if (restore(id)) noteDao.getNoteById(id) else null)
+            ?: return null
+        synchronized(this) {
+            if (version == loadedAt && sizeOf(note) <= maxBytes) cache.put(id, note)
+        }
+        return note
+    }
+
+    fun invalidate(ids: Collection<Int>) {
+        if (ids.isEmpty()) return
+        synchronized(this) {
+            version++
+            for (id in ids) cache.remove(id)
+        }
+    }
+
+    fun clear() {
+        synchronized(this) {
+            version++
+            cache.evictAll()
+        }
+    }
+
+    companion object {
+        // Two bytes per char plus a rough fixed cost for the objects themselves
+        private const val ENTRY_OVERHEAD = 96
+
+        fun sizeOf(note: Note): Int = ENTRY_OVERHEAD + 2 * (note.title.length + note.content.length)
+
+        // 1/32 of the heap, at most 8 MB
+        private fun defaultMaxBytes(): Int =
+            (Runtime.getRuntime().maxMemory() / 32).coerceAtMost(8L * 1024 * 1024).toInt()
+    }
+}
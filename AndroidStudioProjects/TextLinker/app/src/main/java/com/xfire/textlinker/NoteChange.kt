@@ -0,0 +1,21 @@
+package com.xfire.textlinker
+
+/**
+ * A committed change to one note, published by [NoteWriteQueue.changes] after each group commit.
+ * Lets list holders patch the affected rows instead of re-reading everything.
+ */
+sealed class NoteChange {
+    abstract val id: Int
+
+    data class Inserted(override val id: Int) : NoteChange()
+    data class Updated(override val id: Int) : NoteChange()
+    data class Deleted(override val id: Int) : NoteChange()
+    // Moved to the cold archive: gone from the list, still found by search
+    data class Archived(override val id: Int) : NoteChange()
+
+    // Events were dropped for a collector that fell behind; anything derived from notes must be
+    // read again. Names no note (ids start at 1).
+    object Reset : NoteChange() {
+        override val id: Int get() = 0
+    }
+}
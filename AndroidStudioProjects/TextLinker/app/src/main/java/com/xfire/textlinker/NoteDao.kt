@@ -1,37 +1,757 @@
 package com.xfire.textlinker
 
-import androidx.lifecycle.LiveData
+import android.database.Cursor
+import android.util.Log
 import androidx.room.Dao
-import androidx.room.Delete
 import androidx.room.Insert
 import androidx.room.Query
-import androidx.room.Update
+import androidx.room.RoomDatabase
+import androidx.room.Transaction
+import androidx.room.Upsert
+import com.xfire.textlinker.util.ContentHash
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.flow.Flow
+import java.util.zip.Deflater
 
+// Room passes the database in, so write paths can tell it which cached notes they replaced.
 @Dao
-interface NoteDao {
-    @Query("SELECT * FROM notes ORDER BY id DESC")
-    fun getAllNotes(): LiveData<List<NoteEntity>>
+abstract class NoteDao(private val database: RoomDatabase) {
+    // Room re-runs these on any write to notes; collect them through distinctUntilChanged.
+    @Query("SELECT COUNT(*) FROM notes WHERE deleted = 0")
+    abstract suspend fun countNotes(): Int
 
-    // Local-only notes (exclude those received from server). No tombstones in schema.
+    @Query("SELECT COUNT(*) FROM notes_archive")
+    abstract fun observeArchivedCount(): Flow<Int>
+
+    // Most recently archived first, for the archived-notes list
+    @Query("""
+        SELECT id, title, timestamp, content_length AS contentLength, preview
+        FROM notes_archive
+        ORDER BY archived_at DESC, id DESC
+    """)
+    abstract suspend fun getArchivedSummaries(): List<NoteSummary>
+
+    // Keyset pagination for the list: summaries only, never the full body.
+    @Query("""
+        SELECT id, title, timestamp, content_length AS contentLength, preview
+        FROM notes
+        WHERE id < :beforeId AND deleted = 0
+        ORDER BY id DESC
+        LIMIT :limit
+    """)
+    abstract suspend fun getNoteSummariesBefore(beforeId: Int, limit: Int): List<NoteSummary>
+
+    // Re-reads an already loaded window (everything newer than or equal to minId).
     @Query("""
-        SELECT * FROM notes 
-        WHERE from_server = 0 
-        AND (from_server IS NULL OR from_server = 0)
+        SELECT id, title, timestamp, content_length AS contentLength, preview
+        FROM notes
+        WHERE id >= :minId AND deleted = 0
         ORDER BY id DESC
     """)
-    suspend fun getLocalNotes(): List<NoteEntity> {
-        // This is a suspend function, so we can't directly log here
-        // The actual implementation is generated by Room
-        // We'll add logging in the ViewModel instead
-        return emptyList() // This will be overridden by Room
+    abstract suspend fun getNoteSummariesFrom(minId: Int): List<NoteSummary>
+
+    @Query("""
+        SELECT id, title, timestamp, content_length AS contentLength, preview
+        FROM notes
+        WHERE id IN (:ids) AND deleted = 0
+    """)
+    abstract suspend fun getNoteSummariesByIds(ids: List<Int>): List<NoteSummary>
+
+    // Summaries for search hits, which may be archived. Binds ids twice, so chunk by MAX_BIND_ARGS / 2.
+    @Query("""
+        SELECT id, title, timestamp, content_length AS contentLength, preview
+        FROM notes
+        WHERE id IN (:ids) AND deleted = 0
+        UNION ALL
+        SELECT id, title, timestamp, content_length, preview
+        FROM notes_archive
+        WHERE id IN (:ids)
+    """)
+    abstract suspend fun getSearchSummariesByIds(ids: List<Int>): List<NoteSummary>
+
+    @Query("SELECT * FROM notes WHERE id = :id AND deleted = 0")
+    abstract suspend fun getNoteRow(id: Int): NoteEntity?
+
+    // Only written when the stored value is older than minInterval, so reopening a note is usually read-only
+    @Query("UPDATE notes SET opened_at = :now WHERE id = :id AND opened_at < :now - :minInterval")
+    abstract suspend fun touchOpened(id: Int, now: Long, minInterval: Long)
+
+    // The only place a body page is read for a single note.
+    @Query("""
+        SELECT note_bodies.* FROM notes
+        JOIN note_bodies ON note_bodies.hash = notes.content_hash
+        WHERE notes.id = :id
+    """)
+    protected abstract suspend fun getNoteBodyEntity(id: Int): NoteBodyEntity?
+
+    open suspend fun getNoteBody(id: Int): String? = getNoteBodyEntity(id)?.decode()
+
+    /** The note's body mapped from its file, or null if the body is stored in the database. */
+    open suspend fun mapNoteBody(id: Int): MappedNoteBody? {
+        val body = getNoteBodyEntity(id) ?: return null
+        if (body.codec != NoteBodyCodec.CODEC_FILE) return null
+        return NoteBodyFiles.map(String(body.data, Charsets.UTF_8))
+    }
+
+    @Transaction
+    open suspend fun getNoteById(id: Int): Note? {
+        val row = getNoteRow(id) ?: return null
+        return Note(
+            id = row.id,
+            title = row.title,
+            content = getNoteBody(id).orEmpty(),
+            timestamp = row.timestamp,
+            fromServer = row.fromServer
+        )
+    }
+
+    @Query("SELECT * FROM note_bodies WHERE hash = :hash")
+    protected abstract suspend fun getNoteBodyByHash(hash: String): NoteBodyEntity?
+
+    // Newest revisions first; sizes are the stored (delta or keyframe) bytes, not the body length.
+    @Query("""
+        SELECT revision, keyframe, created_at, length(data) AS size
+        FROM note_revisions
+        WHERE note_id = :id
+        ORDER BY revision DESC
+    """)
+    abstract suspend fun getRevisions(id: Int): List<NoteRevisionInfo>
+
+    // The nearest keyframe at or before the revision plus every delta up to it.
+    @Query("""
+        SELECT * FROM note_revisions
+        WHERE note_id = :id AND revision <= :revision
+          AND revision >= (SELECT MAX(revision) FROM note_revisions
+                           WHERE note_id = :id AND revision <= :revision AND keyframe = 1)
+        ORDER BY revision
+    """)
+    protected abstract suspend fun getRevisionChain(id: Int, revision: Int): List<NoteRevisionEntity>
+
+    /** Body of the note as of [revision], or null if there is no such revision. */
+    @Transaction
+    open suspend fun getNoteRevision(id: Int, revision: Int): String? {
+        val chain = getRevisionChain(id, revision)
+        if (chain.isEmpty() || chain.last().revision != revision) return null
+        val keyframe = chain.first()
+        return NoteRevisions.reconstruct(keyframe.codec, keyframe.data, chain.drop(1).map { it.data })
+    }
+
+    @Query("""
+        SELECT MAX(revision) AS latest, MAX(CASE WHEN keyframe = 1 THEN revision END) AS lastKeyframe
+        FROM note_revisions
+        WHERE note_id = :id
+    """)
+    protected abstract suspend fun getRevisionHead(id: Int): RevisionHead
+
+    @Insert
+    protected abstract suspend fun insertRevision(revision: NoteRevisionEntity)
+
+    @Query("SELECT content_hash FROM notes WHERE id = :id AND deleted = 0")
+    abstract suspend fun getContentHash(id: Int): String?
+
+    @Insert
+    protected abstract suspend fun insertEdit(edit: NoteEditEntity)
+
+    @Query("SELECT * FROM note_edits WHERE note_id = :id ORDER BY seq")
+    protected abstract suspend fun getEdits(id: Int): List<NoteEditEntity>
+
+    @Query("DELETE FROM note_edits WHERE note_id IN (:ids)")
+    protected abstract suspend fun deleteEdits(ids: List<Int>)
+
+    // Rows whose base body was replaced by a save can never be replayed. Returns how many went.
+    @Query("""
+        DELETE FROM note_edits WHERE base_hash != IFNULL(
+            (SELECT content_hash FROM notes WHERE notes.id = note_edits.note_id AND deleted = 0), '')
+    """)
+    abstract suspend fun deleteStaleEdits(): Int
+
+    /**
+     * Appends one batch of editor ops against the body with [baseHash]. A single small insert, so
+     * autosave cost follows the size of the edit, not the note. Returns the encoded size.
+     */
+    open suspend fun appendEdits(id: Int, baseHash: String, ops: List<EditJournal.Op>): Int {
+        val data = EditJournal.encode(ops)
+        insertEdit(NoteEditEntity(noteId = id, baseHash = baseHash, ops = data, createdAt = System.currentTimeMillis()))
+        return data.size
+    }
+
+    /** The note with its journal replayed, for the editor. Null if the note doesn't exist. */
+    @Transaction
+    open suspend fun openForEditing(id: Int): EditableNote? {
+        val note = getNoteById(id) ?: return null
+        val hash = getContentHash(id) ?: return null
+        val edits = getEdits(id).filter { it.baseHash == hash }
+        val replayed = replayEdits(note, edits) ?: return EditableNote(note, hash, 0)
+        return EditableNote(replayed, hash, edits.sumOf { it.ops.size })
+    }
+
+    /**
+     * Folds the note's journal into its stored body with a regular save (new body, revision and
+     * FTS entry) and clears the journal. The note keeps its fromServer flag. Returns true if the
+     * note changed.
+     */
+    @Transaction
+    open suspend fun compactEdits(id: Int): Boolean {
+        val note = getNoteById(id)
+        val hash = getContentHash(id)
+        val edits = if (hash == null) emptyList() else getEdits(id).filter { it.baseHash == hash }
+        val folded = if (note == null) null else replayEdits(note, edits)
+        if (folded == null || folded == note) {
+            deleteEdits(listOf(id))
+            return false
+        }
+        // saveNote drops the journal rows along with the old body
+        saveNote(folded.copy(timestamp = System.currentTimeMillis()))
+        return true
+    }
+
+    // Null when there is nothing to replay or a row doesn't fit the body it claims to be based on
+    private fun replayEdits(note: Note, edits: List<NoteEditEntity>): Note? {
+        if (edits.isEmpty()) return null
+        return try {
+            val (title, content) = EditJournal.apply(note.title, note.content, edits.flatMap { EditJournal.decode(it.ops) })
+            note.copy(title = title, content = content)
+        } catch (e: Exception) {
+            Log.e("NoteDao", "Discarding unreadable edit journal for note ${note.id}", e)
+            null
+        }
+    }
+
+    // Raw cursor for NoteArchive.export so rows stream out one window at a time. Covers both tiers.
+    @Query("""
+        SELECT notes.title, notes.timestamp, notes.from_server, note_bodies.codec, note_bodies.data, notes.id
+        FROM notes
+        JOIN note_bodies ON note_bodies.hash = notes.content_hash
+        WHERE notes.deleted = 0
+        UNION ALL
+        SELECT title, timestamp, from_server, codec, data, id
+        FROM notes_archive
+        ORDER BY 6
+    """)
+    abstract fun openExportCursor(): Cursor
+
+    @Query(DIRTY_SINCE_LAST_SYNC_QUERY)
+    protected abstract suspend fun getDirtyStoredNotes(token: String): List<DirtyStoredNote>
+
+    // Local notes changed since the last successful upload for this token (all of them for a new token),
+    // including notes deleted since then.
+    open suspend fun getDirtyNotesForToken(token: String): List<DirtyNote> = getDirtyStoredNotes(token).map { it.toDirtyNote() }
+
+    @Upsert
+    protected abstract suspend fun upsertSyncMark(mark: SyncMarkEntity)
+
+    @Query("""
+        UPDATE notes SET sync_state = ${NoteEntity.SYNC_STATE_SYNCED}
+        WHERE id IN (:ids) AND updated_at <= :syncedUpTo
+    """)
+    protected abstract suspend fun clearDirty(ids: List<Int>, syncedUpTo: Long)
+
+    /**
+     * Records a successful upload for [token]: moves its watermark to [syncedUpTo] and clears the
+     * dirty flag on the uploaded notes unless they were edited again in the meantime.
+     */
+    @Transaction
+    open suspend fun markSynced(token: String, ids: List<Int>, syncedUpTo: Long) {
+        upsertSyncMark(SyncMarkEntity(token = token, lastSyncedAt = syncedUpTo))
+        ids.chunked(MAX_BIND_ARGS).forEach { clearDirty(it, syncedUpTo) }
+    }
+
+    // Hard-deletes tombstones older than the given time that no upload still needs: received notes
+    // are never uploaded, and a local note's delete has reached the server once markSynced cleared
+    // its dirty flag. Their bodies and index entries went with the delete. Blocking, for NoteMaintenance.
+    @Query("""
+        DELETE FROM notes
+        WHERE deleted = 1 AND updated_at < :olderThan
+          AND (from_server = 1 OR sync_state = ${NoteEntity.SYNC_STATE_SYNCED})
+    """)
+    abstract fun purgeTombstones(olderThan: Long): Int
+
+    // Full-text search over title and content. Ranking is done in NoteSearch.rank since FTS4 has none.
+    // notes_fts keeps no text, so only matchinfo() works on it, not snippet() or offsets().
+    @Query("""
+        SELECT notes_fts.rowid AS id, matchinfo(notes_fts, 'pcx') AS matchInfo
+        FROM notes_fts
+        WHERE notes_fts MATCH :matchQuery
+    """)
+    abstract suspend fun searchNotes(matchQuery: String): List<NoteSearchHit>
+
+    // Title and encoded body of live or archived notes up to maxChars long. Binds ids twice.
+    @Query("""
+        SELECT notes.id, notes.title, note_bodies.codec, note_bodies.data
+        FROM notes
+        JOIN note_bodies ON note_bodies.hash = notes.content_hash
+        WHERE notes.id IN (:ids) AND notes.deleted = 0 AND notes.content_length <= :maxChars
+        UNION ALL
+        SELECT id, title, codec, data
+        FROM notes_archive
+        WHERE id IN (:ids) AND content_length <= :maxChars
+    """)
+    protected abstract suspend fun getStoredSearchTexts(ids: List<Int>, maxChars: Int): List<StoredSearchText>
+
+    // Keyset page of the same, in id order
+    @Query("""
+        SELECT notes.id, notes.title, note_bodies.codec, note_bodies.data
+        FROM notes
+        JOIN note_bodies ON note_bodies.hash = notes.content_hash
+        WHERE notes.id > :afterId AND notes.deleted = 0 AND notes.content_length <= :maxChars
+        UNION ALL
+        SELECT id, title, codec, data
+        FROM notes_archive
+        WHERE id > :afterId AND content_length <= :maxChars
+        ORDER BY id
+        LIMIT :limit
+    """)
+    protected abstract suspend fun getStoredSearchTextsAfter(afterId: Int, limit: Int, maxChars: Int): List<StoredSearchText>
+
+    /** Searchable text of the given notes, skipping any longer than [maxChars]; lets the search narrow in memory. */
+    open suspend fun getSearchTexts(ids: List<Int>, maxChars: Int): List<NoteSearchText> =
+        ids.chunked(MAX_BIND_ARGS / 2).flatMap { chunk -> getStoredSearchTexts(chunk, maxChars).map { it.toSearchText() } }
+
+    /** Keyset page of searchable text for rebuilding the in-memory indexes; longer notes are left to [getLongSearchTextIds]. */
+    open suspend fun getSearchTextsAfter(afterId: Int, limit: Int, maxChars: Int): List<NoteSearchText> =
+        getStoredSearchTextsAfter(afterId, limit, maxChars).map { it.toSearchText() }
+
+    @Query("""
+        SELECT id FROM notes WHERE deleted = 0 AND content_length > :maxChars
+        UNION ALL
+        SELECT id FROM notes_archive WHERE content_length > :maxChars
+    """)
+    abstract suspend fun getLongSearchTextIds(maxChars: Int): List<Int>
+
+    // Binds ids twice, so chunk by MAX_BIND_ARGS / 2
+    @Query("""
+        SELECT id FROM notes WHERE id IN (:ids) AND deleted = 0 AND content_length > :maxChars
+        UNION ALL
+        SELECT id FROM notes_archive WHERE id IN (:ids) AND content_length > :maxChars
+    """)
+    abstract suspend fun getLongSearchTextIdsIn(ids: List<Int>, maxChars: Int): List<Int>
+
+    // Title and the start of the body (the stored preview), for notes too long to read whole. Binds ids twice.
+    @Query("""
+        SELECT id, title, preview AS content FROM notes WHERE id IN (:ids) AND deleted = 0
+        UNION ALL
+        SELECT id, title, preview FROM notes_archive WHERE id IN (:ids)
+    """)
+    abstract suspend fun getSearchPreviews(ids: List<Int>): List<NoteSearchText>
+
+    /** Those of [ids] whose title or body contains [query], ignoring case. Reads one body at a time, for notes too long for the trigram index. */
+    open suspend fun filterIdsContaining(ids: List<Int>, query: String): List<Int> =
+        ids.filter { id -> getStoredSearchTexts(listOf(id), Int.MAX_VALUE).any { it.toSearchText().contains(query) } }
+
+    // Notes whose title or plain (uncompressed, in-row) body is LIKE the pattern. Pattern must be escaped with '\'.
+    @Query("""
+        SELECT notes.id FROM notes
+        JOIN note_bodies ON note_bodies.hash = notes.content_hash
+        WHERE notes.deleted = 0 AND (notes.title LIKE :pattern ESCAPE '\'
+            OR (note_bodies.codec = ${NoteBodyCodec.CODEC_PLAIN} AND CAST(note_bodies.data AS TEXT) LIKE :pattern ESCAPE '\'))
+        UNION ALL
+        SELECT id FROM notes_archive
+        WHERE title LIKE :pattern ESCAPE '\'
+            OR (codec = ${NoteBodyCodec.CODEC_PLAIN} AND CAST(data AS TEXT) LIKE :pattern ESCAPE '\')
+    """)
+    protected abstract suspend fun getIdsLikeInPlainText(pattern: String): List<Int>
+
+    // Notes whose body is compressed or in a file, which LIKE can't look into
+    @Query("""
+        SELECT notes.id FROM notes
+        JOIN note_bodies ON note_bodies.hash = notes.content_hash
+        WHERE notes.deleted = 0 AND note_bodies.codec != ${NoteBodyCodec.CODEC_PLAIN}
+        UNION ALL
+        SELECT id FROM notes_archive WHERE codec != ${NoteBodyCodec.CODEC_PLAIN}
+    """)
+    protected abstract suspend fun getPackedBodyIds(): List<Int>
+
+    /**
+     * Substring search straight from storage, for when the in-memory index can't answer: live and
+     * archived notes whose title or body contains [query], newest first. Plain bodies are matched by
+     * LIKE (case-insensitive for ASCII only); compressed and file bodies are decoded and checked here.
+     */
+    open suspend fun searchNoteSummariesContaining(query: String): List<NoteSummary> {
+        val ids = HashSet(getIdsLikeInPlainText(NoteSearch.toLikePattern(query)))
+        getPackedBodyIds().filter { it !in ids }.chunked(PACKED_SCAN_BATCH).forEach { chunk ->
+            getStoredSearchTexts(chunk, Int.MAX_VALUE).filter { it.toSearchText().contains(query) }.mapTo(ids) { it.id }
+        }
+        return ids.toList().chunked(MAX_BIND_ARGS / 2)
+            .flatMap { getSearchSummariesByIds(it) }
+            .sortedByDescending { it.id }
+    }
+
+    // Received, idle since the cutoff, with a stored body, and with no history or pending edits that
+    // would need the notes row. Walked by id so notes left behind aren't offered again.
+    @Query("""
+        SELECT id FROM notes
+        WHERE id > :afterId AND from_server = 1 AND deleted = 0 AND opened_at < :cutoff AND updated_at < :cutoff
+          AND EXISTS (SELECT 1 FROM note_bodies WHERE note_bodies.hash = notes.content_hash)
+          AND NOT EXISTS (SELECT 1 FROM note_revisions WHERE note_revisions.note_id = notes.id)
+          AND NOT EXISTS (SELECT 1 FROM note_edits WHERE note_edits.note_id = notes.id)
+        ORDER BY id
+        LIMIT :limit
+    """)
+    protected abstract suspend fun getArchivableIds(cutoff: Long, afterId: Int, limit: Int): List<Int>
+
+    @Query("SELECT * FROM notes WHERE id IN (:ids)")
+    protected abstract suspend fun getNoteRows(ids: List<Int>): List<NoteEntity>
+
+    @Query("DELETE FROM notes WHERE id IN (:ids)")
+    protected abstract suspend fun deleteNoteRows(ids: List<Int>)
+
+    @Insert
+    protected abstract suspend fun insertArchivedNotes(rows: List<ArchivedNoteEntity>)
+
+    @Query("SELECT * FROM notes_archive WHERE id = :id")
+    protected abstract suspend fun getArchivedNote(id: Int): ArchivedNoteEntity?
+
+    @Query("SELECT * FROM notes_archive WHERE id IN (:ids)")
+    protected abstract suspend fun getArchivedNotes(ids: List<Int>): List<ArchivedNoteEntity>
+
+    @Query("SELECT EXISTS(SELECT 1 FROM notes_archive WHERE id = :id)")
+    abstract suspend fun isArchived(id: Int): Boolean
+
+    @Query("DELETE FROM notes_archive WHERE id IN (:ids)")
+    protected abstract suspend fun deleteArchivedNotes(ids: List<Int>)
+
+    /**
+     * Moves up to [limit] received notes with ids above [afterId], not opened or changed since
+     * [cutoff], into notes_archive. The notes row and the body reference go away; the notes_fts
+     * entries stay (they hold no text), so search still finds archived notes and restoring one needs
+     * no reindexing. A note whose body can't be read is left in place rather than archived empty, so
+     * pass the returned [ArchiveBatch.lastId] as the next [afterId] to get past it.
+     */
+    @Transaction
+    open suspend fun archiveColdNotes(cutoff: Long, limit: Int, afterId: Int = 0): ArchiveBatch {
+        val candidates = getArchivableIds(cutoff, afterId, limit.coerceAtMost(MAX_BIND_ARGS))
+        if (candidates.isEmpty()) return ArchiveBatch(emptyList(), 0, afterId)
+        val now = System.currentTimeMillis()
+        val rows = ArrayList<NoteEntity>(candidates.size)
+        val archived = ArrayList<ArchivedNoteEntity>(candidates.size)
+        for (row in getNoteRows(candidates)) {
+            // A corrupt Deflate body throws from Inflater rather than as an IOException; either way
+            // only this note stays behind, the rest of the batch still moves
+            val content = try {
+                getNoteBodyByHash(row.contentHash)?.decode()
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.e("NoteDao", "Error reading body of note ${row.id} for archiving", e)
+                null
+            }
+            if (content == null) {
+                Log.w("NoteDao", "Not archiving note ${row.id}: its body can't be read")
+                continue
+            }
+            // Written once and rarely read, so compress everything that shrinks, as hard as Deflate can
+            val encoded = NoteBodyCodec.encode(content, Deflater.BEST_COMPRESSION, threshold = 0)
+            rows += row
+            archived += ArchivedNoteEntity(row.id, row.title, row.timestamp, row.fromServer, row.contentLength,
+                row.preview, row.updatedAt, encoded.codec, encoded.data, now)
+        }
+        val ids = rows.map { it.id }
+        if (ids.isEmpty()) return ArchiveBatch(ids, candidates.size, candidates.last())
+        insertArchivedNotes(archived)
+        releaseBodies(rows.map { it.contentHash })
+        deleteNoteRows(ids)
+        written(ids)
+        return ArchiveBatch(ids, candidates.size, candidates.last())
+    }
+
+    /** Moves an archived note back into notes. Returns false if it isn't archived. */
+    @Transaction
+    open suspend fun restoreArchivedNote(id: Int): Boolean {
+        val archived = getArchivedNote(id) ?: return false
+        val content = NoteBodyCodec.decode(archived.codec, archived.data)
+        val now = System.currentTimeMillis()
+        val row = NoteEntity(
+            id = archived.id,
+            title = archived.title,
+            timestamp = archived.timestamp,
+            fromServer = archived.fromServer,
+            contentLength = archived.contentLength,
+            preview = archived.preview,
+            updatedAt = archived.updatedAt,
+            contentHash = ContentHash.sha256(content),
+            syncState = NoteEntity.SYNC_STATE_SYNCED,
+            openedAt = now
+        )
+        upsertNoteRow(row)
+        acquireBodies(listOf(row.contentHash)) { content }
+        deleteArchivedNotes(listOf(id))
+        written(listOf(id))
+        return true
+    }
+
+    @Upsert
+    protected abstract suspend fun upsertNoteRow(row: NoteEntity): Long
+
+    @Upsert
+    protected abstract suspend fun upsertNoteRows(rows: List<NoteEntity>): List<Long>
+
+    // Live (non-tombstone) body hashes and titles of existing notes, before they are overwritten or deleted
+    @Query("SELECT id, content_hash AS hash, title, from_server AS fromServer FROM notes WHERE id IN (:ids) AND deleted = 0")
+    protected abstract suspend fun getBodyRefs(ids: List<Int>): List<BodyRef>
+
+    // Returns the number of rows updated: 0 means no body with this hash is stored yet
+    @Query("UPDATE note_bodies SET ref_count = ref_count + :count WHERE hash = :hash")
+    protected abstract suspend fun addBodyRefs(hash: String, count: Int): Int
+
+    @Insert
+    protected abstract suspend fun insertNoteBody(body: NoteBodyEntity)
+
+    @Query("UPDATE note_bodies SET ref_count = ref_count - :count WHERE hash = :hash")
+    protected abstract suspend fun removeBodyRefs(hash: String, count: Int)
+
+    @Query("DELETE FROM note_bodies WHERE hash IN (:hashes) AND ref_count <= 0")
+    protected abstract suspend fun deleteUnreferencedBodies(hashes: List<String>)
+
+    @Insert
+    protected abstract suspend fun insertFtsRow(row: NoteFtsEntity)
+
+    @Insert
+    protected abstract suspend fun insertFtsRows(rows: List<NoteFtsEntity>)
+
+    @Query("DELETE FROM notes_fts WHERE rowid IN (:ids)")
+    protected abstract suspend fun deleteFtsRows(ids: List<Int>)
+
+    @Insert
+    protected abstract suspend fun insertFtsSources(rows: List<NoteFtsSourceEntity>)
+
+    @Query("DELETE FROM notes_fts_source")
+    protected abstract suspend fun clearFtsSources()
+
+    // Tombstones drop their body reference, so content_hash is cleared along with the flag
+    @Query("""
+        UPDATE notes SET deleted = 1, updated_at = :now, sync_state = ${NoteEntity.SYNC_STATE_DIRTY}, content_hash = ''
+        WHERE id IN (:ids)
+    """)
+    protected abstract suspend fun markNotesDeleted(ids: List<Int>, now: Long)
+
+    /**
+     * Appends [newContent] to the note's history. The first edit of a note without history also
+     * stores [oldContent] as revision 1, so the version being replaced is never lost.
+     */
+    private suspend fun recordRevision(id: Int, oldContent: String, newContent: String, now: Long) {
+        val head = getRevisionHead(id)
+        var latest = head.latest
+        var lastKeyframe = head.lastKeyframe
+        if (latest == null) {
+            insertRevision(keyframeRevision(id, 1, oldContent, now))
+            latest = 1
+            lastKeyframe = 1
+        }
+        val revision = latest + 1
+        val newBytes = newContent.toByteArray(Charsets.UTF_8)
+        val delta = NoteDelta.diff(oldContent.toByteArray(Charsets.UTF_8), newBytes)
+        if (NoteRevisions.needsKeyframe(revision, lastKeyframe, delta.size, newBytes.size)) {
+            insertRevision(keyframeRevision(id, revision, newContent, now))
+        } else {
+            insertRevision(NoteRevisionEntity(id, revision, keyframe = false,
+                codec = NoteBodyCodec.CODEC_PLAIN, data = delta, createdAt = now))
+        }
+    }
+
+    private fun keyframeRevision(id: Int, revision: Int, content: String, now: Long): NoteRevisionEntity {
+        val encoded = NoteBodyCodec.encode(content)
+        return NoteRevisionEntity(id, revision, keyframe = true, codec = encoded.codec, data = encoded.data, createdAt = now)
+    }
+
+    /**
+     * Takes one reference per entry in [hashes] (duplicates allowed). A body that is already
+     * stored only gets its count bumped; it is never re-encoded or rewritten.
+     * [contentFor] supplies the text for hashes that are new.
+     */
+    private suspend fun acquireBodies(hashes: List<String>, contentFor: (String) -> String) {
+        for ((hash, count) in hashes.groupingBy { it }.eachCount()) {
+            if (addBodyRefs(hash, count) == 0) {
+                insertNoteBody(NoteBodyEntity.of(hash, contentFor(hash), count))
+            }
+        }
+    }
+
+    /**
+     * Removes the index entries of [texts], each the exact title and body its note was indexed with.
+     * notes_fts keeps no text and FTS4 needs it to find a row's entries, so the text is staged in
+     * notes_fts_source for the delete only.
+     */
+    private suspend fun unindex(texts: List<NoteSearchText>) {
+        if (texts.isEmpty()) return
+        val distinct = texts.distinctBy { it.id }
+        insertFtsSources(distinct.map { NoteFtsSourceEntity(it.id, it.title, it.content) })
+        distinct.map { it.id }.chunked(MAX_BIND_ARGS).forEach { deleteFtsRows(it) }
+        clearFtsSources()
+    }
+
+    // Drops the archived copy of a note that is saved again, returning the text it is indexed with
+    private suspend fun takeArchivedText(id: Int): NoteSearchText? {
+        val archived = getArchivedNote(id) ?: return null
+        deleteArchivedNotes(listOf(id))
+        return archived.toSearchText()
     }
 
-    @Insert(onConflict = androidx.room.OnConflictStrategy.REPLACE)
-    suspend fun insertNote(note: NoteEntity)
+    // Drops one reference per entry and garbage-collects bodies nobody points at any more.
+    private suspend fun releaseBodies(hashes: List<String>) {
+        if (hashes.isEmpty()) return
+        val counts = hashes.groupingBy { it }.eachCount()
+        for ((hash, count) in counts) removeBodyRefs(hash, count)
+        counts.keys.toList().chunked(MAX_BIND_ARGS).forEach { deleteUnreferencedBodies(it) }
+    }
+
+    /**
+     * Inserts (id == 0) or replaces a note: metadata row, body reference and FTS entry in one
+     * transaction. The body is only written when no note has stored the same content before, and
+     * the index only when the title or body changed. Saving back exactly what is stored writes
+     * nothing but the cleared edit journal. Returns the note id.
+     */
+    @Transaction
+    open suspend fun saveNote(note: Note): Int {
+        val entity = note.toEntity()
+        val previous = if (note.id == 0) null else getBodyRefs(listOf(note.id)).firstOrNull()
+        if (previous != null && previous.isSameAs(entity)) {
+            deleteEdits(listOf(note.id))
+            return note.id
+        }
+        val rowId = upsertNoteRow(entity)
+        val id = if (note.id == 0) rowId.toInt() else note.id
+        // The text the note is indexed under until now; same body unless the content changed
+        var indexed = previous?.let { NoteSearchText(id, it.title, note.content) }
+        if (previous?.hash != entity.contentHash) {
+            acquireBodies(listOf(entity.contentHash)) { note.content }
+            if (previous != null) {
+                // Read the replaced body before its reference is released
+                val oldContent = getNoteBodyByHash(previous.hash)?.decode()
+                if (oldContent != null) recordRevision(id, oldContent, note.content, entity.updatedAt)
+                indexed = NoteSearchText(id, previous.title, oldContent.orEmpty())
+                releaseBodies(listOf(previous.hash))
+            }
+        }
+        if (previous == null && note.id != 0) indexed = takeArchivedText(id)
+        if (previous == null || !previous.isIndexedAs(entity)) {
+            unindex(listOfNotNull(indexed))
+            insertFtsRow(NoteFtsEntity(rowId = id, title = note.title, content = note.content))
+        }
+        // A full save supersedes any autosaved edits
+        if (note.id != 0) deleteEdits(listOf(id))
+        written(listOf(id))
+        return id
+    }
+
+    // Leaves a tombstone row for sync; the body reference and index entry are dropped right away.
+    @Transaction
+    open suspend fun deleteNoteById(id: Int) {
+        deleteNotesByIds(listOf(id))
+    }
 
-    @Delete
-    suspend fun deleteNote(note: NoteEntity)
+    /**
+     * Batch form of [saveNote]: every note, body reference and index entry is written in a single
+     * transaction, so an import of N notes costs one commit instead of N. Returns ids in input order.
+     */
+    @Transaction
+    open suspend fun saveNotes(notes: List<Note>): List<Int> {
+        if (notes.isEmpty()) return emptyList()
+        val now = System.currentTimeMillis()
+        val entities = notes.map { it.toEntity(now) }
+        val previous = HashMap<Int, BodyRef>()
+        notes.map { it.id }.filter { it != 0 }.distinct().chunked(MAX_BIND_ARGS).forEach { chunk ->
+            getBodyRefs(chunk).forEach { previous[it.id] = it }
+        }
+        // Ids whose last version is what is already stored keep their row as it is
+        val lastEntities = HashMap<Int, NoteEntity>()
+        entities.forEach { if (it.id != 0) lastEntities[it.id] = it }
+        val unchanged = lastEntities.values.filter { previous[it.id]?.isSameAs(it) == true }.mapTo(HashSet()) { it.id }
+        val written = entities.indices.filter { entities[it].id == 0 || entities[it].id !in unchanged }
+        val rowIds = upsertNoteRows(written.map { entities[it] })
+        // @Upsert reports -1 for rows that were updated rather than inserted
+        val insertedIds = HashMap<Int, Int>()
+        written.forEachIndexed { i, index -> if (notes[index].id == 0) insertedIds[index] = rowIds[i].toInt() }
+        val ids = notes.mapIndexed { i, note -> if (note.id == 0) insertedIds.getValue(i) else note.id }
+
+        // An id listed twice ends up with its last version, so only that one holds a reference
+        val finalHashes = LinkedHashMap<Int, String>()
+        ids.forEachIndexed { i, id -> finalHashes[id] = entities[i].contentHash }
+        val contentByHash = HashMap<String, String>()
+        entities.forEachIndexed { i, entity -> contentByHash[entity.contentHash] = notes[i].content }
+        acquireBodies(finalHashes.filter { (id, hash) -> previous[id]?.hash != hash }.values.toList()) {
+            contentByHash.getValue(it)
+        }
+        // Text each existing note is indexed under, read before replaced bodies are released
+        val indexed = ArrayList<NoteSearchText>()
+        val alreadyIndexed = HashSet<Int>()
+        for ((id, ref) in previous) {
+            val newHash = finalHashes.getValue(id)
+            if (ref.hash == newHash) {
+                if (ref.isIndexedAs(lastEntities.getValue(id))) alreadyIndexed += id
+                else indexed += NoteSearchText(id, ref.title, contentByHash.getValue(newHash))
+                continue
+            }
+            val oldContent = getNoteBodyByHash(ref.hash)?.decode()
+            if (oldContent != null) recordRevision(id, oldContent, contentByHash.getValue(newHash), now)
+            indexed += NoteSearchText(id, ref.title, oldContent.orEmpty())
+        }
+        releaseBodies(previous.values.filter { finalHashes[it.id] != it.hash }.map { it.hash })
+        notes.map { it.id }.filter { it != 0 && it !in previous }.distinct().forEach { id ->
+            takeArchivedText(id)?.let { indexed += it }
+        }
+
+        unindex(indexed)
+        previous.keys.toList().chunked(MAX_BIND_ARGS).forEach { deleteEdits(it) }
+        // Only the last version of an id listed twice is indexed
+        val finalNotes = LinkedHashMap<Int, Note>()
+        ids.forEachIndexed { i, id -> if (id !in alreadyIndexed) finalNotes[id] = notes[i] }
+        insertFtsRows(finalNotes.map { (id, note) -> NoteFtsEntity(rowId = id, title = note.title, content = note.content) })
+        written(ids)
+        return ids
+    }
+
+    // Batch form of deleteNoteById, one transaction for the whole list.
+    @Transaction
+    open suspend fun deleteNotesByIds(ids: List<Int>) {
+        val now = System.currentTimeMillis()
+        ids.distinct().chunked(MAX_BIND_ARGS).forEach { chunk ->
+            // Only live notes hold a reference; deleting a tombstone again releases nothing
+            val refs = getBodyRefs(chunk)
+            // Unindexing needs the text, so read it before the bodies are released
+            unindex(refs.map { NoteSearchText(it.id, it.title, getNoteBodyByHash(it.hash)?.decode().orEmpty()) } +
+                getArchivedNotes(chunk).map { it.toSearchText() })
+            releaseBodies(refs.map { it.hash })
+            markNotesDeleted(chunk, now)
+            deleteEdits(chunk)
+            // Received notes need no tombstone, so archived ones are simply dropped
+            deleteArchivedNotes(chunk)
+            written(chunk)
+        }
+    }
 
-    @Update
-    suspend fun updateNote(note: NoteEntity)
+    // Dropped from NoteDatabase.noteCache when the outermost transaction ends, whoever called us
+    private fun written(ids: Collection<Int>) = (database as NoteDatabase).onNotesWritten(ids)
+
+    class BodyRef(val id: Int, val hash: String, val title: String, val fromServer: Boolean) {
+        // Same title and body, so the index entry stays valid
+        fun isIndexedAs(entity: NoteEntity): Boolean = hash == entity.contentHash && title == entity.title
+
+        // Nothing a reader sees would change; only the timestamp an editor save stamps differs
+        fun isSameAs(entity: NoteEntity): Boolean = isIndexedAs(entity) && fromServer == entity.fromServer
+    }
+
+    class RevisionHead(val latest: Int?, val lastKeyframe: Int?)
+
+    /** What one [archiveColdNotes] call moved, out of how many notes it looked at, up to [lastId]. */
+    class ArchiveBatch(val archived: List<Int>, val examined: Int, val lastId: Int)
+
+    companion object {
+        // SQLite's default limit on bound variables per statement is 999
+        const val MAX_BIND_ARGS = 900
+
+        // Compressed or file-backed bodies decoded per query by searchNoteSummariesContaining
+        private const val PACKED_SCAN_BATCH = 50
+
+        // Kept as a constant so NoteQueryPlanTest can EXPLAIN the exact statement Room runs.
+        // Tombstones have no body to join. "deleted IN (0, 1)" rather than no condition keeps the
+        // updated_at range on the (from_server, deleted, updated_at) index.
+        const val DIRTY_SINCE_LAST_SYNC_QUERY = """
+            SELECT notes.id, notes.title, notes.timestamp, notes.from_server, notes.deleted, note_bodies.codec, note_bodies.data
+            FROM notes
+            LEFT JOIN note_bodies ON notes.deleted = 0 AND note_bodies.hash = notes.content_hash
+            WHERE notes.from_server = 0 AND notes.deleted IN (0, 1)
+              AND notes.updated_at > IFNULL((SELECT last_synced_at FROM sync_marks WHERE token = :token), 0)
+            ORDER BY notes.updated_at
+        """
+    }
 }
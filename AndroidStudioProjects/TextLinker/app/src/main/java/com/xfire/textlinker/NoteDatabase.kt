@@ -1,17 +1,89 @@
 package com.xfire.textlinker
 
 import android.content.Context
+import android.os.SystemClock
 import android.util.Log
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
 import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
+import com.xfire.textlinker.util.ContentHash
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import java.io.File
 
-@Database(entities = [NoteEntity::class], version = 2)
+@Database(
+    entities = [NoteEntity::class, NoteBodyEntity::class, NoteFtsEntity::class, SyncMarkEntity::class, NoteRevisionEntity::class, NoteEditEntity::class,
+        ArchivedNoteEntity::class, NoteFtsSourceEntity::class],
+    version = 12
+)
 abstract class NoteDatabase : RoomDatabase() {
     abstract fun noteDao(): NoteDao
 
+    // All note mutations go through this one queue so writers don't race for the write connection
+    val writeQueue: NoteWriteQueue by lazy { NoteWriteQueue(this) }
+
+    // Full notes by id for the detail, edit and share screens; kept fresh by NoteDao's write paths
+    val noteCache: NoteCache by lazy { NoteCache(noteDao()) { restoreIfArchived(it) } }
+
+    // Ids NoteDao wrote in the transaction open on this thread
+    private val writtenInTransaction = ThreadLocal<HashSet<Int>>()
+
+    // Substring and typo-tolerant search over every note, built in the background on first use
+    val searchIndexer: NoteSearchIndexer by lazy {
+        val budget = minOf(NoteTrigramIndex.DEFAULT_MAX_BYTES, Runtime.getRuntime().maxMemory() / 8)
+        NoteSearchIndexer(this, indexScope, budget).also { it.start() }
+    }
+
+    /**
+     * Called by NoteDao for every note it writes. Inside a transaction the ids are only dropped from
+     * [noteCache] once it ends: before that, another connection could still read and cache the old
+     * version.
+     */
+    fun onNotesWritten(ids: Collection<Int>) {
+        if (ids.isEmpty()) return
+        if (!inTransaction()) {
+            noteCache.invalidate(ids)
+            return
+        }
+        val pending = writtenInTransaction.get() ?: HashSet<Int>().also { writtenInTransaction.set(it) }
+        pending += ids
+    }
+
+    // Both Room's @Transaction methods and withTransaction end here; a rollback just drops a few extra entries
+    @Suppress("OVERRIDE_DEPRECATION")
+    override fun endTransaction() {
+        super.endTransaction()
+        if (inTransaction()) return
+        val pending = writtenInTransaction.get() ?: return
+        writtenInTransaction.remove()
+        noteCache.invalidate(pending)
+    }
+
+    /** Moves [id] back from the cold archive if it is there. Returns true if it was restored. */
+    suspend fun restoreIfArchived(id: Int): Boolean =
+        noteDao().isArchived(id) && writeQueue.restore(id).await() == id
+
+    /**
+     * Moves received notes not opened or changed since [cutoff] to the cold archive, one write-queue
+     * commit per batch so list reads and other writes interleave. Returns how many were moved.
+     * Batches walk forward by id, so notes left behind for an unreadable body are passed over
+     * rather than filling every batch.
+     */
+    suspend fun archiveColdNotes(cutoff: Long): Int {
+        var total = 0
+        var afterId = 0
+        while (true) {
+            val batch = writeQueue.archiveCold(cutoff, afterId, ARCHIVE_BATCH_SIZE).await()
+            total += batch.archived.size
+            if (batch.examined < ARCHIVE_BATCH_SIZE) return total
+            afterId = batch.lastId
+        }
+    }
+
     companion object {
         @Volatile private var instance: NoteDatabase? = null
 
@@ -21,68 +93,297 @@ abstract class NoteDatabase : RoomDatabase() {
             }
         }
 
+        // Adds the external-content FTS index and the triggers Room generates to keep it in sync
+        private val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `notes_fts` USING FTS4(`title` TEXT NOT NULL, `content` TEXT NOT NULL, content=`notes`)")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_notes_fts_BEFORE_UPDATE BEFORE UPDATE ON `notes` BEGIN DELETE FROM `notes_fts` WHERE `docid`=OLD.`rowid`; END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_notes_fts_BEFORE_DELETE BEFORE DELETE ON `notes` BEGIN DELETE FROM `notes_fts` WHERE `docid`=OLD.`rowid`; END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_notes_fts_AFTER_UPDATE AFTER UPDATE ON `notes` BEGIN INSERT INTO `notes_fts`(`docid`, `title`, `content`) VALUES (NEW.`rowid`, NEW.`title`, NEW.`content`); END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_notes_fts_AFTER_INSERT AFTER INSERT ON `notes` BEGIN INSERT INTO `notes_fts`(`docid`, `title`, `content`) VALUES (NEW.`rowid`, NEW.`title`, NEW.`content`); END")
+                // Index the notes that already exist
+                db.execSQL("INSERT INTO notes_fts(notes_fts) VALUES('rebuild')")
+            }
+        }
+
+        // Moves bodies into note_bodies, keeps only length/preview on the hot notes row,
+        // and turns notes_fts into a standalone index since its content table no longer has the body
+        private val MIGRATION_3_4 = object : Migration(3, 4) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS `note_bodies` (`note_id` INTEGER NOT NULL, `content` TEXT NOT NULL, PRIMARY KEY(`note_id`), FOREIGN KEY(`note_id`) REFERENCES `notes`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )")
+                db.execSQL("INSERT INTO note_bodies (note_id, content) SELECT id, content FROM notes")
+
+                db.execSQL("CREATE TABLE IF NOT EXISTS `notes_new` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `title` TEXT NOT NULL, `timestamp` INTEGER NOT NULL, `from_server` INTEGER NOT NULL DEFAULT 0, `content_length` INTEGER NOT NULL DEFAULT 0, `preview` TEXT NOT NULL DEFAULT '')")
+                db.execSQL("INSERT INTO notes_new (id, title, timestamp, from_server, content_length, preview) SELECT id, title, timestamp, from_server, length(content), substr(content, 1, ${Note.PREVIEW_LENGTH}) FROM notes")
+
+                db.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_notes_fts_BEFORE_UPDATE")
+                db.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_notes_fts_BEFORE_DELETE")
+                db.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_notes_fts_AFTER_UPDATE")
+                db.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_notes_fts_AFTER_INSERT")
+                db.execSQL("DROP TABLE IF EXISTS notes_fts")
+
+                db.execSQL("DROP TABLE notes")
+                db.execSQL("ALTER TABLE notes_new RENAME TO notes")
+
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `notes_fts` USING FTS4(`title` TEXT NOT NULL, `content` TEXT NOT NULL)")
+                db.execSQL("INSERT INTO notes_fts (docid, title, content) SELECT notes.id, notes.title, note_bodies.content FROM notes JOIN note_bodies ON note_bodies.note_id = notes.id")
+            }
+        }
+
+        // Change tracking for sync: updated_at, content_hash, sync_state, a soft-delete tombstone,
+        // matching indices and the per-token sync watermark table
+        private val MIGRATION_4_5 = object : Migration(4, 5) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE notes ADD COLUMN updated_at INTEGER NOT NULL DEFAULT 0")
+                db.execSQL("ALTER TABLE notes ADD COLUMN content_hash TEXT NOT NULL DEFAULT ''")
+                db.execSQL("ALTER TABLE notes ADD COLUMN sync_state INTEGER NOT NULL DEFAULT 0")
+                db.execSQL("ALTER TABLE notes ADD COLUMN deleted INTEGER NOT NULL DEFAULT 0")
+                db.execSQL("UPDATE notes SET updated_at = timestamp, sync_state = CASE WHEN from_server = 0 THEN ${NoteEntity.SYNC_STATE_DIRTY} ELSE ${NoteEntity.SYNC_STATE_SYNCED} END")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_notes_from_server_deleted_updated_at` ON `notes` (`from_server`, `deleted`, `updated_at`)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_notes_sync_state_updated_at` ON `notes` (`sync_state`, `updated_at`)")
+                db.execSQL("CREATE TABLE IF NOT EXISTS `sync_marks` (`token` TEXT NOT NULL, `last_synced_at` INTEGER NOT NULL, PRIMARY KEY(`token`))")
+
+                // SQLite has no SHA-256, so hash existing bodies here once
+                val cursor = db.query("SELECT note_id, content FROM note_bodies")
+                cursor.use {
+                    while (it.moveToNext()) {
+                        db.execSQL(
+                            "UPDATE notes SET content_hash = ? WHERE id = ?",
+                            arrayOf<Any>(ContentHash.sha256(it.getString(1)), it.getInt(0))
+                        )
+                    }
+                }
+            }
+        }
+
+        // Stores bodies as (codec, data) so large ones can be Deflate-compressed at rest
+        private val MIGRATION_5_6 = object : Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS `note_bodies_new` (`note_id` INTEGER NOT NULL, `codec` INTEGER NOT NULL, `data` BLOB NOT NULL, PRIMARY KEY(`note_id`), FOREIGN KEY(`note_id`) REFERENCES `notes`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )")
+                val cursor = db.query("SELECT note_id, content FROM note_bodies")
+                cursor.use {
+                    while (it.moveToNext()) {
+                        val encoded = NoteBodyCodec.encode(it.getString(1))
+                        db.execSQL(
+                            "INSERT INTO note_bodies_new (note_id, codec, data) VALUES (?, ?, ?)",
+                            arrayOf<Any>(it.getInt(0), encoded.codec, encoded.data)
+                        )
+                    }
+                }
+                db.execSQL("DROP TABLE note_bodies")
+                db.execSQL("ALTER TABLE note_bodies_new RENAME TO note_bodies")
+            }
+        }
+
+        // Re-keys note_bodies by content hash so identical bodies are stored once, with a
+        // reference count per body. Tombstones give up their reference.
+        private val MIGRATION_6_7 = object : Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS `note_bodies_new` (`hash` TEXT NOT NULL, `codec` INTEGER NOT NULL, `data` BLOB NOT NULL, `ref_count` INTEGER NOT NULL, PRIMARY KEY(`hash`))")
+                db.execSQL("UPDATE notes SET content_hash = '' WHERE deleted = 1")
+                db.execSQL("INSERT OR IGNORE INTO note_bodies_new (hash, codec, data, ref_count) SELECT notes.content_hash, note_bodies.codec, note_bodies.data, 0 FROM notes JOIN note_bodies ON note_bodies.note_id = notes.id WHERE notes.deleted = 0")
+                db.execSQL("UPDATE note_bodies_new SET ref_count = (SELECT COUNT(*) FROM notes WHERE notes.content_hash = note_bodies_new.hash AND notes.deleted = 0)")
+                db.execSQL("DROP TABLE note_bodies")
+                db.execSQL("ALTER TABLE note_bodies_new RENAME TO note_bodies")
+            }
+        }
+
+        // Revision history: keyframes plus binary deltas per note
+        private val MIGRATION_7_8 = object : Migration(7, 8) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS `note_revisions` (`note_id` INTEGER NOT NULL, `revision` INTEGER NOT NULL, `keyframe` INTEGER NOT NULL, `codec` INTEGER NOT NULL, `data` BLOB NOT NULL, `created_at` INTEGER NOT NULL, PRIMARY KEY(`note_id`, `revision`), FOREIGN KEY(`note_id`) REFERENCES `notes`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )")
+            }
+        }
+
+        // Append-only autosave journal for the note editor
+        private val MIGRATION_8_9 = object : Migration(8, 9) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS `note_edits` (`seq` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `note_id` INTEGER NOT NULL, `base_hash` TEXT NOT NULL, `ops` BLOB NOT NULL, `created_at` INTEGER NOT NULL, FOREIGN KEY(`note_id`) REFERENCES `notes`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_note_edits_note_id_seq` ON `note_edits` (`note_id`, `seq`)")
+            }
+        }
+
+        // Cold-archive tier for idle received notes, plus the opened_at column that decides what is idle.
+        // Existing notes count as opened now so nothing is archived straight after the upgrade.
+        private val MIGRATION_9_10 = object : Migration(9, 10) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE notes ADD COLUMN opened_at INTEGER NOT NULL DEFAULT 0")
+                db.execSQL("UPDATE notes SET opened_at = CAST(strftime('%s', 'now') AS INTEGER) * 1000")
+                db.execSQL("CREATE TABLE IF NOT EXISTS `notes_archive` (`id` INTEGER NOT NULL, `title` TEXT NOT NULL, `timestamp` INTEGER NOT NULL, `from_server` INTEGER NOT NULL, `content_length` INTEGER NOT NULL, `preview` TEXT NOT NULL, `updated_at` INTEGER NOT NULL, `codec` INTEGER NOT NULL, `data` BLOB NOT NULL, `archived_at` INTEGER NOT NULL, PRIMARY KEY(`id`))")
+            }
+        }
+
+        // Re-tokenizes notes_fts with unicode61; the default 'simple' tokenizer only folds ASCII case
+        private val MIGRATION_10_11 = object : Migration(10, 11) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `notes_fts_new` USING FTS4(`title` TEXT NOT NULL, `content` TEXT NOT NULL, tokenize=unicode61)")
+                db.execSQL("INSERT INTO notes_fts_new (docid, title, content) SELECT docid, title, content FROM notes_fts")
+                db.execSQL("DROP TABLE notes_fts")
+                db.execSQL("ALTER TABLE notes_fts_new RENAME TO notes_fts")
+            }
+        }
+
+        // Makes notes_fts an external-content index over the (empty) notes_fts_source table, so the
+        // only copy of a body's text is the one in note_bodies or notes_archive
+        private val MIGRATION_11_12 = object : Migration(11, 12) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS `notes_fts_source` (`id` INTEGER NOT NULL, `title` TEXT NOT NULL, `content` TEXT NOT NULL, PRIMARY KEY(`id`))")
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `notes_fts_new` USING FTS4(`title` TEXT NOT NULL, `content` TEXT NOT NULL, tokenize=unicode61, content=`notes_fts_source`)")
+                db.execSQL("INSERT INTO notes_fts_new (docid, title, content) SELECT docid, title, content FROM notes_fts")
+                db.execSQL("DROP TABLE notes_fts")
+                db.execSQL("ALTER TABLE notes_fts_new RENAME TO notes_fts")
+            }
+        }
+
+        // Every migration, oldest first; also run by NoteMigrationTest
+        internal val MIGRATIONS = arrayOf(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7,
+            MIGRATION_7_8, MIGRATION_8_9, MIGRATION_9_10, MIGRATION_10_11, MIGRATION_11_12)
+
+        // Room mirrors a content entity into its FTS table with triggers. notes_fts_source only ever
+        // holds text being removed from the index, so those triggers would undo every delete.
+        private fun dropFtsSyncTriggers(db: SupportSQLiteDatabase) {
+            for (suffix in listOf("BEFORE_UPDATE", "BEFORE_DELETE", "AFTER_UPDATE", "AFTER_INSERT")) {
+                db.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_notes_fts_$suffix")
+            }
+        }
+
         fun getDatabase(context: Context): NoteDatabase =
             instance ?: synchronized(this) {
+                // Bodies over NoteBodyFiles.FILE_THRESHOLD are stored here instead of in note_bodies.data
+                NoteBodyFiles.init(File(context.applicationContext.filesDir, "note_bodies"))
                 instance ?: Room.databaseBuilder(
                     context.applicationContext,
                     NoteDatabase::class.java,
                     "notes_db"
-                ).addMigrations(MIGRATION_1_2)
+                ).addMigrations(*MIGRATIONS)
+                 // WAL lets list/search reads run while the write queue commits
+                 .setJournalMode(JournalMode.WRITE_AHEAD_LOGGING)
+                 // New files start in incremental auto-vacuum mode, so NoteMaintenance never has to convert them.
+                 // Per-statement latency histograms, dumped with QueryStats.dump(); debug builds only
+                 .openHelperFactory(
+                     if (BuildConfig.DEBUG) InstrumentedOpenHelperFactory(AutoVacuumOpenHelperFactory())
+                     else AutoVacuumOpenHelperFactory()
+                 )
                  .addCallback(object : RoomDatabase.Callback() {
+                    override fun onCreate(db: SupportSQLiteDatabase) {
+                        super.onCreate(db)
+                        dropFtsSyncTriggers(db)
+                    }
+
                     override fun onOpen(db: SupportSQLiteDatabase) {
                         super.onOpen(db)
-                        // Verify the schema after database is opened
-                        verifySchema(db)
+                        // Verify the schema once per schema version, not on every open
+                        verifySchemaOnce(db)
                     }
                 })
                  .build().also { instance = it }
             }
 
-        private fun verifySchema(db: SupportSQLiteDatabase) {
-            try {
-                // Check if the from_server column exists and has the correct default value
-                val cursor = db.query("PRAGMA table_info(notes)")
-                var hasFromServerColumn = false
-                var hasCorrectDefault = false
-                
-                while (cursor.moveToNext()) {
-                    val nameIndex = cursor.getColumnIndex("name")
-                    val dfltValueIndex = cursor.getColumnIndex("dflt_value")
-                    
-                    if (nameIndex >= 0 && cursor.getString(nameIndex) == "from_server") {
-                        hasFromServerColumn = true
-                        if (dfltValueIndex >= 0) {
-                            val defaultValue = cursor.getString(dfltValueIndex)
-                            hasCorrectDefault = defaultValue == "0"
-                            Log.d("NoteDatabase", "Found from_server column with default value: $defaultValue")
-                        }
+        private val warmUpScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+        private val indexScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+        // Time from warm-up start to the first list query returning, -1 until measured
+        @Volatile var openToFirstQueryMs: Long = -1L
+            private set
+
+        /**
+         * Opens the database (migrations, WAL setup) and runs the first list query off the main thread
+         * so the first screen doesn't pay for it. Safe to call more than once.
+         */
+        fun warmUp(context: Context) {
+            warmUpScope.launch {
+                try {
+                    val start = SystemClock.elapsedRealtime()
+                    val database = getDatabase(context)
+                    database.openHelper.writableDatabase
+                    val opened = SystemClock.elapsedRealtime()
+                    database.noteDao().getNoteSummariesBefore(Int.MAX_VALUE, 50)
+                    val done = SystemClock.elapsedRealtime()
+                    openToFirstQueryMs = done - start
+                    Log.d("NoteDatabase", "Warm-up: open=${opened - start}ms firstQuery=${done - opened}ms total=${openToFirstQueryMs}ms")
+                    // Journals left by an editor that never saved stay unsaved edits, replayed on the next
+                    // open; only rows no body can take any more are dropped
+                    val stale = database.noteDao().deleteStaleEdits()
+                    if (stale > 0) Log.d("NoteDatabase", "Dropped $stale stale edit journal rows")
+                    // Starts building the search indexes so they are ready by the first search
+                    database.searchIndexer
+                    val archiveAfterDays = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                        .getInt(KEY_ARCHIVE_AFTER_DAYS, DEFAULT_ARCHIVE_AFTER_DAYS)
+                    if (archiveAfterDays > 0) {
+                        val archived = database.archiveColdNotes(System.currentTimeMillis() - archiveAfterDays * DAY_MS)
+                        Log.d("NoteDatabase", "Archived $archived received notes idle for $archiveAfterDays days")
                     }
+                } catch (e: Exception) {
+                    Log.e("NoteDatabase", "Error warming up database", e)
                 }
-                cursor.close()
-                
-                if (!hasFromServerColumn) {
-                    Log.e("NoteDatabase", "ERROR: from_server column is missing from the notes table!")
-                } else if (!hasCorrectDefault) {
-                    Log.e("NoteDatabase", "ERROR: from_server column has incorrect default value!")
-                } else {
-                    Log.d("NoteDatabase", "Schema verification passed: from_server column exists with default 0")
-                }
-                
-                // Log all notes to verify their from_server values
-                val notesCursor = db.query("SELECT id, title, from_server FROM notes")
-                Log.d("NoteDatabase", "Found ${notesCursor.count} notes in the database:")
-                
-                while (notesCursor.moveToNext()) {
-                    val id = notesCursor.getLong(notesCursor.getColumnIndexOrThrow("id"))
-                    val title = notesCursor.getString(notesCursor.getColumnIndexOrThrow("title"))
-                    val fromServer = notesCursor.getInt(notesCursor.getColumnIndexOrThrow("from_server")) != 0
-                    Log.d("NoteDatabase", "Note id=$id, title='${title.take(20)}...', fromServer=$fromServer")
+            }
+        }
+
+        private fun verifySchemaOnce(db: SupportSQLiteDatabase) {
+            try {
+                db.execSQL("CREATE TABLE IF NOT EXISTS $META_TABLE (key TEXT PRIMARY KEY NOT NULL, value TEXT NOT NULL)")
+                val verifiedVersion = db.query(
+                    "SELECT value FROM $META_TABLE WHERE key = ?", arrayOf<Any>(KEY_SCHEMA_VERIFIED)
+                ).use { if (it.moveToFirst()) it.getString(0).toIntOrNull() else null }
+                if (verifiedVersion == db.version) return
+
+                if (verifySchema(db)) {
+                    db.execSQL(
+                        "INSERT OR REPLACE INTO $META_TABLE (key, value) VALUES (?, ?)",
+                        arrayOf<Any>(KEY_SCHEMA_VERIFIED, db.version.toString())
+                    )
                 }
-                notesCursor.close()
-                
             } catch (e: Exception) {
                 Log.e("NoteDatabase", "Error verifying schema", e)
             }
         }
+
+        // Checks column metadata only; never reads note rows.
+        private fun verifySchema(db: SupportSQLiteDatabase): Boolean {
+            // Check if the from_server column exists and has the correct default value
+            val cursor = db.query("PRAGMA table_info(notes)")
+            val columns = mutableSetOf<String>()
+            var hasCorrectDefault = false
+
+            while (cursor.moveToNext()) {
+                val nameIndex = cursor.getColumnIndex("name")
+                val dfltValueIndex = cursor.getColumnIndex("dflt_value")
+                val name = if (nameIndex >= 0) cursor.getString(nameIndex) else continue
+                columns += name
+
+                if (name == "from_server" && dfltValueIndex >= 0) {
+                    val defaultValue = cursor.getString(dfltValueIndex)
+                    hasCorrectDefault = defaultValue == "0"
+                    Log.d("NoteDatabase", "Found from_server column with default value: $defaultValue")
+                }
+            }
+            cursor.close()
+
+            val missing = listOf("from_server", "content_length", "updated_at", "sync_state", "deleted") - columns
+            return when {
+                missing.isNotEmpty() -> {
+                    Log.e("NoteDatabase", "ERROR: notes table is missing columns $missing!")
+                    false
+                }
+                !hasCorrectDefault -> {
+                    Log.e("NoteDatabase", "ERROR: from_server column has incorrect default value!")
+                    false
+                }
+                else -> {
+                    Log.d("NoteDatabase", "Schema verification passed for version ${db.version}")
+                    true
+                }
+            }
+        }
+
+        private const val META_TABLE = "db_meta"
+
+        // Received notes not opened for this many days move to notes_archive; 0 turns archival off
+        const val PREFS_NAME = "textlinker_prefs"
+        const val KEY_ARCHIVE_AFTER_DAYS = "archive_after_days"
+        const val DEFAULT_ARCHIVE_AFTER_DAYS = 90
+        private const val ARCHIVE_BATCH_SIZE = 500
+        private const val DAY_MS = 24L * 60 * 60 * 1000
+        private const val KEY_SCHEMA_VERIFIED = "schema_verified_version"
     }
 }
@@ -0,0 +1,162 @@
+package com.xfire.textlinker
+
+import java.io.ByteArrayOutputStream
+
+/**
+ * Binary diff between two revisions of a note body, stored in note_revisions.data.
+ *
+ * A delta is the target length followed by COPY (offset, length into the base) and ADD (literal
+ * bytes) ops, all lengths as unsigned varints. The common prefix and suffix are copied directly;
+ * the changed middle is matched against [BLOCK]-byte blocks of the base, so moved or repeated
+ * text is still copied instead of stored again.
+ */
+object NoteDelta {
+    private const val OP_COPY = 0
+    private const val OP_ADD = 1
+    private const val BLOCK = 16
+
+    fun diff(base: ByteArray, target: ByteArray): ByteArray {
+        val out = ByteArrayOutputStream(64)
+        writeVarint(out, target.size)
+
+        val maxCommon = minOf(base.size, target.size)
+        var prefix = 0
+        while (prefix < maxCommon && base[prefix] == target[prefix]) prefix++
+        var suffix = 0
+        while (suffix < maxCommon - prefix &&
+            base[base.size - 1 - suffix] == target[target.size - 1 - suffix]) suffix++
+
+        if (prefix > 0) writeCopy(out, 0, prefix)
+        diffMiddle(base, prefix, base.size - suffix, target, prefix, target.size - suffix, out)
+        if (suffix > 0) writeCopy(out, base.size - suffix, suffix)
+        return out.toByteArray()
+    }
+
+    fun apply(base: ByteArray, delta: ByteArray): ByteArray {
+        val reader = Reader(delta)
+        val target = ByteArray(reader.varint())
+        var written = 0
+        while (reader.pos < delta.size) {
+            val op = delta[reader.pos++].toInt()
+            val length = reader.varint()
+            when (op) {
+                OP_COPY -> {
+                    val offset = reader.varint()
+                    System.arraycopy(base, offset, target, written, length)
+                }
+                OP_ADD -> {
+                    System.arraycopy(delta, reader.pos, target, written, length)
+                    reader.pos += length
+                }
+                else -> throw IllegalArgumentException("Unknown delta op $op")
+            }
+            written += length
+        }
+        if (written != target.size) throw IllegalArgumentException("Truncated delta")
+        return target
+    }
+
+    private fun diffMiddle(
+        base: ByteArray, baseStart: Int, baseEnd: Int,
+        target: ByteArray, targetStart: Int, targetEnd: Int,
+        out: ByteArrayOutputStream
+    ) {
+        if (targetStart >= targetEnd) return
+        if (baseEnd - baseStart < BLOCK || targetEnd - targetStart < BLOCK) {
+            writeAdd(out, target, targetStart, targetEnd - targetStart)
+            return
+        }
+
+        // Block start offsets in the base, by block hash (first one wins)
+        val blocks = HashMap<Int, Int>()
+        var offset = baseStart
+        while (offset + BLOCK <= baseEnd) {
+            blocks.putIfAbsent(hash(base, offset), offset)
+            offset += BLOCK
+        }
+
+        var literalStart = targetStart
+        var i = targetStart
+        var h = if (i + BLOCK <= targetEnd) hash(target, i) else 0
+        while (i + BLOCK <= targetEnd) {
+            val candidate = blocks[h]
+            if (candidate != null && regionsEqual(base, candidate, target, i, BLOCK)) {
+                // Grow the match both ways, but not back into literals already emitted
+                var start = candidate
+                var targetPos = i
+                while (start > baseStart && targetPos > literalStart && base[start - 1] == target[targetPos - 1]) {
+                    start--
+                    targetPos--
+                }
+                var end = candidate + BLOCK
+                var targetEndPos = i + BLOCK
+                while (end < baseEnd && targetEndPos < targetEnd && base[end] == target[targetEndPos]) {
+                    end++
+                    targetEndPos++
+                }
+                if (targetPos > literalStart) writeAdd(out, target, literalStart, targetPos - literalStart)
+                writeCopy(out, start, end - start)
+                i = targetEndPos
+                literalStart = i
+                if (i + BLOCK <= targetEnd) h = hash(target, i)
+                continue
+            }
+            if (i + BLOCK < targetEnd) h = roll(h, target[i], target[i + BLOCK])
+            i++
+        }
+        if (literalStart < targetEnd) writeAdd(out, target, literalStart, targetEnd - literalStart)
+    }
+
+    // Polynomial rolling hash over BLOCK bytes; overflow is intended
+    private const val PRIME = 31
+    private val TOP_POWER = (1 until BLOCK).fold(1) { acc, _ -> acc * PRIME }
+
+    private fun hash(bytes: ByteArray, offset: Int): Int {
+        var h = 0
+        for (k in offset until offset + BLOCK) h = h * PRIME + bytes[k]
+        return h
+    }
+
+    private fun roll(h: Int, outgoing: Byte, incoming: Byte): Int = (h - outgoing * TOP_POWER) * PRIME + incoming
+
+    private fun regionsEqual(a: ByteArray, aOffset: Int, b: ByteArray, bOffset: Int, length: Int): Boolean {
+        for (k in 0 until length) if (a[aOffset + k] != b[bOffset + k]) return false
+        return true
+    }
+
+    private fun writeCopy(out: ByteArrayOutputStream, offset: Int, length: Int) {
+        out.write(OP_COPY)
+        writeVarint(out, length)
+        writeVarint(out, offset)
+    }
+
+    private fun writeAdd(out: ByteArrayOutputStream, bytes: ByteArray, offset: Int, length: Int) {
+        out.write(OP_ADD)
+        writeVarint(out, length)
+        out.write(bytes, offset, length)
+    }
+
+    private fun writeVarint(out: ByteArrayOutputStream, value: Int) {
+        var v = value
+        while (v and 0x7F.inv() != 0) {
+            out.write((v and 0x7F) or 0x80)
+            v = v ushr 7
+        }
+        out.write(v)
+    }
+
+    private class Reader(val bytes: ByteArray) {
+        var pos = 0
+
+        fun varint(): Int {
+            var result = 0
+            var shift = 0
+            while (true) {
+                val b = bytes[pos++].toInt()
+                result = result or ((b and 0x7F) shl shift)
+                if (b and 0x80 == 0) return result
+                shift += 7
+            }
+        }
+    }
+}
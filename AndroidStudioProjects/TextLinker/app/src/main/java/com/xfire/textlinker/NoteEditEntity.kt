@@ -0,0 +1,37 @@
+package com.xfire.textlinker
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.ForeignKey
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+// One autosaved batch of editor ops (EditJournal.encode) for a note, appended in seq order.
+// base_hash is the content_hash of the stored body the ops apply to; rows whose base no longer
+// matches were superseded by a save and are ignored on replay.
+@Entity(
+    tableName = "note_edits",
+    foreignKeys = [ForeignKey(
+        entity = NoteEntity::class,
+        parentColumns = ["id"],
+        childColumns = ["note_id"],
+        onDelete = ForeignKey.CASCADE
+    )],
+    indices = [Index(value = ["note_id", "seq"])]
+)
+class NoteEditEntity(
+    @PrimaryKey(autoGenerate = true) val seq: Long = 0,
+    @ColumnInfo(name = "note_id") val noteId: Int,
+    @ColumnInfo(name = "base_hash") val baseHash: String,
+    val ops: ByteArray,
+    @ColumnInfo(name = "created_at") val createdAt: Long
+)
+
+// A note as the editor should show it: the stored note with its journal replayed on top.
+class EditableNote(
+    val note: Note,
+    // content_hash of the stored body; new journal rows are appended against it
+    val baseHash: String,
+    // Encoded size of the replayed journal, counted towards the compaction threshold
+    val journalBytes: Int
+)
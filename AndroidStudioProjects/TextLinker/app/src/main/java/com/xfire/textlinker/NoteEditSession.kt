@@ -0,0 +1,89 @@
+package com.xfire.textlinker
+
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+
+/**
+ * Autosave for one note open in the editor.
+ *
+ * Edits are coalesced in memory and appended to the note's journal [debounceMs] after typing
+ * stops (or on [flushNow]). Once the journal passes [EditJournal.COMPACT_THRESHOLD_BYTES] it is
+ * folded into the stored body through the write queue, off the main thread. Appends and
+ * compaction run one at a time, so ops are never written against a body they weren't based on.
+ */
+class NoteEditSession(
+    val noteId: Int,
+    private var baseHash: String,
+    private var journalBytes: Int,
+    private val noteDao: NoteDao,
+    private val writeQueue: NoteWriteQueue,
+    // Outlives the editor screen so a flush started on the way out still completes
+    private val scope: CoroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.IO),
+    private val debounceMs: Long = 1000
+) {
+    private val pending = ArrayList<EditJournal.Op>()
+    private val mutex = Mutex()
+    private var flushJob: Job? = null
+    @Volatile var isClosed = false
+        private set
+
+    /** Records one edit as reported by a TextWatcher. Call on the main thread. */
+    fun record(field: Int, start: Int, removed: Int, inserted: CharSequence) {
+        if (isClosed) return
+        synchronized(pending) {
+            EditJournal.coalesce(pending, EditJournal.Op(field, start, removed, inserted.toString()))
+        }
+        flushJob?.cancel()
+        flushJob = scope.launch {
+            delay(debounceMs)
+            flush()
+        }
+    }
+
+    /** Writes pending edits now, e.g. when the editor goes to the background. */
+    fun flushNow(): Job {
+        flushJob?.cancel()
+        flushJob = null
+        return scope.launch { flush() }
+    }
+
+    /**
+     * Stops autosaving and drops unwritten edits, for when the note is about to be saved in full.
+     * The returned job completes once an append already in flight has landed, so the full save
+     * can be ordered after it.
+     */
+    fun close(): Job {
+        isClosed = true
+        flushJob?.cancel()
+        synchronized(pending) { pending.clear() }
+        return scope.launch { mutex.withLock { } }
+    }
+
+    // Not cancellable: the ops have already left the pending list
+    private suspend fun flush() = withContext(NonCancellable + Dispatchers.IO) {
+        mutex.withLock {
+            val ops = synchronized(pending) { pending.toList().also { pending.clear() } }
+            if (ops.isEmpty() || isClosed) return@withLock
+            try {
+                journalBytes += noteDao.appendEdits(noteId, baseHash, ops)
+                if (journalBytes >= EditJournal.COMPACT_THRESHOLD_BYTES) {
+                    writeQueue.compact(noteId).await()
+                    baseHash = noteDao.getContentHash(noteId) ?: baseHash
+                    Log.d("NoteEditSession", "Compacted ${journalBytes}B journal for note $noteId")
+                    journalBytes = 0
+                }
+            } catch (e: Exception) {
+                Log.e("NoteEditSession", "Error autosaving ${ops.size} edits for note $noteId", e)
+            }
+        }
+    }
+}
@@ -2,13 +2,36 @@ package com.xfire.textlinker
 
 import androidx.room.ColumnInfo
 import androidx.room.Entity
+import androidx.room.Index
 import androidx.room.PrimaryKey
 
-@Entity(tableName = "notes")
+// Hot metadata row. The body lives in note_bodies so list and search scans stay on small pages.
+@Entity(
+    tableName = "notes",
+    indices = [
+        // "local notes changed since X" for sync uploads
+        Index(value = ["from_server", "deleted", "updated_at"]),
+        // pending-sync counts and lookups
+        Index(value = ["sync_state", "updated_at"])
+    ]
+)
 data class NoteEntity(
     @PrimaryKey(autoGenerate = true) val id: Int = 0,
     val title: String = "",
-    val content: String = "",
     val timestamp: Long = System.currentTimeMillis(),
-    @ColumnInfo(name = "from_server", defaultValue = "0") val fromServer: Boolean = false
-)
+    @ColumnInfo(name = "from_server", defaultValue = "0") val fromServer: Boolean = false,
+    @ColumnInfo(name = "content_length", defaultValue = "0") val contentLength: Int = 0,
+    @ColumnInfo(defaultValue = "''") val preview: String = "",
+    @ColumnInfo(name = "updated_at", defaultValue = "0") val updatedAt: Long = System.currentTimeMillis(),
+    @ColumnInfo(name = "content_hash", defaultValue = "''") val contentHash: String = "",
+    @ColumnInfo(name = "sync_state", defaultValue = "0") val syncState: Int = SYNC_STATE_SYNCED,
+    // Soft-delete tombstone so deletions are still visible to sync
+    @ColumnInfo(defaultValue = "0") val deleted: Boolean = false,
+    // Last time the note was opened or saved; received notes idle past the archive window go cold
+    @ColumnInfo(name = "opened_at", defaultValue = "0") val openedAt: Long = System.currentTimeMillis()
+) {
+    companion object {
+        const val SYNC_STATE_SYNCED = 0
+        const val SYNC_STATE_DIRTY = 1
+    }
+}
@@ -0,0 +1,28 @@
+package com.xfire.textlinker
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+import androidx.room.PrimaryKey
+
+// FTS index over title and body, keyed by note id (rowid). Written by NoteDao.saveNote.
+// It keeps no text of its own: its content table, notes_fts_source, is empty except while
+// NoteDao stages a note's old text to remove its entries. Search only reads rowid and matchinfo().
+// unicode61 folds case and strips diacritics beyond ASCII, so "uber" and "über" both find "Über".
+@Fts4(tokenizer = FtsOptions.TOKENIZER_UNICODE61, contentEntity = NoteFtsSourceEntity::class)
+@Entity(tableName = "notes_fts")
+data class NoteFtsEntity(
+    @PrimaryKey @ColumnInfo(name = "rowid") val rowId: Int = 0,
+    val title: String = "",
+    val content: String = ""
+)
+
+// Content table of notes_fts. FTS4 reads a row's old text from here when it is deleted, so
+// NoteDao fills it just for the delete and empties it again; the text lives in the body store.
+@Entity(tableName = "notes_fts_source")
+class NoteFtsSourceEntity(
+    @PrimaryKey val id: Int,
+    val title: String,
+    val content: String
+)
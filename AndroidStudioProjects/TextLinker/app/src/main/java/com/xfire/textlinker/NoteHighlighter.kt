@@ -0,0 +1,61 @@
+package com.xfire.textlinker
+
+import android.graphics.Typeface
+import android.text.Spannable
+import android.text.SpannableStringBuilder
+import android.text.style.BackgroundColorSpan
+import android.text.style.RelativeSizeSpan
+import android.text.style.StyleSpan
+import androidx.core.text.PrecomputedTextCompat
+
+/**
+ * Row text for search results: the title with its matches marked and, when only the body
+ * matched, an excerpt of the preview around the first match on a second line.
+ *
+ * Meant for a worker thread. With params the text is measured there too, as a
+ * [PrecomputedTextCompat], so binding a row only attaches it.
+ */
+object NoteHighlighter {
+    private const val SNIPPET_BEFORE = 24
+    private const val SNIPPET_LENGTH = 80
+    private const val SNIPPET_SIZE = 0.85f
+    private const val HIGHLIGHT_COLOR = 0x66FFFFFF
+
+    /** Null when neither the title nor the preview matches, e.g. for a typo-tolerant suggestion. */
+    fun highlight(note: NoteSummary, query: String, params: PrecomputedTextCompat.Params?): CharSequence? {
+        val text = SpannableStringBuilder(note.title)
+        val titleRanges = NoteSearch.matchRanges(note.title, query)
+        if (titleRanges.isNotEmpty()) {
+            mark(text, titleRanges, 0, 0, note.title.length)
+        } else {
+            val preview = note.preview
+            val previewRanges = NoteSearch.matchRanges(preview, query)
+            if (previewRanges.isEmpty()) return null
+            var from = maxOf(0, previewRanges[0] - SNIPPET_BEFORE)
+            var to = minOf(preview.length, from + SNIPPET_LENGTH)
+            // Don't cut a surrogate pair in half at either end
+            if (from > 0 && Character.isLowSurrogate(preview[from])) from--
+            if (to < preview.length && Character.isLowSurrogate(preview[to])) to--
+            text.append('\n')
+            val snippetStart = text.length
+            if (from > 0) text.append('…')
+            val offset = text.length - from
+            text.append(preview.substring(from, to).replace('\n', ' '))
+            if (to < preview.length) text.append('…')
+            text.setSpan(RelativeSizeSpan(SNIPPET_SIZE), snippetStart, text.length, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE)
+            mark(text, previewRanges, offset, from, to)
+        }
+        return if (params != null) PrecomputedTextCompat.create(text, params) else text
+    }
+
+    // Marks the parts of each range that fall within [from, to) of the source, shifted by offset
+    private fun mark(text: SpannableStringBuilder, ranges: IntArray, offset: Int, from: Int, to: Int) {
+        for (i in ranges.indices step 2) {
+            val start = maxOf(ranges[i], from)
+            val end = minOf(ranges[i + 1], to)
+            if (start >= end) continue
+            text.setSpan(BackgroundColorSpan(HIGHLIGHT_COLOR), start + offset, end + offset, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE)
+            text.setSpan(StyleSpan(Typeface.BOLD), start + offset, end + offset, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE)
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.xfire.textlinker
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import androidx.sqlite.db.SupportSQLiteDatabase
+import java.io.File
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Idle-time upkeep for the notes database: purging tombstones whose delete has been uploaded, FTS
+ * segment merging, reclaiming free pages, removing orphaned large-body files, refreshing planner
+ * statistics and truncating the WAL.
+ *
+ * Each task gets a time budget and the run stops early when [run]'s shouldContinue says so (the
+ * device left idle or stopped charging). The outcome of the last run is kept in the app prefs
+ * so a run is skipped if one finished within [MIN_INTERVAL_MS]. A run only counts once at least one
+ * task has completed. Only one run happens at a time in the process; the idle and charging workers
+ * can start together, and the second one skips.
+ */
+class NoteMaintenance(
+    private val context: Context,
+    private val database: NoteDatabase = NoteDatabase.getDatabase(context)
+) {
+    enum class Outcome { COMPLETED, STOPPED, OVER_BUDGET }
+
+    class TaskResult(val name: String, val durationMs: Long, val bytesReclaimed: Long, val outcome: Outcome) {
+        val completed: Boolean get() = outcome == Outcome.COMPLETED
+
+        override fun toString() = "$name ${durationMs}ms reclaimed=${bytesReclaimed}B" + when (outcome) {
+            Outcome.COMPLETED -> ""
+            Outcome.STOPPED -> " (stopped)"
+            Outcome.OVER_BUDGET -> " (over budget)"
+        }
+    }
+
+    private val prefs = context.getSharedPreferences(NoteDatabase.PREFS_NAME, Context.MODE_PRIVATE)
+
+    val lastRunAt: Long get() = prefs.getLong(KEY_LAST_RUN_AT, 0L)
+    val lastReport: String? get() = prefs.getString(KEY_LAST_REPORT, null)
+
+    /**
+     * Runs every task in order. Returns null if another run is in progress, or if a run already
+     * finished within [MIN_INTERVAL_MS] and [force] is false. [charging] allows the one unbudgeted task, converting an old database
+     * file to incremental auto-vacuum. Call off the main thread.
+     */
+    fun run(force: Boolean = false, charging: Boolean = false, shouldContinue: () -> Boolean = { true }): List<TaskResult>? {
+        // Held from the lastRunAt check to its update, so two runs can't both pass the check
+        if (!runLock.tryLock()) return null
+        try {
+            return runLocked(force, charging, shouldContinue)
+        } finally {
+            runLock.unlock()
+        }
+    }
+
+    private fun runLocked(force: Boolean, charging: Boolean, shouldContinue: () -> Boolean): List<TaskResult>? {
+        val now = System.currentTimeMillis()
+        if (!force && now - lastRunAt < MIN_INTERVAL_MS) return null
+        val db = database.openHelper.writableDatabase
+        val results = ArrayList<TaskResult>()
+        for ((name, budgetMs, task) in tasks(charging)) {
+            if (!shouldContinue()) break
+            results += measure(db, name) { task(db, SystemClock.elapsedRealtime() + budgetMs, shouldContinue) }
+        }
+        val report = results.joinToString("; ")
+        // A run stopped before any task finished didn't do the upkeep, so the next chance shouldn't be skipped
+        if (results.none { it.completed }) {
+            Log.d("NoteMaintenance", "Maintenance stopped before any task finished: $report")
+            return results
+        }
+        Log.d("NoteMaintenance", "Maintenance finished: $report")
+        prefs.edit()
+            .putLong(KEY_LAST_RUN_AT, now)
+            .putString(KEY_LAST_REPORT, report)
+            .apply()
+        return results
+    }
+
+    // Purge and merge first so the pages they free are reclaimed, and checkpoint last to truncate what the rest wrote
+    private fun tasks(charging: Boolean): List<Triple<String, Long, (SupportSQLiteDatabase, Long, () -> Boolean) -> Outcome>> = listOf(
+        Triple("tombstones", 2_000L) { _, _, _ -> outcome(purgeTombstones()) },
+        Triple("fts-merge", 5_000L) { db, deadline, shouldContinue -> outcome(mergeFts(db, deadline, shouldContinue)) },
+        Triple("vacuum", 5_000L) { db, deadline, shouldContinue -> reclaimPages(db, deadline, charging, shouldContinue) },
+        Triple("body-files", 2_000L) { db, _, _ -> outcome(sweepBodyFiles(db)) },
+        Triple("analyze", 2_000L) { db, _, _ -> outcome(analyze(db)) },
+        Triple("wal-checkpoint", 2_000L) { db, _, _ -> outcome(checkpoint(db)) }
+    )
+
+    private fun outcome(completed: Boolean) = if (completed) Outcome.COMPLETED else Outcome.STOPPED
+
+    private inline fun measure(db: SupportSQLiteDatabase, name: String, task: () -> Outcome): TaskResult {
+        val sizeBefore = fileBytes(db)
+        val start = SystemClock.elapsedRealtime()
+        val outcome = try {
+            task()
+        } catch (e: Exception) {
+            Log.e("NoteMaintenance", "Maintenance task $name failed", e)
+            Outcome.STOPPED
+        }
+        val duration = SystemClock.elapsedRealtime() - start
+        return TaskResult(name, duration, (sizeBefore - fileBytes(db)).coerceAtLeast(0), outcome)
+    }
+
+    // Kept for TOMBSTONE_RETENTION_MS after the delete, so another token that syncs within that
+    // window still gets it; NoteDao.purgeTombstones keeps any the server hasn't seen yet
+    private fun purgeTombstones(): Boolean {
+        val purged = database.noteDao().purgeTombstones(System.currentTimeMillis() - TOMBSTONE_RETENTION_MS)
+        Log.d("NoteMaintenance", "Purged $purged tombstones")
+        return true
+    }
+
+    /**
+     * Merges notes_fts b-tree segments a step at a time until fully merged or out of budget.
+     * FTS4 signals there is nothing left when a step changes fewer than two rows.
+     */
+    private fun mergeFts(db: SupportSQLiteDatabase, deadline: Long, shouldContinue: () -> Boolean): Boolean {
+        while (SystemClock.elapsedRealtime() < deadline && shouldContinue()) {
+            // total_changes() is per connection, so keep the step and the reads on the write connection
+            db.beginTransaction()
+            val changed = try {
+                val before = longQuery(db, "SELECT total_changes()")
+                db.execSQL("INSERT INTO notes_fts(notes_fts) VALUES('merge=$FTS_MERGE_PAGES,2')")
+                val after = longQuery(db, "SELECT total_changes()")
+                db.setTransactionSuccessful()
+                after - before
+            } finally {
+                db.endTransaction()
+            }
+            if (changed < 2) return true
+        }
+        return false
+    }
+
+    /**
+     * Returns free pages to the file system in small steps. Files created before
+     * [AutoVacuumOpenHelperFactory] aren't in incremental auto-vacuum mode and need one full VACUUM
+     * to switch. That rewrite can't be stopped or bounded, holds the write connection throughout and
+     * needs up to the file's size again in free space, so it only runs [charging], once enough of the
+     * file is free pages to be worth it, and is reported as over budget. Until then SQLite reuses
+     * the free pages for new writes.
+     */
+    private fun reclaimPages(db: SupportSQLiteDatabase, deadline: Long, charging: Boolean, shouldContinue: () -> Boolean): Outcome {
+        if (longQuery(db, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            if (!charging || !worthConverting(db)) return Outcome.COMPLETED
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL")
+            db.execSQL("VACUUM")
+            return Outcome.OVER_BUDGET
+        }
+        while (SystemClock.elapsedRealtime() < deadline && shouldContinue()) {
+            if (longQuery(db, "PRAGMA freelist_count") == 0L) return Outcome.COMPLETED
+            db.query("PRAGMA incremental_vacuum($VACUUM_STEP_PAGES)").use { while (it.moveToNext()) Unit }
+        }
+        return Outcome.STOPPED
+    }
+
+    private fun worthConverting(db: SupportSQLiteDatabase): Boolean {
+        val pages = longQuery(db, "PRAGMA page_count")
+        if (pages == 0L || longQuery(db, "PRAGMA freelist_count").toDouble() / pages < CONVERT_MIN_FREE_SHARE) return false
+        // VACUUM writes a full copy before replacing the original
+        val file = db.path?.let(::File) ?: return false
+        return (file.parentFile?.usableSpace ?: 0L) > 2 * file.length()
+    }
+
+    // Files are referenced by the rows that point at them; anything else was left by a deleted body
+    private fun sweepBodyFiles(db: SupportSQLiteDatabase): Boolean {
+        val referenced = HashSet<String>()
+        db.query("SELECT data FROM note_bodies WHERE codec = ${NoteBodyCodec.CODEC_FILE}").use {
+            while (it.moveToNext()) referenced += String(it.getBlob(0), Charsets.UTF_8)
+        }
+        NoteBodyFiles.sweep(referenced)
+        return true
+    }
+
+    // analysis_limit bounds ANALYZE on big tables (ignored before SQLite 3.32); optimize then
+    // covers whatever else the connection noticed could use fresh statistics
+    private fun analyze(db: SupportSQLiteDatabase): Boolean {
+        db.query("PRAGMA analysis_limit = $ANALYSIS_LIMIT").use { it.moveToNext() }
+        db.execSQL("ANALYZE")
+        db.query("PRAGMA optimize").use { while (it.moveToNext()) Unit }
+        return true
+    }
+
+    // TRUNCATE resets the WAL file to zero bytes; busy = 1 means a reader kept it from finishing
+    private fun checkpoint(db: SupportSQLiteDatabase): Boolean =
+        db.query("PRAGMA wal_checkpoint(TRUNCATE)").use { it.moveToFirst() && it.getInt(0) == 0 }
+
+    private fun longQuery(db: SupportSQLiteDatabase, sql: String): Long =
+        db.query(sql).use { if (it.moveToFirst()) it.getLong(0) else 0L }
+
+    // Database, WAL and large-body files together
+    private fun fileBytes(db: SupportSQLiteDatabase): Long {
+        val bodyFiles = NoteBodyFiles.directory?.listFiles()?.sumOf { it.length() } ?: 0L
+        val path = db.path ?: return bodyFiles
+        return File(path).length() + File("$path-wal").length() + bodyFiles
+    }
+
+    companion object {
+        private val runLock = ReentrantLock()
+
+        const val MIN_INTERVAL_MS = 20L * 60 * 60 * 1000
+        private const val KEY_LAST_RUN_AT = "maintenance_last_run_at"
+        private const val KEY_LAST_REPORT = "maintenance_last_report"
+
+        private const val AUTO_VACUUM_INCREMENTAL = 2L
+        private const val VACUUM_STEP_PAGES = 256
+        private const val CONVERT_MIN_FREE_SHARE = 0.25
+        private const val FTS_MERGE_PAGES = 256
+        private const val ANALYSIS_LIMIT = 1000
+        private const val TOMBSTONE_RETENTION_MS = 30L * 24 * 60 * 60 * 1000
+    }
+}
@@ -0,0 +1,74 @@
+package com.xfire.textlinker
+
+import android.content.Context
+import android.os.Build
+import android.util.Log
+import androidx.work.Constraints
+import androidx.work.CoroutineWorker
+import androidx.work.ExistingPeriodicWorkPolicy
+import androidx.work.PeriodicWorkRequestBuilder
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import androidx.work.workDataOf
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs [NoteMaintenance] once a day when the device is idle or charging. WorkManager constraints
+ * can only be combined with AND, so there is one periodic request per condition; whichever runs
+ * first does the work and the other finds the run in progress or too recent and skips it. Only the charging one
+ * may do the unbudgeted conversion of an old file to incremental auto-vacuum.
+ */
+class NoteMaintenanceWorker(context: Context, params: WorkerParameters) : CoroutineWorker(context, params) {
+
+    override suspend fun doWork(): Result = withContext(Dispatchers.IO) {
+        try {
+            // isStopped flips when the device leaves idle or is unplugged
+            val charging = inputData.getBoolean(KEY_CHARGING, false)
+            val results = NoteMaintenance(applicationContext).run(charging = charging) { !isStopped }
+            if (results == null) Log.d("NoteMaintenanceWorker", "Skipped, maintenance ran recently or is running")
+            Result.success()
+        } catch (e: Exception) {
+            Log.e("NoteMaintenanceWorker", "Error running database maintenance", e)
+            Result.retry()
+        }
+    }
+
+    companion object {
+        private const val WORK_IDLE = "note-maintenance-idle"
+        private const val WORK_CHARGING = "note-maintenance-charging"
+        private const val KEY_CHARGING = "charging"
+
+        /**
+         * Registers the periodic requests. Safe to call on every start; UPDATE keeps the schedule of
+         * existing ones and only brings their constraints and input up to date.
+         */
+        fun schedule(context: Context) {
+            val workManager = WorkManager.getInstance(context)
+            val charging = Constraints.Builder()
+                .setRequiresCharging(true)
+                .setRequiresBatteryNotLow(true)
+                .build()
+            workManager.enqueueUniquePeriodicWork(
+                WORK_CHARGING,
+                ExistingPeriodicWorkPolicy.UPDATE,
+                PeriodicWorkRequestBuilder<NoteMaintenanceWorker>(1, TimeUnit.DAYS)
+                    .setConstraints(charging)
+                    .setInputData(workDataOf(KEY_CHARGING to true))
+                    .build()
+            )
+            // Device idle is only reported from API 23
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                val idle = Constraints.Builder()
+                    .setRequiresDeviceIdle(true)
+                    .build()
+                workManager.enqueueUniquePeriodicWork(
+                    WORK_IDLE,
+                    ExistingPeriodicWorkPolicy.UPDATE,
+                    PeriodicWorkRequestBuilder<NoteMaintenanceWorker>(1, TimeUnit.DAYS).setConstraints(idle).build()
+                )
+            }
+        }
+    }
+}
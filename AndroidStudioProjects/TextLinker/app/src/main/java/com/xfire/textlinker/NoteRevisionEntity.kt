@@ -0,0 +1,35 @@
+package com.xfire.textlinker
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.ForeignKey
+
+// One saved edit of a note. Keyframes hold the full body encoded by NoteBodyCodec (codec says how);
+// other revisions hold a NoteDelta against the revision before them. History goes away with the
+// notes row when its tombstone is purged.
+@Entity(
+    tableName = "note_revisions",
+    primaryKeys = ["note_id", "revision"],
+    foreignKeys = [ForeignKey(
+        entity = NoteEntity::class,
+        parentColumns = ["id"],
+        childColumns = ["note_id"],
+        onDelete = ForeignKey.CASCADE
+    )]
+)
+class NoteRevisionEntity(
+    @ColumnInfo(name = "note_id") val noteId: Int,
+    val revision: Int,
+    val keyframe: Boolean,
+    val codec: Int,
+    val data: ByteArray,
+    @ColumnInfo(name = "created_at") val createdAt: Long
+)
+
+// Revision list entry for a history screen; content is loaded separately with getNoteRevision.
+data class NoteRevisionInfo(
+    val revision: Int,
+    val keyframe: Boolean,
+    @ColumnInfo(name = "created_at") val createdAt: Long,
+    val size: Int
+)
@@ -0,0 +1,25 @@
+package com.xfire.textlinker
+
+/**
+ * Keyframe policy and reconstruction for note_revisions.
+ *
+ * Every [KEYFRAME_INTERVAL]th revision after a keyframe is stored in full, so rebuilding any
+ * revision applies at most KEYFRAME_INTERVAL - 1 deltas. A delta that is not clearly smaller than
+ * the body itself is stored as a keyframe instead.
+ */
+object NoteRevisions {
+    const val KEYFRAME_INTERVAL = 32
+
+    fun needsKeyframe(revision: Int, lastKeyframe: Int?, deltaSize: Int, bodySize: Int): Boolean =
+        lastKeyframe == null ||
+            revision - lastKeyframe >= KEYFRAME_INTERVAL ||
+            deltaSize * 2 >= bodySize
+
+    /** Rebuilds a body from its keyframe and the deltas after it, oldest first. */
+    fun reconstruct(keyframeCodec: Int, keyframeData: ByteArray, deltas: List<ByteArray>): String {
+        if (deltas.isEmpty()) return NoteBodyCodec.decode(keyframeCodec, keyframeData)
+        var body = NoteBodyCodec.decode(keyframeCodec, keyframeData).toByteArray(Charsets.UTF_8)
+        for (delta in deltas) body = NoteDelta.apply(body, delta)
+        return String(body, Charsets.UTF_8)
+    }
+}
@@ -0,0 +1,177 @@
+package com.xfire.textlinker
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.text.Normalizer
+
+/**
+ * Raw row returned by [NoteDao.searchNotes].
+ * matchInfo is the matchinfo(notes_fts, 'pcx') blob.
+ */
+data class NoteSearchHit(
+    val id: Int,
+    val matchInfo: ByteArray
+) {
+    override fun equals(other: Any?): Boolean =
+        other is NoteSearchHit && other.id == id && other.matchInfo.contentEquals(matchInfo)
+
+    override fun hashCode(): Int = id
+}
+
+/** Searchable text of a note, decoded from its stored body by [NoteDao.getSearchTexts]. */
+data class NoteSearchText(
+    val id: Int,
+    val title: String,
+    val content: String
+) {
+    /** True if the title or body contains [query], ignoring case. */
+    fun contains(query: String): Boolean =
+        title.contains(query, ignoreCase = true) || content.contains(query, ignoreCase = true)
+}
+
+/**
+ * Helpers for turning what the user typed into an FTS4 MATCH expression and
+ * ranking the rows that come back (FTS4 has no built-in rank).
+ */
+object NoteSearch {
+    // Column order in notes_fts: title, content. Title hits weigh more.
+    private val COLUMN_WEIGHTS = doubleArrayOf(2.0, 1.0)
+    private val TOKEN_SEPARATOR = Regex("[^\\p{L}\\p{N}]+")
+    private val COMBINING_MARKS = Regex("\\p{Mn}+")
+
+    /**
+     * Builds a prefix query ("kot*" AND "lin*") from free text.
+     * Returns null when the input has no indexable token, so callers can fall back to a plain filter.
+     */
+    fun toMatchQuery(raw: String): String? {
+        val tokens = tokens(raw)
+        if (tokens.isEmpty()) return null
+        return tokens.joinToString(" ") { "$it*" }
+    }
+
+    fun tokens(raw: String): List<String> =
+        raw.split(TOKEN_SEPARATOR).filter { it.isNotEmpty() }.map { it.lowercase() }
+
+    /** "%raw%" with LIKE's wildcards escaped, for queries using ESCAPE '\'. */
+    fun toLikePattern(raw: String): String {
+        val escaped = raw.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_")
+        return "%$escaped%"
+    }
+
+    /**
+     * True when every note matching [next] also matches [previous], so the results for [next] can
+     * be filtered out of those for [previous]. Typing on at the end only lengthens the last token or
+     * adds tokens, which narrows both the prefix query and the LIKE fallback, as long as both
+     * queries take the same one of those two paths.
+     */
+    fun narrows(previous: String, next: String): Boolean =
+        previous.isNotBlank() && next.startsWith(previous) &&
+            (toMatchQuery(previous) == null) == (toMatchQuery(next) == null)
+
+    /**
+     * [text] lowercased with its diacritics stripped (NFD, then the combining marks dropped), which
+     * is how the unicode61 tokenizer folds notes_fts, so "cafe*" finds "Café". ASCII text comes back
+     * just lowercased.
+     */
+    fun fold(text: String): String {
+        val lower = text.lowercase()
+        if (lower.all { it < '\u0080' }) return lower
+        return COMBINING_MARKS.replace(Normalizer.normalize(lower, Normalizer.Form.NFD), "")
+    }
+
+    /**
+     * In-memory version of the search for [query] against lowercased [title] and [content]: each
+     * token starts a word of the [fold]ed text, like the prefix query, or the whole query occurs
+     * somewhere in the lowercased text, like the trigram index and the LIKE fallback (neither of
+     * which strips diacritics). [foldedTitle] and [foldedContent] only need passing for non-ASCII text.
+     */
+    fun matchesLocally(
+        title: String,
+        content: String,
+        query: String,
+        foldedTitle: String = title,
+        foldedContent: String = content
+    ): Boolean {
+        val needle = query.lowercase()
+        if (title.contains(needle) || content.contains(needle)) return true
+        val tokens = tokens(fold(query))
+        return tokens.isNotEmpty() && tokens.all { startsWord(foldedTitle, it) || startsWord(foldedContent, it) }
+    }
+
+    private fun startsWord(text: String, token: String): Boolean {
+        var index = text.indexOf(token)
+        while (index >= 0) {
+            if (index == 0 || !text[index - 1].isLetterOrDigit()) return true
+            index = text.indexOf(token, index + 1)
+        }
+        return false
+    }
+
+    /**
+     * Where [query] matches in [text] under the same rules as [matchesLocally]: the whole query
+     * anywhere, and each token at the start of a word. Returned as sorted, non-overlapping
+     * start/end pairs (end exclusive) into [text] itself, which is never case-folded, so the
+     * offsets stay valid for spans.
+     */
+    fun matchRanges(text: String, query: String): IntArray {
+        val found = ArrayList<IntRange>()
+        val whole = query.trim()
+        if (whole.isNotEmpty()) {
+            var index = text.indexOf(whole, ignoreCase = true)
+            while (index >= 0) {
+                found += index until index + whole.length
+                index = text.indexOf(whole, index + whole.length, ignoreCase = true)
+            }
+        }
+        for (token in tokens(query)) {
+            var index = text.indexOf(token, ignoreCase = true)
+            while (index >= 0) {
+                if (index == 0 || !text[index - 1].isLetterOrDigit()) found += index until index + token.length
+                index = text.indexOf(token, index + 1, ignoreCase = true)
+            }
+        }
+        if (found.isEmpty()) return IntArray(0)
+        found.sortBy { it.first }
+        val ranges = ArrayList<Int>(found.size * 2)
+        var start = found[0].first
+        var end = found[0].last + 1
+        for (range in found) {
+            if (range.first <= end) {
+                end = maxOf(end, range.last + 1)
+            } else {
+                ranges += start
+                ranges += end
+                start = range.first
+                end = range.last + 1
+            }
+        }
+        ranges += start
+        ranges += end
+        return ranges.toIntArray()
+    }
+
+    /** Sorts hits best-first using the 'pcx' matchinfo blob. */
+    fun rank(hits: List<NoteSearchHit>): List<NoteSearchHit> =
+        hits.sortedWith(compareByDescending<NoteSearchHit> { score(it.matchInfo) }.thenByDescending { it.id })
+
+    fun score(matchInfo: ByteArray): Double {
+        if (matchInfo.size < 8) return 0.0
+        val ints = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer()
+        val phrases = ints.get(0)
+        val columns = ints.get(1)
+        var score = 0.0
+        for (p in 0 until phrases) {
+            for (c in 0 until columns) {
+                val base = 2 + (p * columns + c) * 3
+                if (base + 1 >= ints.limit()) return score
+                val hitsThisRow = ints.get(base)
+                val hitsAllRows = ints.get(base + 1)
+                if (hitsThisRow > 0 && hitsAllRows > 0) {
+                    val weight = COLUMN_WEIGHTS.getOrElse(c) { 1.0 }
+                    score += weight * hitsThisRow.toDouble() / hitsAllRows.toDouble()
+                }
+            }
+        }
+        return score
+    }
+}
@@ -0,0 +1,194 @@
+package com.xfire.textlinker
+
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+/**
+ * Keeps the in-memory search indexes in step with the database: a [NoteTrigramIndex] over
+ * whole notes for substring search and a [NoteTitleIndex] over titles and first lines for
+ * typo-tolerant search. Both are built from the stored bodies in the background and then patched
+ * from the write queue's [NoteChange] events.
+ *
+ * The rebuild and every change batch run one at a time on a single worker, so a note is never
+ * overwritten with text read before a newer commit. Changes that arrive during a rebuild wait in
+ * the channel rather than holding up the write queue.
+ *
+ * A rebuild or batch that fails leaves both indexes down and schedules another rebuild, backing
+ * off from [RETRY_INITIAL_MS] to [RETRY_MAX_MS] while the failures continue.
+ *
+ * Notes longer than [MAX_INDEXED_CHARS] aren't kept in memory; [findIds] reads and checks those
+ * one at a time instead, and the title index only gets their stored preview.
+ */
+class NoteSearchIndexer(
+    private val database: NoteDatabase,
+    private val scope: CoroutineScope,
+    maxBytes: Long = NoteTrigramIndex.DEFAULT_MAX_BYTES
+) {
+    private sealed class Command {
+        object Rebuild : Command()
+        class Apply(val changes: List<NoteChange>) : Command()
+    }
+
+    private val noteDao = database.noteDao()
+    private val index = NoteTrigramIndex(maxBytes)
+    private val titles = NoteTitleIndex()
+    private val commands = Channel<Command>(Channel.UNLIMITED)
+    // Long notes left out of the trigram index; guarded by itself
+    private val unindexed = HashSet<Int>()
+    // Worker only
+    private var retryDelayMs = RETRY_INITIAL_MS
+    private var retryJob: Job? = null
+
+    // False until the first rebuild finishes and after the trigram index runs over its budget
+    @Volatile var isReady = false
+        private set
+
+    // The title index is small enough to stay up whatever happens to the trigram one. A failed
+    // build takes it down too, until the scheduled rebuild brings both back
+    @Volatile var isTitleIndexReady = false
+        private set
+
+    fun start() {
+        // Subscribe before the rebuild reads anything so no commit can fall between the two
+        scope.launch(Dispatchers.IO, start = CoroutineStart.UNDISPATCHED) {
+            database.writeQueue.changes.collect {
+                // Commits were dropped before reaching us, so only a full read is trustworthy
+                commands.trySend(if (NoteChange.Reset in it) Command.Rebuild else Command.Apply(it))
+            }
+        }
+        commands.trySend(Command.Rebuild)
+        scope.launch(Dispatchers.IO) {
+            for (command in commands) {
+                try {
+                    when (command) {
+                        is Command.Rebuild -> rebuild()
+                        is Command.Apply -> apply(command.changes)
+                    }
+                } catch (e: Exception) {
+                    // A batch that can't be applied leaves the indexes stale, so stop answering until rebuilt
+                    isReady = false
+                    isTitleIndexReady = false
+                    Log.e("NoteSearchIndexer", "Error updating search indexes", e)
+                    scheduleRetry()
+                }
+            }
+        }
+    }
+
+    /** Drops the indexes and reads every note again, e.g. after writes that bypassed the write queue. */
+    fun requestRebuild() {
+        commands.trySend(Command.Rebuild)
+    }
+
+    /**
+     * Ids of notes whose title or body contains [query], ignoring case, newest first.
+     * Null while the index isn't ready; callers fall back to the database then.
+     */
+    suspend fun findIds(query: String): IntArray? {
+        if (!isReady) return null
+        val ids = index.search(query)
+        val longIds = synchronized(unindexed) { unindexed.toList() }
+        if (longIds.isEmpty()) return ids
+        val longMatches = noteDao.filterIdsContaining(longIds, query)
+        return (ids + longMatches).sortedArrayDescending()
+    }
+
+    /** Up to [limit] notes whose title or first line is a few typos away from [query], closest first. */
+    fun findFuzzy(query: String, limit: Int): List<NoteTitleIndex.Match> =
+        if (isTitleIndexReady) titles.search(query, limit) else emptyList()
+
+    private fun scheduleRetry() {
+        if (retryJob?.isActive == true) return
+        val delayMs = retryDelayMs
+        retryDelayMs = (retryDelayMs * 2).coerceAtMost(RETRY_MAX_MS)
+        Log.w("NoteSearchIndexer", "Rebuilding search indexes in $delayMs ms")
+        retryJob = scope.launch {
+            delay(delayMs)
+            commands.trySend(Command.Rebuild)
+        }
+    }
+
+    private suspend fun rebuild() {
+        retryJob?.cancel()
+        isReady = false
+        isTitleIndexReady = false
+        index.clear()
+        titles.clear()
+        synchronized(unindexed) { unindexed.clear() }
+        var trigramsFit = true
+        val longIds = noteDao.getLongSearchTextIds(MAX_INDEXED_CHARS)
+        var afterId = 0
+        while (true) {
+            val page = noteDao.getSearchTextsAfter(afterId, REBUILD_PAGE_SIZE, MAX_INDEXED_CHARS)
+            for (text in page) {
+                titles.put(text.id, text.title, firstLine(text.content))
+                if (trigramsFit && !index.put(text.id, text.title, text.content)) {
+                    trigramsFit = false
+                    giveUp()
+                }
+            }
+            if (page.size < REBUILD_PAGE_SIZE) break
+            afterId = page.last().id
+        }
+        longIds.chunked(NoteDao.MAX_BIND_ARGS / 2).forEach { chunk ->
+            noteDao.getSearchPreviews(chunk).forEach { titles.put(it.id, it.title, firstLine(it.content)) }
+        }
+        isTitleIndexReady = true
+        retryDelayMs = RETRY_INITIAL_MS
+        if (!trigramsFit) return
+        synchronized(unindexed) { unindexed += longIds }
+        isReady = true
+        Log.d("NoteSearchIndexer", "Indexed ${index.size} notes (${longIds.size} too long), ~${index.estimatedBytes / 1024} KB")
+    }
+
+    private suspend fun apply(changes: List<NoteChange>) {
+        if (!isTitleIndexReady) return
+        // Archiving moves a note's text but doesn't change it; deleted notes read back as nothing
+        val touched = changes.filter { it !is NoteChange.Archived }.map { it.id }.distinct()
+        val texts = noteDao.getSearchTexts(touched, MAX_INDEXED_CHARS).associateBy { it.id }
+        val longIds = touched.chunked(NoteDao.MAX_BIND_ARGS / 2)
+            .flatMap { noteDao.getLongSearchTextIdsIn(it, MAX_INDEXED_CHARS) }
+            .toSet()
+        val prefixes = longIds.chunked(NoteDao.MAX_BIND_ARGS / 2)
+            .flatMap { noteDao.getSearchPreviews(it) }
+            .associateBy { it.id }
+        for (id in touched) {
+            val text = texts[id] ?: prefixes[id]
+            if (text == null) titles.remove(id) else titles.put(id, text.title, firstLine(text.content))
+            if (!isReady) continue
+            synchronized(unindexed) {
+                if (id in longIds) unindexed += id else unindexed -= id
+            }
+            val full = texts[id]
+            if (full == null) {
+                index.remove(id)
+            } else if (!index.put(id, full.title, full.content)) {
+                giveUp()
+            }
+        }
+    }
+
+    private fun giveUp() {
+        isReady = false
+        index.clear()
+        synchronized(unindexed) { unindexed.clear() }
+        Log.w("NoteSearchIndexer", "Trigram index over its memory budget; substring search falls back to the database")
+    }
+
+    companion object {
+        // Keeps each row well inside a 2 MB CursorWindow even at 3 UTF-8 bytes per char
+        const val MAX_INDEXED_CHARS = 256 * 1024
+        private const val FIRST_LINE_CHARS = 200
+        private const val REBUILD_PAGE_SIZE = 100
+        const val RETRY_INITIAL_MS = 1_000L
+        const val RETRY_MAX_MS = 5 * 60_000L
+
+        private fun firstLine(content: String): String = content.substringBefore('\n').take(FIRST_LINE_CHARS)
+    }
+}
@@ -0,0 +1,196 @@
+package com.xfire.textlinker
+
+import android.util.Log
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+/**
+ * Search-as-you-type over the notes.
+ *
+ * [submit] debounces keystrokes and cancels the search still running for older input (Room
+ * cancels the SQLite query with it). When the new query only extends the last one ("kot" to
+ * "kotl") its results are a subset of the last ones, so those are filtered in memory instead of
+ * going back to the index. Each [Result] carries the sequence number of the query it answers;
+ * only the newest is published and callers can drop anything older that is still in flight.
+ *
+ * [suggest] adds near misses (e.g. typo-tolerant matches) after the exact results. They are
+ * worked out again for every query, since a query's near misses aren't a subset of the last one's.
+ * If working them out fails the exact results are published on their own.
+ *
+ * [submit] and [refresh] are called from the main thread and [scope] should dispatch there too,
+ * which keeps the snapshot confined to one thread.
+ */
+class NoteSearchPipeline(
+    private val scope: CoroutineScope,
+    private val search: suspend (String) -> List<NoteSummary>,
+    private val loadTexts: suspend (List<Int>) -> List<NoteSearchText>,
+    private val suggest: suspend (String, Set<Int>) -> List<NoteSummary> = { _, _ -> emptyList() },
+    private val onResult: (Result) -> Unit,
+    private val debounceMs: Long = DEBOUNCE_MS,
+    // Swapped out by JVM unit tests, where android.util.Log isn't available
+    private val logError: (String, Throwable) -> Unit = { message, e -> Log.e("NoteSearchPipeline", message, e) }
+) {
+    /**
+     * The first [exactCount] summaries match [query] exactly; the rest are suggestions. [texts] holds
+     * ready-made row text by note id for rows that have it, filled in after the search.
+     */
+    class Result(
+        val seq: Long,
+        val query: String,
+        val summaries: List<NoteSummary>,
+        val exactCount: Int,
+        val texts: Map<Int, CharSequence> = emptyMap()
+    ) {
+        fun withTexts(texts: Map<Int, CharSequence>) = Result(seq, query, summaries, exactCount, texts)
+    }
+
+    // Results of the last query with the indexed text needed to narrow them further
+    private class Snapshot(val candidates: List<Candidate>)
+    // Lowercased text, and the same text with diacritics stripped (the same instance when there are none)
+    private class Candidate(
+        val summary: NoteSummary,
+        val title: String,
+        val content: String,
+        val foldedTitle: String,
+        val foldedContent: String
+    )
+
+    private var job: Job? = null
+    // Built beside the search job so the next keystroke doesn't cancel it; the next query awaits it
+    private var snapshotQuery: String? = null
+    private var snapshot: Deferred<Snapshot?>? = null
+
+    /** Sequence number of the newest submitted query. */
+    var latestSeq = 0L
+        private set
+    var latestQuery = ""
+        private set
+
+    /** Starts a search for [query] after the debounce delay. A blank query just cancels. Returns its sequence number. */
+    fun submit(query: String): Long {
+        val seq = ++latestSeq
+        latestQuery = query
+        job?.cancel()
+        if (query.isBlank()) {
+            job = null
+            return seq
+        }
+        job = scope.launch {
+            delay(debounceMs)
+            try {
+                val summaries = run(query)
+                val suggestions = suggestions(query, summaries)
+                if (seq != latestSeq) return@launch
+                onResult(Result(seq, query, summaries + suggestions, summaries.size))
+                // Built after publishing so the first results aren't held up
+                if (snapshotQuery != query) {
+                    snapshotQuery = query
+                    snapshot = scope.async { snapshotOf(summaries) }
+                }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                logError("Error searching notes for '$query'", e)
+            }
+        }
+        return seq
+    }
+
+    /** Notes changed: forgets the snapshot and runs the current query again. */
+    fun refresh() {
+        dropSnapshot()
+        if (latestQuery.isNotBlank()) submit(latestQuery)
+    }
+
+    fun cancel() {
+        job?.cancel()
+        job = null
+        dropSnapshot()
+    }
+
+    private fun dropSnapshot() {
+        snapshot?.cancel()
+        snapshot = null
+        snapshotQuery = null
+    }
+
+    private suspend fun suggestions(query: String, exact: List<NoteSummary>): List<NoteSummary> = try {
+        suggest(query, exact.mapTo(HashSet()) { it.id })
+    } catch (e: CancellationException) {
+        throw e
+    } catch (e: Exception) {
+        logError("Error suggesting notes for '$query'", e)
+        emptyList()
+    }
+
+    private suspend fun run(query: String): List<NoteSummary> {
+        val previous = snapshotQuery
+        val pending = snapshot
+        val last = if (previous != null && pending != null && NoteSearch.narrows(previous, query)) awaitSnapshot(pending) else null
+        if (last != null) {
+            val kept = withContext(Dispatchers.Default) {
+                last.candidates.filter {
+                    NoteSearch.matchesLocally(it.title, it.content, query, it.foldedTitle, it.foldedContent)
+                }
+            }
+            snapshotQuery = query
+            snapshot = CompletableDeferred(Snapshot(kept))
+            return kept.map { it.summary }
+        }
+        dropSnapshot()
+        return search(query)
+    }
+
+    // A dropped snapshot just means a full search, not a cancelled one
+    private suspend fun awaitSnapshot(pending: Deferred<Snapshot?>): Snapshot? {
+        if (pending.isCancelled) return null
+        return try {
+            pending.await()
+        } catch (e: CancellationException) {
+            if (!pending.isCancelled) throw e
+            null
+        }
+    }
+
+    // Null when there are too many hits or one of them is too long to keep around
+    private suspend fun snapshotOf(summaries: List<NoteSummary>): Snapshot? {
+        if (summaries.size > NARROW_MAX_HITS) return null
+        return try {
+            val texts = loadTexts(summaries.map { it.id }).associateBy { it.id }
+            if (texts.size < summaries.size) return null
+            withContext(Dispatchers.Default) {
+                Snapshot(summaries.map {
+                    val text = texts.getValue(it.id)
+                    val title = text.title.lowercase()
+                    val content = text.content.lowercase()
+                    Candidate(it, title, content, foldedOrSame(title), foldedOrSame(content))
+                })
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            logError("Error loading search texts", e)
+            null
+        }
+    }
+
+    private fun foldedOrSame(lowercased: String): String {
+        val folded = NoteSearch.fold(lowercased)
+        return if (folded == lowercased) lowercased else folded
+    }
+
+    companion object {
+        const val DEBOUNCE_MS = 200L
+        const val NARROW_MAX_HITS = 200
+        // Per note; bounds the snapshot to a few MB
+        const val NARROW_MAX_CHARS = 20_000
+    }
+}
@@ -0,0 +1,13 @@
+package com.xfire.textlinker
+
+/**
+ * Lightweight projection of a note for list rows. Never carries the full body;
+ * open the note through [NoteDao.getNoteById] when the content is actually needed.
+ */
+data class NoteSummary(
+    val id: Int,
+    val title: String,
+    val timestamp: Long,
+    val contentLength: Int,
+    val preview: String
+)
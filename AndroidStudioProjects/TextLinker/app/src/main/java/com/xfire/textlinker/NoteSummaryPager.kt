@@ -0,0 +1,142 @@
+package com.xfire.textlinker
+
+import android.util.Log
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.MutableLiveData
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * Keyset pager over note summaries (newest first, keyed on id).
+ *
+ * Only the window the user has scrolled through is kept in memory. Committed writes arrive as
+ * [NoteChange] events from the write queue and are patched into the window by id, so an edit or
+ * a background insert re-reads only the rows it touched.
+ */
+class NoteSummaryPager(
+    private val database: NoteDatabase,
+    private val scope: CoroutineScope,
+    private val pageSize: Int = 50
+) {
+    private val noteDao = database.noteDao()
+    private val mutex = Mutex()
+    private val _summaries = MutableLiveData<List<NoteSummary>>()
+    val summaries: LiveData<List<NoteSummary>> = _summaries
+
+    // Sorted by id descending
+    private val loaded = ArrayList<NoteSummary>()
+    private var endReached = false
+    private var pendingLoad: Job? = null
+    private var changesJob: Job? = null
+
+    fun start() {
+        // Subscribe before the first read so no commit can fall between the two
+        changesJob = scope.launch(Dispatchers.IO, start = CoroutineStart.UNDISPATCHED) {
+            database.writeQueue.changes.collect { applyChanges(it) }
+        }
+        refresh()
+    }
+
+    fun stop() {
+        changesJob?.cancel()
+        changesJob = null
+    }
+
+    /** Appends the next page after the oldest loaded id. No-op while a load is running or at the end. */
+    fun loadNextPage() {
+        if (endReached || pendingLoad?.isActive == true) return
+        pendingLoad = scope.launch(Dispatchers.IO) {
+            mutex.withLock {
+                val beforeId = loaded.lastOrNull()?.id ?: Int.MAX_VALUE
+                val page = noteDao.getNoteSummariesBefore(beforeId, pageSize)
+                endReached = page.size < pageSize
+                loaded += page
+                Log.d("NoteSummaryPager", "Loaded page before=$beforeId size=${page.size} window=${loaded.size}")
+                publish()
+            }
+        }
+    }
+
+    /** Re-reads the whole loaded window. Only needed for writes that bypass the write queue. */
+    fun refresh() {
+        scope.launch(Dispatchers.IO) {
+            mutex.withLock { reloadWindow() }
+        }
+    }
+
+    // Caller holds the mutex
+    private suspend fun reloadWindow() {
+        val lowest = loaded.lastOrNull()?.id
+        val window = if (lowest == null) {
+            noteDao.getNoteSummariesBefore(Int.MAX_VALUE, pageSize).also { endReached = it.size < pageSize }
+        } else {
+            noteDao.getNoteSummariesFrom(lowest)
+        }
+        loaded.clear()
+        loaded += window
+        publish()
+    }
+
+    private suspend fun applyChanges(changes: List<NoteChange>) = mutex.withLock {
+        // Some commits never reached us, so patching by id could miss rows
+        if (NoteChange.Reset in changes) {
+            Log.d("NoteSummaryPager", "Change stream reset; re-reading window of ${loaded.size}")
+            reloadWindow()
+            return@withLock
+        }
+        // Notes older than the window will be read when their page loads
+        val lowest = loaded.lastOrNull()?.id
+        val inWindow = changes.filter { endReached || (lowest != null && it.id >= lowest) }
+        if (inWindow.isEmpty()) return@withLock
+        // A bulk insert (e.g. an archive import) would grow the window by its whole size; start over at page one
+        if (inWindow.count { it is NoteChange.Inserted } > pageSize) {
+            val firstPage = noteDao.getNoteSummariesBefore(Int.MAX_VALUE, pageSize)
+            endReached = firstPage.size < pageSize
+            loaded.clear()
+            loaded += firstPage
+            publish()
+            return@withLock
+        }
+
+        val reread = inWindow.filter { it !is NoteChange.Deleted }.map { it.id }.distinct()
+        val fresh = reread.chunked(NoteDao.MAX_BIND_ARGS)
+            .flatMap { noteDao.getNoteSummariesByIds(it) }
+            .associateBy { it.id }
+        for (id in inWindow.map { it.id }.distinct()) {
+            val index = indexOf(id)
+            val summary = fresh[id]
+            when {
+                summary == null -> if (index >= 0) loaded.removeAt(index)
+                index >= 0 -> loaded[index] = summary
+                else -> loaded.add(-(index + 1), summary)
+            }
+        }
+        Log.d("NoteSummaryPager", "Applied ${inWindow.size} changes, re-read ${reread.size} rows, window=${loaded.size}")
+        publish()
+    }
+
+    // Binary search on the id-descending window; returns -(insertion point + 1) when absent
+    private fun indexOf(id: Int): Int {
+        var low = 0
+        var high = loaded.size - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val midId = loaded[mid].id
+            when {
+                midId > id -> low = mid + 1
+                midId < id -> high = mid - 1
+                else -> return mid
+            }
+        }
+        return -(low + 1)
+    }
+
+    private fun publish() {
+        _summaries.postValue(ArrayList(loaded))
+    }
+}
@@ -0,0 +1,214 @@
+package com.xfire.textlinker
+
+/**
+ * Typo-tolerant lookup over the words of note titles and first lines ("kotiln" finds "Kotlin").
+ *
+ * Distinct lowercased words live in a BK-tree keyed on Levenshtein distance, so a query only
+ * measures its distance to the few words the triangle inequality can't rule out. Each word keeps
+ * the sorted ids of the notes using it. Removing a note just empties words; the tree is rebuilt
+ * from the live words once most of it is empty. All methods are thread-safe.
+ */
+class NoteTitleIndex {
+    class Match(val id: Int, val distance: Int)
+
+    private class Node(val word: String) {
+        var ids = IntArray(2)
+        var size = 0
+        var childDistances = IntArray(0)
+        var children = arrayOfNulls<Node>(0)
+        var maxChildDistance = 0
+
+        fun child(distance: Int): Node? {
+            for (i in childDistances.indices) if (childDistances[i] == distance) return children[i]
+            return null
+        }
+
+        fun addChild(distance: Int, node: Node) {
+            childDistances = childDistances.copyOf(childDistances.size + 1).also { it[it.size - 1] = distance }
+            children = children.copyOf(children.size + 1).also { it[it.size - 1] = node }
+            maxChildDistance = maxOf(maxChildDistance, distance)
+        }
+
+        fun add(id: Int) {
+            var index = ids.binarySearch(id, 0, size)
+            if (index >= 0) return
+            index = -index - 1
+            if (size == ids.size) ids = ids.copyOf(size * 2)
+            System.arraycopy(ids, index, ids, index + 1, size - index)
+            ids[index] = id
+            size++
+        }
+
+        fun remove(id: Int) {
+            val index = ids.binarySearch(id, 0, size)
+            if (index < 0) return
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1)
+            size--
+        }
+    }
+
+    private var root: Node? = null
+    private val nodes = HashMap<String, Node>()
+    private val noteWords = HashMap<Int, Array<String>>()
+    private var emptyNodes = 0
+
+    val size: Int
+        @Synchronized get() = noteWords.size
+
+    /** Indexes the words of [title] and [firstLine] under [id], replacing what was there. */
+    @Synchronized
+    fun put(id: Int, title: String, firstLine: String) {
+        remove(id)
+        val words = (NoteSearch.tokens(title) + NoteSearch.tokens(firstLine))
+            .filter { it.length in MIN_WORD_LENGTH..MAX_WORD_LENGTH }
+            .distinct()
+            .toTypedArray()
+        if (words.isEmpty()) return
+        for (word in words) {
+            val node = nodes[word] ?: insert(word)
+            if (node.size == 0) emptyNodes--
+            node.add(id)
+        }
+        noteWords[id] = words
+    }
+
+    @Synchronized
+    fun remove(id: Int) {
+        val words = noteWords.remove(id) ?: return
+        for (word in words) {
+            val node = nodes.getValue(word)
+            node.remove(id)
+            if (node.size == 0) emptyNodes++
+        }
+        if (emptyNodes > REBUILD_MIN_EMPTY && emptyNodes > nodes.size / 2) rebuildTree()
+    }
+
+    @Synchronized
+    fun clear() {
+        root = null
+        nodes.clear()
+        noteWords.clear()
+        emptyNodes = 0
+    }
+
+    /**
+     * Up to [limit] notes whose words match every query token of [MIN_WORD_LENGTH] chars or more
+     * within [maxDistance] edits, fewest total edits first, then newest. Empty when the query has
+     * no such token.
+     */
+    @Synchronized
+    fun search(query: String, limit: Int): List<Match> {
+        val tokens = NoteSearch.tokens(query).filter { it.length in MIN_WORD_LENGTH..MAX_WORD_LENGTH }.distinct()
+        if (tokens.isEmpty() || root == null) return emptyList()
+        val scratch = Scratch()
+        var scores: HashMap<Int, Int>? = null
+        for (token in tokens) {
+            val best = HashMap<Int, Int>()
+            forEachWithin(token, maxDistance(token.length), scratch) { node, distance ->
+                for (i in 0 until node.size) {
+                    val id = node.ids[i]
+                    if (scores != null && id !in scores!!) continue
+                    val previous = best[id]
+                    if (previous == null || distance < previous) best[id] = distance
+                }
+            }
+            scores = if (scores == null) best else HashMap<Int, Int>().also { merged ->
+                for ((id, distance) in best) merged[id] = scores!!.getValue(id) + distance
+            }
+            if (scores!!.isEmpty()) return emptyList()
+        }
+        return scores!!.entries
+            .sortedWith(compareBy<Map.Entry<Int, Int>> { it.value }.thenByDescending { it.key })
+            .take(limit)
+            .map { Match(it.key, it.value) }
+    }
+
+    private fun insert(word: String): Node {
+        val node = Node(word)
+        nodes[word] = node
+        emptyNodes++
+        attach(node)
+        return node
+    }
+
+    private fun attach(node: Node) {
+        var current = root ?: run {
+            root = node
+            return
+        }
+        val scratch = Scratch()
+        while (true) {
+            val distance = scratch.distance(node.word, current.word, Int.MAX_VALUE)
+            current = current.child(distance) ?: run {
+                current.addChild(distance, node)
+                return
+            }
+        }
+    }
+
+    private fun rebuildTree() {
+        nodes.values.removeAll { it.size == 0 }
+        root = null
+        for (node in nodes.values) {
+            node.childDistances = IntArray(0)
+            node.children = arrayOfNulls(0)
+            node.maxChildDistance = 0
+            attach(node)
+        }
+        emptyNodes = 0
+    }
+
+    // Visits live words within maxDistance of word; children outside [d - max, d + max] can't be closer.
+    // Past maxDistance + maxChildDistance no child qualifies either, so the distance is only worked out that far
+    private inline fun forEachWithin(word: String, maxDistance: Int, scratch: Scratch, action: (Node, Int) -> Unit) {
+        val stack = ArrayList<Node>()
+        root?.let { stack += it }
+        while (stack.isNotEmpty()) {
+            val node = stack.removeAt(stack.size - 1)
+            val bound = maxDistance + node.maxChildDistance
+            val distance = scratch.distance(word, node.word, bound)
+            if (distance > bound) continue
+            if (distance <= maxDistance && node.size > 0) action(node, distance)
+            for (i in node.childDistances.indices) {
+                if (node.childDistances[i] in (distance - maxDistance)..(distance + maxDistance)) stack += node.children[i]!!
+            }
+        }
+    }
+
+    // Levenshtein distance with two reusable rows; words are at most MAX_WORD_LENGTH chars.
+    // Returns bound + 1 as soon as the distance is known to exceed bound.
+    private class Scratch {
+        private var previous = IntArray(MAX_WORD_LENGTH + 1)
+        private var current = IntArray(MAX_WORD_LENGTH + 1)
+
+        fun distance(a: String, b: String, bound: Int): Int {
+            if (Math.abs(a.length - b.length) > bound) return bound + 1
+            for (j in 0..b.length) previous[j] = j
+            for (i in 1..a.length) {
+                current[0] = i
+                var rowMin = i
+                for (j in 1..b.length) {
+                    val cost = if (a[i - 1] == b[j - 1]) 0 else 1
+                    val value = minOf(previous[j] + 1, current[j - 1] + 1, previous[j - 1] + cost)
+                    current[j] = value
+                    if (value < rowMin) rowMin = value
+                }
+                // Row minimums never decrease, so the final distance is at least this
+                if (rowMin > bound) return bound + 1
+                val swap = previous
+                previous = current
+                current = swap
+            }
+            return previous[b.length]
+        }
+    }
+
+    companion object {
+        const val MIN_WORD_LENGTH = 3
+        const val MAX_WORD_LENGTH = 32
+        private const val REBUILD_MIN_EMPTY = 1_000
+
+        // One typo in short words, two from five chars on
+        fun maxDistance(length: Int): Int = if (length < 5) 1 else 2
+    }
+}
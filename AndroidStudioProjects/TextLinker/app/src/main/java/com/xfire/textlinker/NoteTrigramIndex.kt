@@ -0,0 +1,254 @@
+package com.xfire.textlinker
+
+/**
+ * In-memory trigram index for case-insensitive substring search over note titles and bodies,
+ * which the word-based FTS index can't answer ("otli" inside "kotlin", "c++", "a.b").
+ *
+ * Each note's title and body are case-folded and kept as one string. Every distinct three-char
+ * sequence maps to a sorted IntArray of the ids containing it. [search] intersects the postings
+ * of the query's trigrams, smallest first, and checks the survivors against the folded text, so
+ * results match a plain `contains` exactly. Queries shorter than three chars scan the texts.
+ *
+ * Memory is tracked as notes are added; [put] refuses a note once [maxBytes] would be exceeded
+ * and the caller is expected to fall back to the database. All methods are thread-safe.
+ */
+class NoteTrigramIndex(private val maxBytes: Long = DEFAULT_MAX_BYTES) {
+    private val texts = LongObjectMap<String>()
+    private val postings = LongObjectMap<PostingList>()
+
+    var estimatedBytes = 0L
+        private set
+
+    val size: Int
+        @Synchronized get() = texts.size
+
+    /** Indexes [title] and [content] under [id], replacing what was there. Returns false, leaving [id] out, when over budget. */
+    @Synchronized
+    fun put(id: Int, title: String, content: String): Boolean {
+        remove(id)
+        val text = fold(title, content)
+        val keys = trigrams(text)
+        val added = textBytes(text) + keys.size * POSTING_ENTRY_BYTES
+        if (estimatedBytes + added > maxBytes) return false
+        texts.put(id.toLong(), text)
+        for (key in keys) {
+            val list = postings.get(key) ?: PostingList().also {
+                postings.put(key, it)
+                estimatedBytes += POSTING_LIST_BYTES
+            }
+            list.add(id)
+        }
+        estimatedBytes += added
+        return true
+    }
+
+    @Synchronized
+    fun remove(id: Int) {
+        val text = texts.remove(id.toLong()) ?: return
+        val keys = trigrams(text)
+        for (key in keys) {
+            val list = postings.get(key) ?: continue
+            list.remove(id)
+            if (list.size == 0) {
+                postings.remove(key)
+                estimatedBytes -= POSTING_LIST_BYTES
+            }
+        }
+        estimatedBytes -= textBytes(text) + keys.size * POSTING_ENTRY_BYTES
+    }
+
+    @Synchronized
+    fun clear() {
+        texts.clear()
+        postings.clear()
+        estimatedBytes = 0L
+    }
+
+    /** Ids of notes whose title or body contains [query], ignoring case, newest (highest id) first. */
+    @Synchronized
+    fun search(query: String): IntArray {
+        val needle = query.lowercase()
+        if (needle.isEmpty()) return IntArray(0)
+        val candidates = if (needle.length < 3) {
+            allIds()
+        } else {
+            val lists = trigrams(needle).map { postings.get(it) ?: return IntArray(0) }.sortedBy { it.size }
+            var ids = lists[0].toArray()
+            for (i in 1 until lists.size) {
+                ids = lists[i].retainIn(ids)
+                if (ids.isEmpty()) return ids
+            }
+            ids
+        }
+        val out = IntArray(candidates.size)
+        var n = 0
+        for (i in candidates.indices.reversed()) {
+            val id = candidates[i]
+            if (texts.get(id.toLong())!!.contains(needle)) out[n++] = id
+        }
+        return out.copyOf(n)
+    }
+
+    private fun allIds(): IntArray {
+        val ids = IntArray(texts.size)
+        var n = 0
+        texts.forEachKey { ids[n++] = it.toInt() }
+        ids.sort()
+        return ids
+    }
+
+    // Sorted, growable list of ids, so intersections can binary-search the longer side
+    private class PostingList {
+        var ids = IntArray(4)
+        var size = 0
+
+        fun add(id: Int) {
+            var index = ids.binarySearch(id, 0, size)
+            if (index >= 0) return
+            index = -index - 1
+            if (size == ids.size) ids = ids.copyOf(size * 2)
+            System.arraycopy(ids, index, ids, index + 1, size - index)
+            ids[index] = id
+            size++
+        }
+
+        fun remove(id: Int) {
+            val index = ids.binarySearch(id, 0, size)
+            if (index < 0) return
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1)
+            size--
+            if (size > 4 && size < ids.size / 4) ids = ids.copyOf(ids.size / 2)
+        }
+
+        fun toArray(): IntArray = ids.copyOf(size)
+
+        // The sorted ids of [candidates] also in this list; candidates is never longer
+        fun retainIn(candidates: IntArray): IntArray {
+            val out = IntArray(candidates.size)
+            var n = 0
+            var from = 0
+            for (id in candidates) {
+                val index = ids.binarySearch(id, from, size)
+                if (index >= 0) {
+                    out[n++] = id
+                    from = index + 1
+                } else {
+                    from = -index - 1
+                }
+                if (from == size) break
+            }
+            return out.copyOf(n)
+        }
+    }
+
+    /**
+     * Open-addressing map from primitive long keys, so the index holds no boxed keys. Linear
+     * probing with backward-shift deletion keeps lookups free of tombstones.
+     */
+    private class LongObjectMap<V : Any> {
+        private var keys = LongArray(16)
+        private var values = arrayOfNulls<Any>(16)
+        var size = 0
+            private set
+
+        @Suppress("UNCHECKED_CAST")
+        fun get(key: Long): V? {
+            var slot = slotOf(key)
+            while (true) {
+                val value = values[slot] ?: return null
+                if (keys[slot] == key) return value as V
+                slot = (slot + 1) and (keys.size - 1)
+            }
+        }
+
+        fun put(key: Long, value: V) {
+            if ((size + 1) * 4 > keys.size * 3) grow()
+            var slot = slotOf(key)
+            while (values[slot] != null && keys[slot] != key) slot = (slot + 1) and (keys.size - 1)
+            if (values[slot] == null) size++
+            keys[slot] = key
+            values[slot] = value
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        fun remove(key: Long): V? {
+            val mask = keys.size - 1
+            var slot = slotOf(key)
+            while (true) {
+                val value = values[slot] ?: return null
+                if (keys[slot] == key) break
+                slot = (slot + 1) and mask
+            }
+            val removed = values[slot] as V
+            // Pull later entries of the probe run back into the gap
+            var gap = slot
+            var next = (gap + 1) and mask
+            while (values[next] != null) {
+                val home = slotOf(keys[next])
+                val movable = if (gap <= next) home <= gap || home > next else home <= gap && home > next
+                if (movable) {
+                    keys[gap] = keys[next]
+                    values[gap] = values[next]
+                    gap = next
+                }
+                next = (next + 1) and mask
+            }
+            values[gap] = null
+            size--
+            return removed
+        }
+
+        fun clear() {
+            keys = LongArray(16)
+            values = arrayOfNulls(16)
+            size = 0
+        }
+
+        inline fun forEachKey(action: (Long) -> Unit) {
+            for (i in keys.indices) if (values[i] != null) action(keys[i])
+        }
+
+        private fun grow() {
+            val oldKeys = keys
+            val oldValues = values
+            keys = LongArray(oldKeys.size * 2)
+            values = arrayOfNulls(oldKeys.size * 2)
+            size = 0
+            @Suppress("UNCHECKED_CAST")
+            for (i in oldKeys.indices) oldValues[i]?.let { put(oldKeys[i], it as V) }
+        }
+
+        private fun slotOf(key: Long): Int {
+            val h = key * -0x61c8864680b583ebL
+            return (h xor (h ushr 32)).toInt() and (keys.size - 1)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_BYTES = 32L * 1024 * 1024
+
+        // Rough heap cost: UTF-16 text plus String header, one int per posting entry, and a list
+        // object, its array header and two map slots per distinct trigram
+        private const val STRING_BYTES = 40L
+        private const val POSTING_ENTRY_BYTES = 4L
+        private const val POSTING_LIST_BYTES = 64L
+
+        // Title and body never match across the separator since queries can't contain it
+        private fun fold(title: String, content: String): String = title.lowercase() + '\u0000' + content.lowercase()
+
+        private fun textBytes(text: String): Long = STRING_BYTES + text.length * 2L
+
+        // Distinct trigrams, each packed as three UTF-16 units into a long
+        private fun trigrams(text: String): LongArray {
+            if (text.length < 3) return LongArray(0)
+            val keys = LongArray(text.length - 2)
+            for (i in keys.indices) {
+                keys[i] = (text[i].code.toLong() shl 32) or (text[i + 1].code.toLong() shl 16) or text[i + 2].code.toLong()
+            }
+            keys.sort()
+            var n = 0
+            for (i in keys.indices) if (i == 0 || keys[i] != keys[i - 1]) keys[n++] = keys[i]
+            return keys.copyOf(n)
+        }
+    }
+}
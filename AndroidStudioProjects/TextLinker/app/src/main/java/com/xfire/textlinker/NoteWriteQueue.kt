@@ -0,0 +1,259 @@
+package com.xfire.textlinker
+
+import android.util.Log
+import androidx.room.withTransaction
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.launch
+import java.util.IdentityHashMap
+
+/**
+ * Single serialized writer for note mutations.
+ *
+ * Mutations are gathered for [windowMs] after the first one arrives and committed together in one
+ * transaction. Within a group, later writes to the same note id replace earlier ones, so a burst of
+ * edits to one note costs one row write. Reads don't go through here and keep using Room's WAL
+ * reader connections.
+ *
+ * Every commit is published on [changes] as one list of per-note events, in commit order. The
+ * committed ids have already left [NoteDatabase.noteCache] by then, since NoteDao's write paths
+ * drop them when the transaction ends.
+ *
+ * Publishing never waits for collectors. When a collector is [CHANGE_BUFFER] lists behind, the
+ * events it would miss are replaced by a single [NoteChange.Reset], delivered once it catches up.
+ * Only writes made through this queue are published. NoteDao's other writes (open stamps, sync
+ * marks, the edit journal) change nothing the list or search show, and go straight to the DAO.
+ *
+ * If a group fails, each submission in it is retried in its own transaction, so one bad write only
+ * fails its own caller. Failures are logged here too, since most single writes are never awaited.
+ */
+class NoteWriteQueue(
+    private val database: NoteDatabase,
+    private val scope: CoroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.IO),
+    private val windowMs: Long = 30,
+    private val maxGroupSize: Int = 500
+) {
+    private sealed class Mutation {
+        class Save(val note: Note) : Mutation() {
+            override fun toString() = if (note.id == 0) "insert" else "save ${note.id}"
+        }
+        class Delete(val id: Int) : Mutation() {
+            override fun toString() = "delete $id"
+        }
+        class Compact(val id: Int) : Mutation() {
+            override fun toString() = "compact $id"
+        }
+        class ArchiveCold(val cutoff: Long, val afterId: Int, val limit: Int) : Mutation() {
+            // Set once the commit holding it succeeds
+            @Volatile var batch: NoteDao.ArchiveBatch? = null
+            override fun toString() = "archive up to $limit after $afterId"
+        }
+        class Restore(val id: Int) : Mutation() {
+            override fun toString() = "restore $id"
+        }
+    }
+
+    // Mutations submitted together stay together, so a bulk import is never split across commits.
+    private class Submission(val mutations: List<Mutation>, val result: CompletableDeferred<List<Int>>)
+
+    private val noteDao = database.noteDao()
+    private val channel = Channel<Submission>(Channel.UNLIMITED)
+
+    // Suspending overflow so tryEmit reports a full buffer instead of silently dropping for a slow collector
+    private val _changes = MutableSharedFlow<List<NoteChange>>(
+        extraBufferCapacity = CHANGE_BUFFER,
+        onBufferOverflow = BufferOverflow.SUSPEND
+    )
+    val changes: SharedFlow<List<NoteChange>> = _changes.asSharedFlow()
+
+    // Set while commits are being dropped until a Reset gets through; guarded by _changes
+    private var resetPending = false
+
+    init {
+        scope.launch { drain() }
+    }
+
+    /** Queues an insert (id == 0) or replace. Completes with the note id once committed. */
+    fun save(note: Note): Deferred<Int> = enqueueSingle(Mutation.Save(note))
+
+    fun delete(id: Int): Deferred<Int> = enqueueSingle(Mutation.Delete(id))
+
+    /** Queues a list of notes that will be committed in the same transaction. */
+    fun saveAll(notes: List<Note>): Deferred<List<Int>> = enqueue(notes.map { Mutation.Save(it) })
+
+    fun deleteAll(ids: List<Int>): Deferred<List<Int>> = enqueue(ids.map { Mutation.Delete(it) })
+
+    /**
+     * Queues folding the note's autosaved edit journal into its stored body. Runs after the group's
+     * saves and deletes, so a save or delete of the same note in the group simply leaves nothing to fold.
+     */
+    fun compact(id: Int): Deferred<Int> = enqueueSingle(Mutation.Compact(id))
+
+    /**
+     * Queues moving up to [limit] received notes idle since [cutoff], with ids above [afterId], to the
+     * cold archive. Call again from the batch's lastId while it examined [limit] notes.
+     */
+    fun archiveCold(cutoff: Long, afterId: Int, limit: Int): Deferred<NoteDao.ArchiveBatch> {
+        val mutation = Mutation.ArchiveCold(cutoff, afterId, limit)
+        val submitted = enqueue(listOf(mutation))
+        return scope.async {
+            submitted.await()
+            checkNotNull(mutation.batch)
+        }
+    }
+
+    /** Queues moving an archived note back to the hot table. Completes with the id, or 0 if it wasn't archived. */
+    fun restore(id: Int): Deferred<Int> = enqueueSingle(Mutation.Restore(id))
+
+    private fun enqueueSingle(mutation: Mutation): Deferred<Int> {
+        val submitted = enqueue(listOf(mutation))
+        return scope.async { submitted.await().first() }
+    }
+
+    private fun enqueue(mutations: List<Mutation>): Deferred<List<Int>> {
+        val result = CompletableDeferred<List<Int>>()
+        if (mutations.isEmpty()) {
+            result.complete(emptyList())
+        } else {
+            channel.trySend(Submission(mutations, result))
+        }
+        return result
+    }
+
+    private suspend fun drain() {
+        for (first in channel) {
+            // Group-commit window: let concurrent writers pile up behind the first one
+            delay(windowMs)
+            val group = mutableListOf(first)
+            var size = first.mutations.size
+            while (size < maxGroupSize) {
+                val next = channel.tryReceive().getOrNull() ?: break
+                group += next
+                size += next.mutations.size
+            }
+            commit(group)
+        }
+    }
+
+    private suspend fun commit(group: List<Submission>) {
+        val inserts = ArrayList<Mutation.Save>()
+        val saves = LinkedHashMap<Int, Mutation.Save>()
+        val deletes = LinkedHashMap<Int, Mutation.Delete>()
+        val compacts = LinkedHashSet<Int>()
+        val restores = LinkedHashSet<Int>()
+        val archives = ArrayList<Mutation.ArchiveCold>()
+        for (submission in group) {
+            for (mutation in submission.mutations) {
+                when (mutation) {
+                    is Mutation.Save -> {
+                        val id = mutation.note.id
+                        if (id == 0) {
+                            inserts += mutation
+                        } else {
+                            deletes.remove(id)
+                            saves[id] = mutation
+                        }
+                    }
+                    is Mutation.Delete -> {
+                        saves.remove(mutation.id)
+                        deletes[mutation.id] = mutation
+                    }
+                    is Mutation.Compact -> compacts += mutation.id
+                    is Mutation.Restore -> restores += mutation.id
+                    is Mutation.ArchiveCold -> archives += mutation
+                }
+            }
+        }
+
+        val insertedIds = IdentityHashMap<Mutation.Save, Int>()
+        val compacted = ArrayList<Int>()
+        val restored = ArrayList<Int>()
+        val archived = ArrayList<Int>()
+        val archiveBatches = IdentityHashMap<Mutation.ArchiveCold, NoteDao.ArchiveBatch>()
+        try {
+            database.withTransaction {
+                val toSave = inserts + saves.values
+                val ids = noteDao.saveNotes(toSave.map { it.note })
+                toSave.forEachIndexed { i, save -> insertedIds[save] = ids[i] }
+                noteDao.deleteNotesByIds(deletes.keys.toList())
+                compacts.filterTo(compacted) { noteDao.compactEdits(it) }
+                restores.filterTo(restored) { noteDao.restoreArchivedNote(it) }
+                for (archive in archives) {
+                    val batch = noteDao.archiveColdNotes(archive.cutoff, archive.limit, archive.afterId)
+                    archiveBatches[archive] = batch
+                    archived += batch.archived
+                }
+            }
+        } catch (e: Exception) {
+            if (group.size > 1) {
+                // The transaction rolled back as a whole, so nothing in the group has been applied yet
+                Log.w("NoteWriteQueue", "Group commit failed for ${group.size} submissions; retrying each on its own", e)
+                group.forEach { commit(listOf(it)) }
+            } else {
+                val submission = group.single()
+                val described = submission.mutations.take(3).joinToString() +
+                    if (submission.mutations.size > 3) " and ${submission.mutations.size - 3} more" else ""
+                Log.e("NoteWriteQueue", "Write failed: $described", e)
+                submission.result.completeExceptionally(e)
+            }
+            return
+        }
+        for ((archive, batch) in archiveBatches) archive.batch = batch
+        val mutationCount = group.sumOf { it.mutations.size }
+        Log.d("NoteWriteQueue", "Committed group: mutations=$mutationCount " +
+            "writes=${inserts.size + saves.size + deletes.size + compacted.size} " +
+            "restored=${restored.size} archived=${archived.size} submissions=${group.size}")
+        val committed = ArrayList<NoteChange>(
+            inserts.size + saves.size + deletes.size + compacted.size + restored.size + archived.size)
+        inserts.mapTo(committed) { NoteChange.Inserted(insertedIds.getValue(it)) }
+        saves.keys.mapTo(committed) { NoteChange.Updated(it) }
+        deletes.keys.mapTo(committed) { NoteChange.Deleted(it) }
+        compacted.mapTo(committed) { NoteChange.Updated(it) }
+        restored.mapTo(committed) { NoteChange.Inserted(it) }
+        archived.mapTo(committed) { NoteChange.Archived(it) }
+        for (submission in group) {
+            submission.result.complete(submission.mutations.map { mutation ->
+                when (mutation) {
+                    // Superseded saves report the id of the note they targeted
+                    is Mutation.Save -> insertedIds[mutation] ?: mutation.note.id
+                    is Mutation.Delete -> mutation.id
+                    is Mutation.Compact -> mutation.id
+                    is Mutation.Restore -> if (mutation.id in restored) mutation.id else 0
+                    is Mutation.ArchiveCold -> archiveBatches.getValue(mutation).archived.size
+                }
+            })
+        }
+        publish(committed)
+    }
+
+    private fun publish(committed: List<NoteChange>) {
+        synchronized(_changes) {
+            if (resetPending || _changes.tryEmit(committed)) return
+            resetPending = true
+        }
+        Log.w("NoteWriteQueue", "A change collector fell behind; dropping changes until it takes a reset")
+        scope.launch {
+            // Cleared under the same lock as the emit, so every dropped commit lands before the Reset
+            while (!synchronized(_changes) { _changes.tryEmit(RESET).also { if (it) resetPending = false } }) {
+                delay(RESET_RETRY_MS)
+            }
+        }
+    }
+
+    private companion object {
+        // Commit lists a collector may fall behind by before it gets a Reset instead
+        const val CHANGE_BUFFER = 64
+        const val RESET_RETRY_MS = 50L
+        val RESET = listOf(NoteChange.Reset)
+    }
+}
@@ -1,23 +1,180 @@
 package com.xfire.textlinker
 
 import android.app.Application
+import android.net.Uri
 import android.util.Log
+import androidx.core.text.PrecomputedTextCompat
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.viewModelScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.IOException
 
 class NotesViewModel(application: Application) : AndroidViewModel(application) {
-    private val noteDao = NoteDatabase.getDatabase(application).noteDao()
-    val allNotes: LiveData<List<NoteEntity>> = noteDao.getAllNotes()
+    private val database = NoteDatabase.getDatabase(application)
+    private val noteDao = database.noteDao()
+    private val writeQueue = database.writeQueue
+    private val noteCache = database.noteCache
+
+    // Paged list of summaries for FirstFragment; bodies are only loaded when a note is opened
+    private val summaryPager = NoteSummaryPager(database, viewModelScope).also { it.start() }
+    val noteSummaries: LiveData<List<NoteSummary>> = summaryPager.summaries
+
+    fun loadMoreNotes() {
+        summaryPager.loadNextPage()
+    }
+
+    // Search-as-you-type for FirstFragment; results carry the sequence number of their query
+    private val _searchResults = MutableLiveData<NoteSearchPipeline.Result>()
+    val searchResults: LiveData<NoteSearchPipeline.Result> = _searchResults
+    private val searchPipeline = NoteSearchPipeline(
+        viewModelScope,
+        search = { searchSummaries(it) },
+        suggest = { query, exact -> fuzzySummaries(query, exact) },
+        loadTexts = { ids ->
+            withContext(Dispatchers.IO) { noteDao.getSearchTexts(ids, NoteSearchPipeline.NARROW_MAX_CHARS) }
+        },
+        onResult = { highlight(it) }
+    )
+    private var highlightJob: Job? = null
+
+    /** Text metrics of a list row, set by the list screen so highlighted titles can be measured off the main thread. */
+    @Volatile var rowTextParams: PrecomputedTextCompat.Params? = null
+
+    init {
+        // A commit may change which notes match, so the narrowing snapshot can't be trusted past it
+        viewModelScope.launch {
+            writeQueue.changes.collect { searchPipeline.refresh() }
+        }
+    }
+
+    /** Queues a search for [query]. Returns its sequence number; results for older ones are stale. */
+    fun submitSearch(query: String): Long = searchPipeline.submit(query)
+
+    val latestSearchSeq: Long get() = searchPipeline.latestSeq
+
+    // Publishes the result once the first screenful of rows has highlighted text, then again when
+    // the rest do. Text is built and measured off the main thread.
+    private fun highlight(result: NoteSearchPipeline.Result) {
+        highlightJob?.cancel()
+        highlightJob = viewModelScope.launch {
+            val params = rowTextParams
+            val texts = HashMap<Int, CharSequence>()
+            val first = result.summaries.take(HIGHLIGHT_FIRST_BATCH)
+            val rest = result.summaries.drop(HIGHLIGHT_FIRST_BATCH)
+            for ((i, batch) in listOf(first, rest).withIndex()) {
+                if (i > 0 && batch.isEmpty()) break
+                withContext(Dispatchers.Default) {
+                    for (summary in batch) {
+                        NoteHighlighter.highlight(summary, result.query, params)?.let { texts[summary.id] = it }
+                    }
+                }
+                if (result.seq != searchPipeline.latestSeq) return@launch
+                _searchResults.value = result.withTexts(HashMap(texts))
+            }
+        }
+    }
+
+    // Archived notes aren't in the list, so the list screen shows how many there are. Only emits when
+    // the value actually changes; a slow collector just sees the latest one.
+    val archivedCount: Flow<Int> = noteDao.observeArchivedCount().distinctUntilChanged().conflate()
+
+    /** Archived notes, most recently archived first. Opening one restores it. */
+    suspend fun getArchivedSummaries(): List<NoteSummary> =
+        withContext(Dispatchers.IO) { noteDao.getArchivedSummaries() }
+
+    /** Full note for the detail, edit and share screens, from the note cache or the database. */
+    suspend fun getNote(id: Int): Note? {
+        val note = noteCache.peek(id) ?: withContext(Dispatchers.IO) { noteCache.get(id) }
+        if (note != null) {
+            // Keeps the note out of the cold archive; writes at most once a day per note
+            viewModelScope.launch(Dispatchers.IO) {
+                noteDao.touchOpened(id, System.currentTimeMillis(), OPENED_AT_GRANULARITY_MS)
+            }
+        }
+        return note
+    }
+
+    /**
+     * Title and mapped body for a note whose body lives in a file, so the viewer can page through it
+     * without building the whole String. Null for notes stored in the database; use [getNote] then.
+     */
+    suspend fun openLargeNote(id: Int): Pair<String, MappedNoteBody>? = withContext(Dispatchers.IO) {
+        val row = noteDao.getNoteRow(id) ?: return@withContext null
+        val body = noteDao.mapNoteBody(id) ?: return@withContext null
+        noteDao.touchOpened(id, System.currentTimeMillis(), OPENED_AT_GRANULARITY_MS)
+        row.title to body
+    }
+
+    // Edit history, newest first; each entry's body is rebuilt on demand by getNoteRevision.
+    suspend fun getRevisions(id: Int): List<NoteRevisionInfo> = withContext(Dispatchers.IO) {
+        noteDao.getRevisions(id)
+    }
+
+    suspend fun getNoteRevision(id: Int, revision: Int): String? = withContext(Dispatchers.IO) {
+        noteDao.getNoteRevision(id, revision)
+    }
+
+    // Autosave for the note open in ThirdFragment; kept here so it survives configuration changes
+    private var editSession: NoteEditSession? = null
+    // Flush of the last session, which must land before the journal is read again
+    private var lastFlush: Job? = null
+
+    /**
+     * Loads [id] for editing with its autosaved journal replayed and starts a new autosave session
+     * for it. Returns null if the note no longer exists.
+     */
+    suspend fun startEditing(id: Int): EditableNote? {
+        stopEditing()
+        lastFlush?.join()
+        val editable = withContext(Dispatchers.IO) {
+            database.restoreIfArchived(id)
+            noteDao.openForEditing(id)
+        } ?: return null
+        editSession = NoteEditSession(id, editable.baseHash, editable.journalBytes, noteDao, writeQueue)
+        return editable
+    }
+
+    /** The running autosave session for [id], if the editor already started one. */
+    fun editSession(id: Int): NoteEditSession? = editSession?.takeIf { it.noteId == id && !it.isClosed }
+
+    /** Saves the edited note in full, which supersedes its journal, and ends the autosave session. */
+    fun saveEditedNote(note: Note) {
+        val session = editSession(note.id)
+        editSession = null
+        if (session == null) {
+            writeQueue.save(note)
+            return
+        }
+        val idle = session.close()
+        lastFlush = viewModelScope.launch {
+            idle.join()
+            try {
+                writeQueue.save(note).await()
+            } catch (e: Exception) {
+                Log.e("NotesViewModel", "Error saving edited note ${note.id}", e)
+            }
+        }
+    }
+
+    /** Writes out any pending edits and ends the session; the journal stays until it is compacted or saved. */
+    fun stopEditing() {
+        editSession?.let { lastFlush = it.flushNow() }
+        editSession = null
+    }
     
     // Selected note for sharing
-    private val _selectedNote = MutableLiveData<NoteEntity?>()
-    val selectedNote: LiveData<NoteEntity?> = _selectedNote
+    private val _selectedNote = MutableLiveData<Note?>()
+    val selectedNote: LiveData<Note?> = _selectedNote
     
-    fun setSelectedNote(note: NoteEntity) {
+    fun setSelectedNote(note: Note) {
         _selectedNote.value = note
     }
     
@@ -25,7 +182,7 @@ class NotesViewModel(application: Application) : AndroidViewModel(application) {
         _selectedNote.value = null
     }
 
-    fun insert(note: NoteEntity) {
+    fun insert(note: Note) {
         viewModelScope.launch(Dispatchers.IO) {
             try {
                 // Log before insertion
@@ -33,14 +190,10 @@ class NotesViewModel(application: Application) : AndroidViewModel(application) {
                 
                 // Ensure fromServer is properly set
                 val newNote = note.copy(fromServer = note.fromServer)
-                noteDao.insertNote(newNote)
+                val id = writeQueue.save(newNote).await()
                 
                 // Log after successful insertion
-                Log.d("NotesViewModel", "Successfully inserted note - title: '${note.title.take(20)}...', fromServer: ${note.fromServer}")
-                
-                // Verify the note was inserted correctly
-                val allNotes = noteDao.getAllNotes()
-                Log.d("NotesViewModel", "Total notes in DB: ${allNotes.value?.size ?: 0}")
+                Log.d("NotesViewModel", "Successfully inserted note id=$id - title: '${note.title.take(20)}...', fromServer: ${note.fromServer}")
                 
             } catch (e: Exception) {
                 Log.e("NotesViewModel", "Error inserting note", e)
@@ -49,46 +202,147 @@ class NotesViewModel(application: Application) : AndroidViewModel(application) {
         }
     }
 
-    fun delete(note: NoteEntity) {
+    fun delete(note: Note) {
+        writeQueue.delete(note.id)
+    }
+
+    /** Inserts or replaces a whole list of notes in one transaction. */
+    fun insertAll(notes: List<Note>) {
+        if (notes.isEmpty()) return
         viewModelScope.launch(Dispatchers.IO) {
-            noteDao.deleteNote(note)
+            try {
+                val ids = writeQueue.saveAll(notes).await()
+                Log.d("NotesViewModel", "Bulk saved ${ids.size} notes in one transaction")
+            } catch (e: Exception) {
+                Log.e("NotesViewModel", "Error bulk inserting ${notes.size} notes", e)
+            }
         }
     }
 
-    fun update(note: NoteEntity) {
+    /** Deletes a whole list of notes in one transaction. */
+    fun deleteAll(ids: List<Int>) {
+        if (ids.isEmpty()) return
         viewModelScope.launch(Dispatchers.IO) {
-            noteDao.updateNote(note)
+            try {
+                writeQueue.deleteAll(ids).await()
+                Log.d("NotesViewModel", "Bulk deleted ${ids.size} notes in one transaction")
+            } catch (e: Exception) {
+                Log.e("NotesViewModel", "Error bulk deleting ${ids.size} notes", e)
+            }
+        }
+    }
+
+    fun deleteById(id: Int) {
+        writeQueue.delete(id)
+    }
+
+    fun update(note: Note) {
+        writeQueue.save(note)
+    }
+
+    /**
+     * Ranked word-prefix search backed by notes_fts.
+     * Returns null when the query has nothing the index can match on (e.g. only punctuation).
+     */
+    suspend fun search(query: String): List<NoteSearchHit>? {
+        val matchQuery = NoteSearch.toMatchQuery(query) ?: return null
+        return withContext(Dispatchers.IO) {
+            try {
+                NoteSearch.rank(noteDao.searchNotes(matchQuery))
+            } catch (e: Exception) {
+                Log.e("NotesViewModel", "Error searching notes for '$matchQuery'", e)
+                null
+            }
         }
     }
 
-    suspend fun getLocalNotes(): List<NoteEntity> {
-        return try {
-            Log.d("NotesViewModel", "Fetching local notes...")
-            val notes = noteDao.getLocalNotes()
-            Log.d("NotesViewModel", "getLocalNotes() returned ${notes.size} notes")
-            
-            // Log all local notes for debugging
-            notes.forEachIndexed { index, note ->
-                Log.d("NotesViewModel", "Local note #$index: id=${note.id}, " +
-                    "title='${note.title.take(20)}...', " +
-                    "fromServer=${note.fromServer}, " +
-                    "contentLength=${note.content.length}")
+    /**
+     * Search results as summaries. Word-prefix FTS hits come first, best match first, followed by
+     * the rest of the case-insensitive substring matches from the trigram index, newest first.
+     * Until the index is ready the substring matches come from scanning the stored notes instead.
+     */
+    suspend fun searchSummaries(query: String): List<NoteSummary> {
+        val hits = search(query)
+        return withContext(Dispatchers.IO) {
+            val substringIds = try {
+                database.searchIndexer.findIds(query)
+            } catch (e: Exception) {
+                Log.e("NotesViewModel", "Error searching trigram index for '$query'", e)
+                null
             }
-            
-            // Also log all notes for comparison
-            val allNotes = noteDao.getAllNotes().value ?: emptyList()
-            Log.d("NotesViewModel", "Total notes in database: ${allNotes.size}")
-            allNotes.forEachIndexed { index, note ->
-                Log.d("NotesViewModel", "All note #$index: id=${note.id}, " +
-                    "title='${note.title.take(20)}...', " +
-                    "fromServer=${note.fromServer}, " +
-                    "contentLength=${note.content.length}")
+            // FTS alone only finds word prefixes, so without the index scan for the substring matches
+            val scanned = if (substringIds == null) noteDao.searchNoteSummariesContaining(query) else null
+            if (hits == null && scanned != null) return@withContext scanned
+            val ids = LinkedHashSet<Int>()
+            hits?.forEach { ids += it.id }
+            substringIds?.forEach { ids += it }
+            scanned?.forEach { ids += it.id }
+            val byId = HashMap<Int, NoteSummary>()
+            scanned?.associateByTo(byId) { it.id }
+            // Hits may be archived notes. The query binds each id twice, so stay under half the limit
+            ids.filter { it !in byId }.chunked(NoteDao.MAX_BIND_ARGS / 2)
+                .flatMap { noteDao.getSearchSummariesByIds(it) }
+                .associateByTo(byId) { it.id }
+            ids.mapNotNull { byId[it] }
+        }
+    }
+
+    /**
+     * Notes whose title or first line is a few typos away from [query], closest first, leaving out
+     * [exclude] (the exact matches, which rank above these).
+     */
+    suspend fun fuzzySummaries(query: String, exclude: Set<Int>): List<NoteSummary> = withContext(Dispatchers.IO) {
+        val matches = database.searchIndexer.findFuzzy(query, FUZZY_LIMIT + exclude.size)
+        val ids = matches.map { it.id }.filter { it !in exclude }.take(FUZZY_LIMIT)
+        if (ids.isEmpty()) return@withContext emptyList()
+        val byId = noteDao.getSearchSummariesByIds(ids).associateBy { it.id }
+        ids.mapNotNull { byId[it] }
+    }
+
+    /** Writes every note to [uri] as a NoteArchive. Returns the number exported. */
+    suspend fun exportNotes(uri: Uri): Int = withContext(Dispatchers.IO) {
+        val resolver = getApplication<Application>().contentResolver
+        val out = resolver.openOutputStream(uri) ?: throw IOException("Cannot open $uri for writing")
+        out.use { NoteArchive.export(noteDao, it) }
+    }
+
+    /** Adds every note in the NoteArchive at [uri] as a new note. Returns the number imported. */
+    suspend fun importNotes(uri: Uri): Int = withContext(Dispatchers.IO) {
+        val resolver = getApplication<Application>().contentResolver
+        val input = resolver.openInputStream(uri) ?: throw IOException("Cannot open $uri for reading")
+        input.use { NoteArchive.import(writeQueue, it) }
+    }
+
+    override fun onCleared() {
+        stopEditing()
+        searchPipeline.cancel()
+        summaryPager.stop()
+        super.onCleared()
+    }
+
+    /** Local notes changed or deleted since the last successful upload for [token]. */
+    suspend fun getDirtyNotesForToken(token: String): List<DirtyNote> = withContext(Dispatchers.IO) {
+        try {
+            noteDao.getDirtyNotesForToken(token).also {
+                Log.d("NotesViewModel", "getDirtyNotesForToken(${token.take(6)}) returned ${it.size} notes")
             }
-            
-            notes
         } catch (e: Exception) {
-            Log.e("NotesViewModel", "Error in getLocalNotes()", e)
+            Log.e("NotesViewModel", "Error in getDirtyNotesForToken()", e)
             emptyList()
         }
     }
+
+    fun markSynced(token: String, notes: List<DirtyNote>, syncedUpTo: Long) {
+        viewModelScope.launch(Dispatchers.IO) {
+            noteDao.markSynced(token, notes.map { it.note.id }, syncedUpTo)
+        }
+    }
+
+    companion object {
+        private const val OPENED_AT_GRANULARITY_MS = 24L * 60 * 60 * 1000
+        // Typo-tolerant suggestions shown after the exact matches
+        private const val FUZZY_LIMIT = 20
+        // Rows highlighted before the first update, enough to fill the screen
+        private const val HIGHLIGHT_FIRST_BATCH = 40
+    }
 }
@@ -0,0 +1,109 @@
+package com.xfire.textlinker
+
+import android.util.Log
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Per-statement latency histograms for everything run through [InstrumentedOpenHelperFactory].
+ *
+ * Statements are keyed by their SQL with whitespace collapsed and `IN (?, ?, ...)` lists folded,
+ * so a query shows up once no matter how many ids it was called with. Dump to Logcat with [dump]
+ * (long-press Help on the notes list) or read [snapshot] from tests.
+ *
+ * Only debug builds install the factory, so release builds record nothing. At most
+ * [MAX_STATEMENTS] statements are tracked; later ones are counted together under [OTHER_STATEMENTS].
+ */
+object QueryStats {
+    private const val TAG = "QueryStats"
+
+    // Bucket upper bounds in microseconds; the last bucket is everything slower. 16 ms is one frame.
+    val BUCKET_BOUNDS_US = longArrayOf(100, 250, 500, 1_000, 2_000, 4_000, 8_000, 16_000, 33_000)
+
+    class StatementStats(
+        val sql: String,
+        val count: Long,
+        val totalNanos: Long,
+        val maxNanos: Long,
+        val rows: Long,
+        val mainThreadCount: Long,
+        val buckets: LongArray
+    ) {
+        val meanMs: Double get() = if (count == 0L) 0.0 else totalNanos / count / 1_000_000.0
+
+        /** Upper bound of the bucket holding the given percentile, in ms (null = slower than the last bound). */
+        fun percentileMs(percentile: Int): Double? {
+            val target = (count * percentile + 99) / 100
+            var seen = 0L
+            for (i in buckets.indices) {
+                seen += buckets[i]
+                if (seen >= target) return BUCKET_BOUNDS_US.getOrNull(i)?.let { it / 1_000.0 }
+            }
+            return null
+        }
+    }
+
+    private class Entry {
+        var count = 0L
+        var totalNanos = 0L
+        var maxNanos = 0L
+        var rows = 0L
+        var mainThreadCount = 0L
+        val buckets = LongArray(BUCKET_BOUNDS_US.size + 1)
+    }
+
+    private val entries = HashMap<String, Entry>()
+    // Room reuses the same SQL strings, so normalizing once per distinct string is enough
+    private val keys = ConcurrentHashMap<String, String>()
+    private val whitespace = Regex("\\s+")
+    private val inList = Regex("\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)")
+
+    fun record(sql: String, nanos: Long, rows: Int, mainThread: Boolean) {
+        val key = keys[sql] ?: normalize(sql).also { if (keys.size < MAX_KEYS) keys[sql] = it }
+        val micros = nanos / 1_000
+        var bucket = 0
+        while (bucket < BUCKET_BOUNDS_US.size && micros > BUCKET_BOUNDS_US[bucket]) bucket++
+        synchronized(this) {
+            val entry = entries[key]
+                ?: if (entries.size < MAX_STATEMENTS) Entry().also { entries[key] = it }
+                else entries.getOrPut(OTHER_STATEMENTS) { Entry() }
+            entry.count++
+            entry.totalNanos += nanos
+            if (nanos > entry.maxNanos) entry.maxNanos = nanos
+            if (rows > 0) entry.rows += rows
+            if (mainThread) entry.mainThreadCount++
+            entry.buckets[bucket]++
+        }
+    }
+
+    /** All statements seen since the last [reset], most total time first. */
+    @Synchronized fun snapshot(): List<StatementStats> = entries.map { (sql, e) ->
+        StatementStats(sql, e.count, e.totalNanos, e.maxNanos, e.rows, e.mainThreadCount, e.buckets.copyOf())
+    }.sortedByDescending { it.totalNanos }
+
+    /** Stats for the first statement whose SQL contains [fragment], or null. */
+    fun find(fragment: String): StatementStats? = snapshot().firstOrNull { it.sql.contains(fragment) }
+
+    @Synchronized fun reset() {
+        entries.clear()
+    }
+
+    fun dump(maxStatements: Int = 30) {
+        val stats = snapshot()
+        Log.d(TAG, "--- Dumping query stats for ${stats.size} statements (top $maxStatements by total time) ---")
+        for (s in stats.take(maxStatements)) {
+            val p95 = s.percentileMs(95)?.let { "<=${it}ms" } ?: ">${BUCKET_BOUNDS_US.last() / 1_000}ms"
+            Log.d(TAG, "total=${s.totalNanos / 1_000_000}ms count=${s.count} " +
+                "mean=${"%.2f".format(s.meanMs)}ms p95$p95 max=${s.maxNanos / 1_000_000}ms " +
+                "rows=${s.rows} main=${s.mainThreadCount} sql=${s.sql.take(200)}")
+        }
+        Log.d(TAG, "--- End of query stats dump ---")
+    }
+
+    private fun normalize(sql: String): String = sql.trim().replace(whitespace, " ").replace(inList, "(?...)")
+
+    // Guards against unbounded growth from ad-hoc SQL built with literals
+    private const val MAX_KEYS = 2_000
+
+    const val MAX_STATEMENTS = 500
+    const val OTHER_STATEMENTS = "(other statements)"
+}
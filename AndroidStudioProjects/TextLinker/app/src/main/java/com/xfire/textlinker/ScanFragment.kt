@@ -35,7 +35,8 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import com.google.mlkit.vision.barcode.common.Barcode
 import com.xfire.textlinker.network.TextLinkerApiService
-import com.xfire.textlinker.NoteEntity
+import com.xfire.textlinker.Note
+import com.xfire.textlinker.util.CombinedPayload
 import java.util.concurrent.ExecutorService
 import com.google.common.util.concurrent.ListenableFuture
 import kotlinx.coroutines.suspendCancellableCoroutine
@@ -58,8 +59,6 @@ class ScanFragment : Fragment() {
     private val serverUrl = "https://textlinker.pro"
     private val TAG = "ScanFragment"
     private val chunkSize = 8000 // default chunk size in characters
-    private val NOTE_DELIM = "\n\n---TEXTLINKER NOTE---\n\n"
-    private val COMBINED_HEADER = "// TextLinker Combined v1\n"
 
     private val requestPermissionLauncher = registerForActivityResult(
         ActivityResultContracts.RequestPermission()
@@ -231,9 +230,12 @@ private fun processImage(imageProxy: ImageProxy) {
         try {
             Log.d("ScanFragment", "Starting upload of local notes to server")
             
-            // Get all local notes
-            val localNotes = viewModel.getLocalNotes()
-            Log.d("ScanFragment", "Retrieved ${localNotes.size} local notes")
+            // Only local notes changed since the last successful upload for this token
+            val syncStartedAt = System.currentTimeMillis()
+            val dirtyNotes = viewModel.getDirtyNotesForToken(token)
+            // The upload is plain text with no way to express a delete, so deletions only need marking
+            val localNotes = dirtyNotes.filter { !it.deleted }.map { it.note }
+            Log.d("ScanFragment", "Retrieved ${localNotes.size} changed and ${dirtyNotes.size - localNotes.size} deleted local notes")
             
             // Log details of all local notes
             localNotes.forEachIndexed { index, note ->
@@ -244,22 +246,17 @@ private fun processImage(imageProxy: ImageProxy) {
             }
             
             if (localNotes.isEmpty()) {
-                Log.d("ScanFragment", "No local notes to upload")
+                Log.d("ScanFragment", "No local changes to upload for token=${token.take(6)}")
+                if (dirtyNotes.isNotEmpty()) viewModel.markSynced(token, dirtyNotes, syncStartedAt)
                 withContext(Dispatchers.Main) {
-                    Toast.makeText(context, "No local notes to upload", Toast.LENGTH_SHORT).show()
+                    Toast.makeText(context, "No new notes to upload", Toast.LENGTH_SHORT).show()
                     showLoading(false)
                 }
                 return
             }
             
             // Build combined text from local notes with a simple header and delimiter
-            val combinedText = StringBuilder()
-            combinedText.append(COMBINED_HEADER)
-            localNotes.forEachIndexed { index, note ->
-                if (index > 0) combinedText.append(NOTE_DELIM)
-                combinedText.append(note.content)
-            }
-            val combinedTextStr = combinedText.toString()
+            val combinedTextStr = CombinedPayload.build(localNotes.map { it.content })
             Log.d("ScanFragment", "Combined text length: ${combinedTextStr.length} characters")
             Log.d("ScanFragment", "Preview of combined text:\n${combinedTextStr.take(500)}...")
             
@@ -282,6 +279,7 @@ private fun processImage(imageProxy: ImageProxy) {
                             .putString("last_uploaded_payload_$token", combinedTextStr)
                             .putLong("last_upload_success_$token", System.currentTimeMillis())
                             .apply()
+                        viewModel.markSynced(token, dirtyNotes, syncStartedAt)
                         activity?.runOnUiThread {
                             Toast.makeText(context, "Upload successful!", Toast.LENGTH_SHORT).show()
                             showLoading(false)
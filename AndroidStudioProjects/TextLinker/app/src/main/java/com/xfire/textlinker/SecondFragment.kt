@@ -1,15 +1,22 @@
 package com.xfire.textlinker
 
 import android.os.Bundle
+import android.text.method.ScrollingMovementMethod
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
+import android.view.ViewTreeObserver
 import android.widget.Button
 import android.widget.TextView
+import android.widget.Toast
 import androidx.fragment.app.Fragment
 import androidx.fragment.app.activityViewModels
+import androidx.lifecycle.lifecycleScope
 import androidx.navigation.fragment.findNavController
 import androidx.navigation.fragment.navArgs
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 class SecondFragment : Fragment() {
     private val args: SecondFragmentArgs by navArgs()  // This should now be generated
@@ -17,10 +24,19 @@ class SecondFragment : Fragment() {
     private lateinit var titleTextView: TextView
     private lateinit var contentTextView: TextView
     private lateinit var shareButton: Button
+    private lateinit var editButton: Button
     
     // Shared ViewModel
     private val viewModel: NotesViewModel by activityViewModels()
 
+    // File-backed body shown a page at a time; null for notes shown in full
+    private var largeBody: MappedNoteBody? = null
+    private var nextPageOffset = 0
+    private var loadingPage = false
+    // Paging trigger, registered on the window's observer, so it has to be removed with the view
+    private var scrollListener: ViewTreeObserver.OnScrollChangedListener? = null
+    private var scrollObserver: ViewTreeObserver? = null
+
     override fun onCreateView(
         inflater: LayoutInflater, container: ViewGroup?,
         savedInstanceState: Bundle?
@@ -33,32 +49,89 @@ class SecondFragment : Fragment() {
         titleTextView = view.findViewById(R.id.tvDetailTitle)
         contentTextView = view.findViewById(R.id.tvDetailContent)
         shareButton = view.findViewById(R.id.btnShare)
+        editButton = view.findViewById(R.id.btnEdit)
 
-        // Access the arguments generated by Safe Args
-        titleTextView.text = args.title
-        contentTextView.text = args.content
+        // Only the id comes through Safe Args; the note is resolved from the cache or the database
+        shareButton.isEnabled = false
+        editButton.isEnabled = false
+        viewLifecycleOwner.lifecycleScope.launch {
+            val large = viewModel.openLargeNote(args.noteId)
+            if (large != null) {
+                titleTextView.text = large.first
+                showPaged(large.second)
+                shareButton.isEnabled = true
+                editButton.isEnabled = true
+                return@launch
+            }
+            val note = viewModel.getNote(args.noteId)
+            if (note == null) {
+                Toast.makeText(context, "Note no longer exists", Toast.LENGTH_SHORT).show()
+                findNavController().navigateUp()
+                return@launch
+            }
+            titleTextView.text = note.title
+            contentTextView.text = note.content
+            shareButton.isEnabled = true
+            editButton.isEnabled = true
+        }
         
         // Set up share button
         shareButton.setOnClickListener {
-            // Create a temporary note entity from the arguments
-            val noteToShare = NoteEntity(
-                id = 0, // Temporary ID
-                title = args.title,
-                content = args.content,
-                timestamp = System.currentTimeMillis(),
-                fromServer = false
-            )
-            
-            // Set the selected note in the ViewModel
-            viewModel.setSelectedNote(noteToShare)
-            
-            // Navigate to the ShareFragment with arguments
-            val action = SecondFragmentDirections.actionSecondFragmentToShareFragment(
-                noteId = noteToShare.id,
-                noteTitle = noteToShare.title,
-                noteContent = noteToShare.content
-            )
+            val action = SecondFragmentDirections.actionSecondFragmentToShareFragment(noteId = args.noteId)
+            findNavController().navigate(action)
+        }
+
+        // The editor needs the whole body in its EditText, so only an explicit edit loads it
+        editButton.setOnClickListener {
+            val action = SecondFragmentDirections.actionSecondFragmentToThirdFragment(noteId = args.noteId)
             findNavController().navigate(action)
         }
     }
+
+    override fun onDestroyView() {
+        scrollListener?.let { listener ->
+            // The observer it was added to may have been merged into the window's since
+            val observer = scrollObserver?.takeIf { it.isAlive } ?: contentTextView.viewTreeObserver
+            if (observer.isAlive) observer.removeOnScrollChangedListener(listener)
+        }
+        scrollListener = null
+        scrollObserver = null
+        super.onDestroyView()
+        largeBody = null
+    }
+
+    // Shows the first page and appends the next one whenever the user scrolls near the end
+    private fun showPaged(body: MappedNoteBody) {
+        largeBody = body
+        nextPageOffset = 0
+        contentTextView.text = ""
+        contentTextView.movementMethod = ScrollingMovementMethod()
+        val listener = ViewTreeObserver.OnScrollChangedListener {
+            val layout = contentTextView.layout ?: return@OnScrollChangedListener
+            val remaining = layout.height - contentTextView.scrollY - contentTextView.height
+            if (remaining < contentTextView.height) appendNextPage()
+        }
+        scrollListener = listener
+        scrollObserver = contentTextView.viewTreeObserver.also { it.addOnScrollChangedListener(listener) }
+        appendNextPage()
+    }
+
+    private fun appendNextPage() {
+        val body = largeBody ?: return
+        if (loadingPage || nextPageOffset >= body.byteLength) return
+        loadingPage = true
+        viewLifecycleOwner.lifecycleScope.launch {
+            // Touching the mapping may fault pages in from disk
+            val page = withContext(Dispatchers.IO) { body.read(nextPageOffset, PAGE_BYTES) }
+            if (largeBody === body) {
+                contentTextView.append(page.text)
+                nextPageOffset = page.end
+            }
+            loadingPage = false
+        }
+    }
+
+    companion object {
+        private const val PAGE_BYTES = 32 * 1024
+    }
 }
@@ -10,9 +10,11 @@ import android.widget.TextView
 import android.widget.Toast
 import androidx.fragment.app.Fragment
 import androidx.fragment.app.activityViewModels
+import androidx.lifecycle.lifecycleScope
 import androidx.navigation.fragment.navArgs
 import com.xfire.textlinker.network.TextLinkerApiService
 import com.xfire.textlinker.util.QRCodeGenerator
+import kotlinx.coroutines.launch
 
 class ShareFragment : Fragment() {
     
@@ -55,22 +57,18 @@ class ShareFragment : Fragment() {
             generateQRCode()
         }
         
-        // Check if we have arguments passed from navigation
-        if (args.noteId > 0 || args.noteTitle.isNotEmpty()) {
-            // Create a note entity from the arguments if not already in ViewModel
-            if (viewModel.selectedNote.value == null) {
-                val noteFromArgs = NoteEntity(
-                    id = args.noteId,
-                    title = args.noteTitle,
-                    content = args.noteContent,
-                    timestamp = System.currentTimeMillis(),
-                    fromServer = false
-                )
-                viewModel.setSelectedNote(noteFromArgs)
+        // Only the note id is passed; resolve the note from the cache or the database
+        if (args.noteId > 0) {
+            btnGenerateQR.isEnabled = false
+            viewLifecycleOwner.lifecycleScope.launch {
+                val note = viewModel.getNote(args.noteId)
+                if (note == null) {
+                    Toast.makeText(context, "Note no longer exists", Toast.LENGTH_SHORT).show()
+                } else {
+                    viewModel.setSelectedNote(note)
+                    btnGenerateQR.isEnabled = true
+                }
             }
-            
-            // Update UI with note title
-            tvShareInstructions.text = "Share note: ${args.noteTitle}"
         }
         
         // Also observe the selected note from ViewModel as a backup
@@ -111,7 +109,7 @@ class ShareFragment : Fragment() {
         }
     }
     
-    private fun uploadNoteToServer(token: String, note: NoteEntity) {
+    private fun uploadNoteToServer(token: String, note: Note) {
         // Combine title and content for sharing
         val textToShare = "${note.title}\n${note.content}"
         
@@ -15,6 +15,11 @@ class SplashActivity : AppCompatActivity() {
         enableEdgeToEdge()
         setContentView(R.layout.activity_splash) // Remove .xml from resource name
 
+        // Open the notes database in the background while the splash is showing
+        NoteDatabase.warmUp(applicationContext)
+        // FTS merge, vacuum, ANALYZE and WAL checkpoint while the device is idle or charging
+        NoteMaintenanceWorker.schedule(applicationContext)
+
         ViewCompat.setOnApplyWindowInsetsListener(findViewById(R.id.main)) { v, insets ->
             val systemBars = insets.getInsets(WindowInsetsCompat.Type.systemBars())
             v.setPadding(systemBars.left, systemBars.top, systemBars.right, systemBars.bottom)
@@ -0,0 +1,32 @@
+package com.xfire.textlinker
+
+import androidx.room.ColumnInfo
+
+// Title and encoded body of a live or archived note, for search; decode with toSearchText().
+class StoredSearchText(
+    val id: Int,
+    val title: String,
+    val codec: Int,
+    val data: ByteArray
+) {
+    fun toSearchText(): NoteSearchText = NoteSearchText(id, title, NoteBodyCodec.decode(codec, data))
+}
+
+// Row shape for NoteDao.DIRTY_SINCE_LAST_SYNC_QUERY. Tombstones come without a body (codec and data null).
+class DirtyStoredNote(
+    val id: Int,
+    val title: String,
+    val timestamp: Long,
+    @ColumnInfo(name = "from_server") val fromServer: Boolean,
+    val deleted: Boolean,
+    val codec: Int?,
+    val data: ByteArray?
+) {
+    fun toDirtyNote(): DirtyNote {
+        val content = if (codec == null || data == null) "" else NoteBodyCodec.decode(codec, data)
+        return DirtyNote(Note(id = id, title = title, content = content, timestamp = timestamp, fromServer = fromServer), deleted)
+    }
+}
+
+/** A local note changed since the last sync. A deleted one keeps its id and title; its content is empty. */
+class DirtyNote(val note: Note, val deleted: Boolean)
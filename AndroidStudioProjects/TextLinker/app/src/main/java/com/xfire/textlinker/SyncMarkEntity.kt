@@ -0,0 +1,12 @@
+package com.xfire.textlinker
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+// Per-token high-water mark: notes with updated_at above it have not been uploaded for that token.
+@Entity(tableName = "sync_marks")
+data class SyncMarkEntity(
+    @PrimaryKey val token: String,
+    @ColumnInfo(name = "last_synced_at") val lastSyncedAt: Long
+)
@@ -5,14 +5,19 @@ import android.view.View
 import android.view.ViewGroup
 import android.widget.ImageButton
 import android.widget.TextView
+import androidx.recyclerview.widget.DiffUtil
+import androidx.recyclerview.widget.ListAdapter
 import androidx.recyclerview.widget.RecyclerView
 
 class TextAdapter(
-    private var items: List<NoteEntity>,
     private val onItemClick: (NoteEntity) -> Unit,
     private val onDeleteClick: (NoteEntity) -> Unit,
     private val onOptionsClick: (NoteEntity, View) -> Unit
-) : RecyclerView.Adapter<TextAdapter.TextViewHolder>() {
+) : ListAdapter<NoteEntity, TextAdapter.TextViewHolder>(DIFF) {
+
+    init {
+        setHasStableIds(true)
+    }
 
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): TextViewHolder {
         val view = LayoutInflater.from(parent.context)
@@ -21,39 +26,53 @@ class TextAdapter(
     }
 
     override fun onBindViewHolder(holder: TextViewHolder, position: Int) {
-        holder.bind(items[position], onItemClick, onDeleteClick, onOptionsClick)
+        holder.bindTitle(getItem(position))
     }
 
-    override fun getItemCount(): Int = items.size
+    override fun getItemId(position: Int): Long = getItem(position).id.toLong()
 
     fun updateList(newList: List<NoteEntity>) {
-        items = newList
-        notifyDataSetChanged()
+        submitList(newList)
     }
 
-    class TextViewHolder(itemView: View) : RecyclerView.ViewHolder(itemView) {
+    private fun noteAt(position: Int): NoteEntity? =
+        if (position in 0 until itemCount) getItem(position) else null
+
+    // Listeners are set once here and read the bound note by adapter position when clicked
+    class TextViewHolder(itemView: View) : RecyclerView.ViewHolder(itemView), View.OnClickListener {
         private val tvItemTitle = itemView.findViewById<TextView>(R.id.tvItemTitle)
         private val btnOptions = itemView.findViewById<ImageButton>(R.id.btnOptions)
         private val cardView = itemView.findViewById<View>(R.id.cardView)
 
-        fun bind(
-            note: NoteEntity,
-            onItemClick: (NoteEntity) -> Unit,
-            onDeleteClick: (NoteEntity) -> Unit,
-            onOptionsClick: (NoteEntity, View) -> Unit
-        ) {
+        init {
+            cardView.setOnClickListener(this)
+            btnOptions.setOnClickListener(this)
+        }
+
+        fun bindTitle(note: NoteEntity) {
             // Set the title text
             tvItemTitle.text = note.title
-            
-            // Set click listener for the card view
-            cardView.setOnClickListener {
-                onItemClick(note)
-            }
-            
-            // Set click listener for the options button
-            btnOptions.setOnClickListener { view ->
-                onOptionsClick(note, view)
-            }
+        }
+
+        override fun onClick(view: View) {
+            // The holder keeps no adapter reference; ask for the one that bound this row
+            val adapter = bindingAdapter as? TextAdapter ?: return
+            val note = adapter.noteAt(bindingAdapterPosition) ?: return
+            if (view === btnOptions) adapter.onOptionsClick(note, view) else adapter.onItemClick(note)
+        }
+    }
+
+    companion object {
+        // Change payload: the title shown needs resetting
+        const val PAYLOAD_TITLE = 1
+
+        private val DIFF = object : DiffUtil.ItemCallback<NoteEntity>() {
+            override fun areItemsTheSame(oldItem: NoteEntity, newItem: NoteEntity): Boolean = oldItem.id == newItem.id
+
+            // Only what the row shows; clicks read the current list
+            override fun areContentsTheSame(oldItem: NoteEntity, newItem: NoteEntity): Boolean = oldItem.title == newItem.title
+
+            override fun getChangePayload(oldItem: NoteEntity, newItem: NoteEntity): Any = PAYLOAD_TITLE
         }
     }
-}
\ No newline at end of file
+}
@@ -1,18 +1,39 @@
 package com.xfire.textlinker
 
 import android.view.LayoutInflater
+import android.view.MenuItem
 import android.view.View
 import android.view.ViewGroup
+import androidx.core.text.PrecomputedTextCompat
+import androidx.core.widget.TextViewCompat
+import androidx.recyclerview.widget.DiffUtil
+import androidx.recyclerview.widget.ListAdapter
 import androidx.recyclerview.widget.RecyclerView
 import com.google.android.material.floatingactionbutton.ExtendedFloatingActionButton
 import android.widget.PopupMenu
 
+/**
+ * Note rows for FirstFragment. Lists are diffed on a background thread, so a new emission only
+ * rebinds the rows that changed, and a changed title or highlight only resets the row's text.
+ *
+ * Binding just sets the text: each view holder registers its listeners once and looks up the
+ * note it shows by adapter position when clicked.
+ */
 class TextLinkAdapter(
-    private var items: List<NoteEntity>,
-    private val onItemClick: (NoteEntity) -> Unit,
-    private val onDeleteClick: (NoteEntity) -> Unit,
-    private val onShareClick: (NoteEntity) -> Unit
-) : RecyclerView.Adapter<TextLinkAdapter.NoteFabViewHolder>() {
+    private val onItemClick: (NoteSummary) -> Unit,
+    private val onDeleteClick: (NoteSummary) -> Unit,
+    private val onShareClick: (NoteSummary) -> Unit
+) : ListAdapter<TextLinkAdapter.Row, TextLinkAdapter.NoteFabViewHolder>(DIFF) {
+
+    /**
+     * A note as shown in the list. [text] is the ready-made row text (a highlighted search result)
+     * for [query], or null for the plain title.
+     */
+    class Row(val note: NoteSummary, val text: CharSequence?, val query: String)
+
+    init {
+        setHasStableIds(true)
+    }
 
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): NoteFabViewHolder {
         val view = LayoutInflater.from(parent.context)
@@ -21,52 +42,107 @@ class TextLinkAdapter(
     }
 
     override fun onBindViewHolder(holder: NoteFabViewHolder, position: Int) {
-        holder.bind(items[position], onItemClick, onDeleteClick, onShareClick)
+        holder.bindText(getItem(position))
     }
 
-    override fun getItemCount(): Int = items.size
+    override fun getItemId(position: Int): Long = getItem(position).note.id.toLong()
+
+    // The pool slot MainActivity.noteViewPool is sized for
+    override fun getItemViewType(position: Int): Int = VIEW_TYPE
 
-    fun updateList(newList: List<NoteEntity>) {
-        items = newList
-        notifyDataSetChanged()
+    /** Shows [newList]; [newTexts] holds highlighted row texts by note id for the search [query]. */
+    fun updateList(newList: List<NoteSummary>, newTexts: Map<Int, CharSequence> = emptyMap(), query: String = "") {
+        submitList(newList.map { Row(it, newTexts[it.id], query) })
     }
 
-    class NoteFabViewHolder(itemView: View) : RecyclerView.ViewHolder(itemView) {
+    private fun noteAt(position: Int): NoteSummary? =
+        if (position in 0 until itemCount) getItem(position).note else null
+
+    class NoteFabViewHolder(itemView: View) : RecyclerView.ViewHolder(itemView),
+        View.OnClickListener, View.OnLongClickListener, PopupMenu.OnMenuItemClickListener {
         // Import ExtendedFloatingActionButton from Material Components.
         private val noteFab = itemView.findViewById<ExtendedFloatingActionButton>(R.id.efabNote)
+        // Inflated on the first long press and reused for every note this row shows after
+        private var popupMenu: PopupMenu? = null
+        // The note the open menu was shown for, even if the row is rebound meanwhile
+        private var menuNote: NoteSummary? = null
+
+        init {
+            noteFab.setOnClickListener(this)
+            noteFab.setOnLongClickListener(this)
+        }
 
-        fun bind(
-            note: NoteEntity,
-            onItemClick: (NoteEntity) -> Unit,
-            onDeleteClick: (NoteEntity) -> Unit,
-            onShareClick: (NoteEntity) -> Unit
-        ) {
-            // Set the FAB text to the note title.
-            noteFab.text = note.title
-            // When the FAB is clicked, trigger the onItemClick callback.
-            noteFab.setOnClickListener {
-                onItemClick(note)
+        fun bindText(row: Row) {
+            // Set the FAB text to the note title, or the highlighted text measured off the main thread.
+            val text = row.text
+            if (text is PrecomputedTextCompat) {
+                try {
+                    TextViewCompat.setPrecomputedText(noteFab, text)
+                } catch (e: IllegalArgumentException) {
+                    // Measured with different text metrics; still correct, just measured again here
+                    noteFab.text = text
+                }
+            } else {
+                noteFab.text = text ?: row.note.title
             }
-            // Set up popup menu for long press
-            noteFab.setOnLongClickListener { view ->
-                val popupMenu = PopupMenu(view.context, view)
-                popupMenu.inflate(R.menu.note_options_menu)
-                popupMenu.setOnMenuItemClickListener { menuItem ->
-                    when (menuItem.itemId) {
-                        R.id.action_delete -> {
-                            onDeleteClick(note)
-                            true
-                        }
-                        R.id.action_share -> {
-                            onShareClick(note)
-                            true
-                        }
-                        else -> false
-                    }
+        }
+
+        // Pooled rows can outlive the adapter that created them, so ask for the one that bound this row
+        private fun boundAdapter(): TextLinkAdapter? = bindingAdapter as? TextLinkAdapter
+
+        override fun onClick(view: View) {
+            val adapter = boundAdapter() ?: return
+            adapter.noteAt(bindingAdapterPosition)?.let(adapter.onItemClick)
+        }
+
+        override fun onLongClick(view: View): Boolean {
+            menuNote = boundAdapter()?.noteAt(bindingAdapterPosition) ?: return false
+            val menu = popupMenu ?: PopupMenu(view.context, view).also {
+                it.inflate(R.menu.note_options_menu)
+                it.setOnMenuItemClickListener(this)
+                popupMenu = it
+            }
+            menu.show()
+            return true
+        }
+
+        override fun onMenuItemClick(menuItem: MenuItem): Boolean {
+            val adapter = boundAdapter() ?: return false
+            val note = menuNote ?: return false
+            return when (menuItem.itemId) {
+                R.id.action_delete -> {
+                    adapter.onDeleteClick(note)
+                    true
                 }
-                popupMenu.show()
-                true
+                R.id.action_share -> {
+                    adapter.onShareClick(note)
+                    true
+                }
+                else -> false
+            }
+        }
+    }
+
+    companion object {
+        val VIEW_TYPE = R.layout.item_note_fab
+
+        // Change payload: the row text (title, highlight or excerpt) needs resetting. Binding only sets
+        // the text anyway, but a payload lets the item animator update the same view holder in place
+        const val PAYLOAD_TEXT = 1
+
+        private val DIFF = object : DiffUtil.ItemCallback<Row>() {
+            override fun areItemsTheSame(oldItem: Row, newItem: Row): Boolean = oldItem.note.id == newItem.note.id
+
+            // Only what the row shows; clicks read the current list, so other summary fields need no rebind
+            override fun areContentsTheSame(oldItem: Row, newItem: Row): Boolean {
+                // A highlight is a function of the note and the query, so spans never need comparing
+                val oldHighlight = if (oldItem.text != null) oldItem.query else null
+                val newHighlight = if (newItem.text != null) newItem.query else null
+                return oldItem.note.title == newItem.note.title && oldHighlight == newHighlight &&
+                    (newHighlight == null || oldItem.note.preview == newItem.note.preview)
             }
+
+            override fun getChangePayload(oldItem: Row, newItem: Row): Any = PAYLOAD_TEXT
         }
     }
 }
@@ -1,15 +1,20 @@
 package com.xfire.textlinker
 
 import android.os.Bundle
+import android.text.Editable
+import android.text.TextWatcher
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
 import android.widget.Button
 import android.widget.EditText
+import android.widget.Toast
 import androidx.fragment.app.Fragment
 import androidx.fragment.app.activityViewModels
+import androidx.lifecycle.lifecycleScope
 import androidx.navigation.fragment.findNavController
 import androidx.navigation.fragment.navArgs
+import kotlinx.coroutines.launch
 
 class ThirdFragment : Fragment() {
 
@@ -22,6 +27,11 @@ class ThirdFragment : Fragment() {
     // Retrieve arguments using Safe Args
     private val args: ThirdFragmentArgs by navArgs()
 
+    // Autosave for an existing note; null for a new note or until the note has loaded
+    private var session: NoteEditSession? = null
+    // Set while the fields are filled from the database so that text isn't journaled as an edit
+    private var filling = false
+
     override fun onCreateView(
         inflater: LayoutInflater, container: ViewGroup?,
         savedInstanceState: Bundle?
@@ -36,10 +46,37 @@ class ThirdFragment : Fragment() {
         etContent = view.findViewById(R.id.etContent)
         btnSave = view.findViewById(R.id.btnSave)
 
-        // Prepopulate the fields if editing an existing note (noteId != 0)
+        // Prepopulate the fields if editing an existing note (noteId != 0), with any autosaved edits
+        // replayed. After a configuration change the EditTexts restore the user's text and the
+        // session carries on; after process death the text is restored but the session is reopened,
+        // so whatever the restored text has beyond the journal is journaled first.
         if (args.noteId != 0) {
-            etTitle.setText(args.title)
-            etContent.setText(args.content)
+            session = viewModel.editSession(args.noteId)
+            if (session == null) {
+                setEditable(false)
+                viewLifecycleOwner.lifecycleScope.launch {
+                    val editable = viewModel.startEditing(args.noteId)
+                    if (editable == null) {
+                        Toast.makeText(context, "Note no longer exists", Toast.LENGTH_SHORT).show()
+                        findNavController().navigateUp()
+                        return@launch
+                    }
+                    session = viewModel.editSession(args.noteId)
+                    if (savedInstanceState == null) {
+                        filling = true
+                        etTitle.setText(editable.note.title)
+                        etContent.setText(editable.note.content)
+                        filling = false
+                    } else {
+                        // Later ops are positions in the restored text, so the journal has to reach it first
+                        listOfNotNull(
+                            EditJournal.diff(EditJournal.FIELD_TITLE, editable.note.title, etTitle.text.toString()),
+                            EditJournal.diff(EditJournal.FIELD_CONTENT, editable.note.content, etContent.text.toString())
+                        ).forEach { session?.record(it.field, it.start, it.removed, it.inserted) }
+                    }
+                    setEditable(true)
+                }
+            }
         }
 
         btnSave.setOnClickListener {
@@ -47,8 +84,9 @@ class ThirdFragment : Fragment() {
             val newContent = etContent.text.toString().trim()
             if (newTitle.isNotEmpty() && newContent.isNotEmpty()) {
                 if (args.noteId != 0) {
-                    // Update the existing note
-                    viewModel.update(NoteEntity(
+                    // Update the existing note; this replaces its autosaved journal
+                    session = null
+                    viewModel.saveEditedNote(Note(
                         id = args.noteId, 
                         title = newTitle, 
                         content = newContent,
@@ -57,7 +95,7 @@ class ThirdFragment : Fragment() {
                     ))
                 } else {
                     // Insert a new note
-                    viewModel.insert(NoteEntity(
+                    viewModel.insert(Note(
                         title = newTitle, 
                         content = newContent,
                         timestamp = System.currentTimeMillis(),
@@ -72,4 +110,40 @@ class ThirdFragment : Fragment() {
             }
         }
     }
+
+    override fun onViewStateRestored(savedInstanceState: Bundle?) {
+        super.onViewStateRestored(savedInstanceState)
+        // Added after the EditTexts restore their state so only the user's own edits are recorded
+        etTitle.addTextChangedListener(journalWatcher(EditJournal.FIELD_TITLE))
+        etContent.addTextChangedListener(journalWatcher(EditJournal.FIELD_CONTENT))
+    }
+
+    override fun onStop() {
+        super.onStop()
+        // The process may be killed from here on, so don't wait for the debounce
+        session?.flushNow()
+    }
+
+    override fun onDestroyView() {
+        super.onDestroyView()
+        // Leaving without Save keeps the edits in the journal; they are replayed on the next open
+        if (isRemoving) viewModel.stopEditing()
+        session = null
+    }
+
+    private fun setEditable(enabled: Boolean) {
+        etTitle.isEnabled = enabled
+        etContent.isEnabled = enabled
+        btnSave.isEnabled = enabled
+    }
+
+    private fun journalWatcher(field: Int) = object : TextWatcher {
+        override fun beforeTextChanged(s: CharSequence, start: Int, count: Int, after: Int) {}
+
+        override fun onTextChanged(s: CharSequence, start: Int, before: Int, count: Int) {
+            if (!filling) session?.record(field, start, before, s.subSequence(start, start + count))
+        }
+
+        override fun afterTextChanged(s: Editable) {}
+    }
 }
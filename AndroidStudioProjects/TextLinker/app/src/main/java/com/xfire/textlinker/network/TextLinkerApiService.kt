@@ -130,13 +130,7 @@ class TextLinkerApiService(private val serverUrl: String) {
             Log.d(TAG, "uploadChunk: token=$maskedToken idx=${chunkIndex + 1}/$totalChunks len=${textChunk.length}")
         } catch (_: Exception) {}
 
-        val json = JSONObject().apply {
-            put("token", token)
-            put("chunkIndex", chunkIndex)
-            put("totalChunks", totalChunks)
-            put("textChunk", textChunk)
-        }
-        val body = json.toString().toRequestBody(JSON)
+        val body = TextLinkerJson.chunkBody(token, chunkIndex, totalChunks, textChunk).toRequestBody(JSON)
 
         val request = Request.Builder()
             .url("$serverUrl/upload-chunk")
@@ -169,11 +163,7 @@ class TextLinkerApiService(private val serverUrl: String) {
             Log.d(TAG, "uploadText: token=$maskedToken len=${text.length} prefix='${text.take(30)}'")
         } catch (_: Exception) {}
 
-        val jsonObject = JSONObject()
-        jsonObject.put("token", token)
-        jsonObject.put("text", text)
-
-        val requestBody = jsonObject.toString().toRequestBody(JSON)
+        val requestBody = TextLinkerJson.uploadBody(token, text).toRequestBody(JSON)
 
         val request = Request.Builder()
             .url("$serverUrl/upload")
@@ -229,20 +219,8 @@ class TextLinkerApiService(private val serverUrl: String) {
                     
                     when (response.code) {
                         200 -> {
-                            val jsonObject = JSONObject(responseBody)
-                            if (jsonObject.has("messages")) {
-                                val messagesArray = jsonObject.getJSONArray("messages")
-                                val messages = mutableListOf<WebMessage>()
-                                
-                                for (i in 0 until messagesArray.length()) {
-                                    val msgObj = messagesArray.getJSONObject(i)
-                                    messages.add(WebMessage(
-                                        id = msgObj.getString("id"),
-                                        text = msgObj.getString("text"),
-                                        createdAt = msgObj.getString("created_at")
-                                    ))
-                                }
-                                
+                            val messages = TextLinkerJson.parseMessages(responseBody ?: "")
+                            if (messages != null) {
                                 Log.d(TAG, "fetchUnreadWebMessages: received ${messages.size} messages")
                                 callback(messages, null)
                             } else {
@@ -377,12 +355,6 @@ class TextLinkerApiService(private val serverUrl: String) {
             } catch (_: Exception) { "" }
         }
     }
-
-    data class WebMessage(
-        val id: String,
-        val text: String,
-        val createdAt: String
-    )
 }
 
 private object NetDebugLog {
@@ -0,0 +1,44 @@
+package com.xfire.textlinker.network
+
+import org.json.JSONObject
+
+data class WebMessage(
+    val id: String,
+    val text: String,
+    val createdAt: String
+)
+
+/**
+ * Request and response bodies for the TextLinker server. Uses only org.json so the benchmark
+ * module can run it on a plain JVM.
+ */
+object TextLinkerJson {
+    fun uploadBody(token: String, text: String): String = JSONObject().apply {
+        put("token", token)
+        put("text", text)
+    }.toString()
+
+    fun chunkBody(token: String, chunkIndex: Int, totalChunks: Int, textChunk: String): String = JSONObject().apply {
+        put("token", token)
+        put("chunkIndex", chunkIndex)
+        put("totalChunks", totalChunks)
+        put("textChunk", textChunk)
+    }.toString()
+
+    /** The messages of an unread-web response, or null for the old format without a "messages" field. */
+    fun parseMessages(body: String): List<WebMessage>? {
+        val json = JSONObject(body)
+        if (!json.has("messages")) return null
+        val array = json.getJSONArray("messages")
+        val messages = ArrayList<WebMessage>(array.length())
+        for (i in 0 until array.length()) {
+            val message = array.getJSONObject(i)
+            messages.add(WebMessage(
+                id = message.getString("id"),
+                text = message.getString("text"),
+                createdAt = message.getString("created_at")
+            ))
+        }
+        return messages
+    }
+}
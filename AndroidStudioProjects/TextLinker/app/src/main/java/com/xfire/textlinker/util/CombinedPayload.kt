@@ -0,0 +1,54 @@
+package com.xfire.textlinker.util
+
+/**
+ * The combined upload format: a header line, then each note's content separated by [DELIM].
+ * Plain Kotlin so the benchmark module can run it off-device.
+ */
+object CombinedPayload {
+    const val HEADER = "// TextLinker Combined v1\n"
+    const val DELIM = "\n\n---TEXTLINKER NOTE---\n\n"
+
+    // Longer texts are treated as pasted dumps and trimmed to their last paragraph
+    private const val MAX_PLAIN_LINES = 200
+
+    fun build(contents: List<String>): String {
+        var length = HEADER.length + DELIM.length * maxOf(contents.size - 1, 0)
+        for (content in contents) length += content.length
+        val out = StringBuilder(length)
+        out.append(HEADER)
+        contents.forEachIndexed { index, content ->
+            if (index > 0) out.append(DELIM)
+            out.append(content)
+        }
+        return out.toString()
+    }
+
+    /** Whether [text] should go through [extractCandidate] rather than be taken as one note. */
+    fun looksCombined(text: String): Boolean {
+        if (text.startsWith(HEADER) || text.contains(DELIM)) return true
+        var lines = 0
+        for (ch in text) if (ch == '\n' && ++lines > MAX_PLAIN_LINES) return true
+        return false
+    }
+
+    fun countDelims(text: String): Int {
+        var count = 0
+        var from = if (text.startsWith(HEADER)) HEADER.length else 0
+        while (true) {
+            val index = text.indexOf(DELIM, from)
+            if (index < 0) return count
+            count++
+            from = index + DELIM.length
+        }
+    }
+
+    /** The last note of a combined payload, or the last paragraph when there's no delimiter. */
+    fun extractCandidate(text: String): String {
+        val start = if (text.startsWith(HEADER)) HEADER.length else 0
+        // Forward indexOf is much faster than a backward scan over text with no delimiter at all
+        if (text.indexOf(DELIM, start) >= 0) return text.substring(text.lastIndexOf(DELIM) + DELIM.length).trim()
+        // The end of the last blank-line run, as splitting on "\n{2,}" and taking the last part would give
+        val paragraph = text.lastIndexOf("\n\n")
+        return text.substring(if (paragraph >= start) paragraph + 2 else start).trim()
+    }
+}
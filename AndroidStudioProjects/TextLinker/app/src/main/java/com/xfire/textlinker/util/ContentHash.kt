@@ -0,0 +1,21 @@
+package com.xfire.textlinker.util
+
+import java.security.MessageDigest
+
+/**
+ * Stable content hashes for note bodies (lowercase hex SHA-256 of the UTF-8 bytes).
+ */
+object ContentHash {
+    private val HEX = "0123456789abcdef".toCharArray()
+
+    fun sha256(text: String): String {
+        val digest = MessageDigest.getInstance("SHA-256").digest(text.toByteArray(Charsets.UTF_8))
+        val out = CharArray(digest.size * 2)
+        for (i in digest.indices) {
+            val b = digest[i].toInt() and 0xFF
+            out[i * 2] = HEX[b ushr 4]
+            out[i * 2 + 1] = HEX[b and 0x0F]
+        }
+        return String(out)
+    }
+}
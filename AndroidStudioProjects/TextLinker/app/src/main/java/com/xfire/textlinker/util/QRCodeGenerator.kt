@@ -1,7 +1,6 @@
 package com.xfire.textlinker.util
 
 import android.graphics.Bitmap
-import android.graphics.Color
 import com.google.zxing.BarcodeFormat
 import com.google.zxing.EncodeHintType
 import com.google.zxing.qrcode.QRCodeWriter
@@ -31,12 +30,9 @@ class QRCodeGenerator {
                 val writer = QRCodeWriter()
                 val bitMatrix = writer.encode(token, BarcodeFormat.QR_CODE, width, height, hints)
                 
-                val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-                for (x in 0 until width) {
-                    for (y in 0 until height) {
-                        bitmap.setPixel(x, y, if (bitMatrix.get(x, y)) Color.BLACK else Color.WHITE)
-                    }
-                }
+                val pixels = QRCodePixels.fromMatrix(bitMatrix)
+                val bitmap = Bitmap.createBitmap(bitMatrix.width, bitMatrix.height, Bitmap.Config.ARGB_8888)
+                bitmap.setPixels(pixels, 0, bitMatrix.width, 0, 0, bitMatrix.width, bitMatrix.height)
                 return bitmap
             } catch (e: Exception) {
                 e.printStackTrace()
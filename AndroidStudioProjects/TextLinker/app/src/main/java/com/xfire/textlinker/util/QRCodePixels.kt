@@ -0,0 +1,39 @@
+package com.xfire.textlinker.util
+
+import com.google.zxing.common.BitArray
+import com.google.zxing.common.BitMatrix
+
+/**
+ * Turns an encoded QR [BitMatrix] into ARGB pixels, row by row, ready for Bitmap.setPixels.
+ * Free of Android types so the benchmark module can run it.
+ */
+object QRCodePixels {
+    const val BLACK = 0xFF000000.toInt()
+    const val WHITE = 0xFFFFFFFF.toInt()
+
+    fun fromMatrix(matrix: BitMatrix): IntArray {
+        val width = matrix.width
+        val pixels = IntArray(width * matrix.height)
+        var row = BitArray(width)
+        var previous: IntArray? = null
+        for (y in 0 until matrix.height) {
+            row = matrix.getRow(y, row)
+            val offset = y * width
+            // Each module spans several pixel rows, so most rows repeat the one above
+            if (previous != null && previous.contentEquals(row.bitArray)) {
+                System.arraycopy(pixels, offset - width, pixels, offset, width)
+                continue
+            }
+            // Fill whole runs of one colour instead of deciding pixel by pixel
+            var x = 0
+            while (x < width) {
+                val black = row.get(x)
+                val end = if (black) row.getNextUnset(x) else row.getNextSet(x)
+                pixels.fill(if (black) BLACK else WHITE, offset + x, offset + end)
+                x = end
+            }
+            previous = row.bitArray.copyOf()
+        }
+        return pixels
+    }
+}
@@ -0,0 +1,45 @@
+package com.xfire.textlinker
+
+import com.xfire.textlinker.util.CombinedPayload
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class CombinedPayloadTest {
+    // The split-based versions FirstFragment used before the extraction
+    private fun legacyCount(text: String) = text.removePrefix(CombinedPayload.HEADER).split(CombinedPayload.DELIM).size - 1
+
+    private fun legacyExtract(text: String): String {
+        val body = text.removePrefix(CombinedPayload.HEADER)
+        val parts = body.split(CombinedPayload.DELIM)
+        if (parts.size >= 2) return parts.last().trim()
+        return body.split(Regex("\n{2,}")).last().trim()
+    }
+
+    @Test
+    fun build_roundTripsTheLastNote() {
+        val payload = CombinedPayload.build(listOf("first", "second\n\nparagraph", "  third  "))
+        assertTrue(payload.startsWith(CombinedPayload.HEADER))
+        assertTrue(CombinedPayload.looksCombined(payload))
+        assertEquals(2, CombinedPayload.countDelims(payload))
+        assertEquals("third", CombinedPayload.extractCandidate(payload))
+        assertEquals(CombinedPayload.HEADER, CombinedPayload.build(emptyList()))
+    }
+
+    @Test
+    fun matchesSplitBasedParsing() {
+        val d = CombinedPayload.DELIM
+        val h = CombinedPayload.HEADER
+        val samples = listOf(
+            "", "plain", "one\n\ntwo", "one\n\n\n\ntwo\n", "ends\n\n", "a${d}b", "${d}${d}", "${h}only",
+            "${h}a${d}b${d}  c\n\nd  ", "${h}\n---TEXTLINKER NOTE---\n\nx", "${h}\nx\n\ny", "x${d}${d}y"
+        )
+        for (text in samples) {
+            assertEquals(text, legacyCount(text), CombinedPayload.countDelims(text))
+            assertEquals(text, legacyExtract(text), CombinedPayload.extractCandidate(text))
+        }
+        assertFalse(CombinedPayload.looksCombined("a\n".repeat(200)))
+        assertTrue(CombinedPayload.looksCombined("a\n".repeat(201)))
+    }
+}
@@ -0,0 +1,69 @@
+package com.xfire.textlinker
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+class EditJournalTest {
+
+    @Test
+    fun replay_matchesEditedText() {
+        val random = Random(3)
+        var title = "Title"
+        var content = (1..2_000).joinToString(" ") { "word$it" }
+        val ops = ArrayList<EditJournal.Op>()
+        repeat(500) {
+            val field = random.nextInt(2)
+            val text = if (field == EditJournal.FIELD_TITLE) title else content
+            val start = random.nextInt(text.length + 1)
+            val removed = random.nextInt(minOf(5, text.length - start) + 1)
+            val inserted = "é✓".repeat(random.nextInt(3)) + "x".repeat(random.nextInt(4))
+            val edited = text.substring(0, start) + inserted + text.substring(start + removed)
+            if (field == EditJournal.FIELD_TITLE) title = edited else content = edited
+            EditJournal.coalesce(ops, EditJournal.Op(field, start, removed, inserted))
+        }
+
+        val decoded = EditJournal.decode(EditJournal.encode(ops))
+        assertEquals(ops, decoded)
+        assertEquals(title to content, EditJournal.apply("Title", (1..2_000).joinToString(" ") { "word$it" }, decoded))
+    }
+
+    @Test
+    fun coalesce_mergesTypingIntoOneOp() {
+        val ops = ArrayList<EditJournal.Op>()
+        "hello".forEachIndexed { i, c -> EditJournal.coalesce(ops, EditJournal.Op(EditJournal.FIELD_CONTENT, 10 + i, 0, c.toString())) }
+        // Backspace, then an IME replacing its composing word
+        EditJournal.coalesce(ops, EditJournal.Op(EditJournal.FIELD_CONTENT, 14, 1, ""))
+        EditJournal.coalesce(ops, EditJournal.Op(EditJournal.FIELD_CONTENT, 10, 4, "help"))
+        assertEquals(listOf(EditJournal.Op(EditJournal.FIELD_CONTENT, 10, 0, "help")), ops)
+    }
+
+    @Test
+    fun journalSize_followsEditNotNote() {
+        val ops = listOf(EditJournal.Op(EditJournal.FIELD_CONTENT, 400_000, 3, "fixed"))
+        assertTrue(EditJournal.encode(ops).size < 16)
+    }
+
+    @Test
+    fun diff_replaysToTarget() {
+        val cases = listOf("" to "abc", "abc" to "", "hello world" to "hello there world",
+            "aaaa" to "aa", "note" to "note", "abcabc" to "abXabc", "shopping list" to "Shopping lists")
+        for ((from, to) in cases) {
+            val op = EditJournal.diff(EditJournal.FIELD_CONTENT, from, to)
+            if (from == to) {
+                assertEquals(null, op)
+                continue
+            }
+            assertEquals(to, EditJournal.apply("", from, listOf(op!!)).second)
+        }
+        // Only the changed span is stored
+        assertEquals(EditJournal.Op(EditJournal.FIELD_TITLE, 6, 0, "there "),
+            EditJournal.diff(EditJournal.FIELD_TITLE, "hello world", "hello there world"))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun apply_rejectsOpOutsideText() {
+        EditJournal.apply("t", "short", listOf(EditJournal.Op(EditJournal.FIELD_CONTENT, 4, 5, "")))
+    }
+}
@@ -0,0 +1,83 @@
+package com.xfire.textlinker
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+
+class NoteArchiveTest {
+
+    @Test
+    fun roundTrips_withAndWithoutCompression() {
+        val notes = listOf(
+            Note(title = "", content = "", timestamp = 0L),
+            Note(title = "Groceries", content = "milk\neggs", timestamp = 1_700_000_000_000L, fromServer = true),
+            Note(title = "Ünïcødé ✓", content = "emoji 😀 and CJK 漢字", timestamp = 42L),
+            Note(title = "t".repeat(300), content = "x".repeat(200_000), timestamp = Long.MAX_VALUE)
+        )
+        for (compress in listOf(false, true)) {
+            val bytes = write(notes, compress)
+            NoteArchive.Reader(ByteArrayInputStream(bytes)).use { reader ->
+                for (expected in notes) assertEquals(expected.copy(id = 0), reader.next())
+                assertNull(reader.next())
+            }
+        }
+    }
+
+    @Test
+    fun truncatedArchive_isRejected() {
+        val bytes = write(listOf(Note(title = "a", content = "b".repeat(1_000))), compress = false)
+        try {
+            NoteArchive.Reader(ByteArrayInputStream(bytes.copyOf(bytes.size - 10))).use { reader ->
+                while (reader.next() != null) Unit
+            }
+            fail("Expected IOException")
+        } catch (_: IOException) {
+        }
+    }
+
+    @Test
+    fun corruptTitleLength_isRejected() {
+        val timestampAndFlag = ByteArray(9)
+        val records = listOf(
+            // Ends inside the title-length varint
+            timestampAndFlag + byteArrayOf(0x80.toByte()),
+            // Varint longer than an Int can hold
+            timestampAndFlag + ByteArray(6) { 0xFF.toByte() } + byteArrayOf(0x01),
+            // Five bytes whose last sets the sign bit, so the length comes out negative
+            timestampAndFlag + byteArrayOf(0x80.toByte(), 0x80.toByte(), 0x80.toByte(), 0x80.toByte(), 0x08)
+        )
+        for (record in records) {
+            val archive = rawHeader() + byteArrayOf(record.size.toByte()) + record + byteArrayOf(0)
+            try {
+                NoteArchive.Reader(ByteArrayInputStream(archive)).use { it.next() }
+                fail("Expected IOException")
+            } catch (_: IOException) {
+            }
+        }
+    }
+
+    @Test
+    fun wrongMagic_isRejected() {
+        try {
+            NoteArchive.Reader(ByteArrayInputStream("not an archive".toByteArray()))
+            fail("Expected IOException")
+        } catch (_: IOException) {
+        }
+    }
+
+    // Uncompressed, so records can be written by hand
+    private fun rawHeader(): ByteArray = "TLNA".toByteArray() + byteArrayOf(NoteArchive.FORMAT_VERSION.toByte(), 0)
+
+    private fun write(notes: List<Note>, compress: Boolean): ByteArray {
+        val out = ByteArrayOutputStream()
+        NoteArchive.Writer(out, compress).use { writer ->
+            for (n in notes) writer.write(n.title, n.timestamp, n.fromServer, n.content.toByteArray())
+            writer.finish()
+        }
+        return out.toByteArray()
+    }
+}
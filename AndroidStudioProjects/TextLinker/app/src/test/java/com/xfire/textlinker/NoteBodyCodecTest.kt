@@ -0,0 +1,35 @@
+package com.xfire.textlinker
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class NoteBodyCodecTest {
+
+    @Test
+    fun smallBody_staysPlain() {
+        val encoded = NoteBodyCodec.encode("short note")
+        assertEquals(NoteBodyCodec.CODEC_PLAIN, encoded.codec)
+        assertEquals("short note", NoteBodyCodec.decode(encoded.codec, encoded.data))
+    }
+
+    @Test
+    fun largeLogPaste_isCompressedAndRoundTrips() {
+        val body = syntheticLog(200_000)
+        val encoded = NoteBodyCodec.encode(body)
+        assertEquals(NoteBodyCodec.CODEC_DEFLATE, encoded.codec)
+        assertTrue(encoded.data.size * 5 < body.toByteArray().size)
+        assertEquals(body, NoteBodyCodec.decode(encoded.codec, encoded.data))
+    }
+
+    private fun syntheticLog(chars: Int): String {
+        val sb = StringBuilder(chars + 128)
+        var i = 0
+        while (sb.length < chars) {
+            sb.append("2025-01-01T12:00:").append(i % 60).append(" D/TextLinkerApi: OUT HTTP POST /upload token=abc")
+                .append(i % 97).append(" len=").append(i * 31 % 5000).append('\n')
+            i++
+        }
+        return sb.substring(0, chars)
+    }
+}
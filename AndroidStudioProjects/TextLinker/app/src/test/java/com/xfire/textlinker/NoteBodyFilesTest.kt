@@ -0,0 +1,78 @@
+package com.xfire.textlinker
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class NoteBodyFilesTest {
+    private lateinit var dir: File
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("note_bodies").toFile()
+        NoteBodyFiles.init(dir)
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun smallBody_staysInDatabase() {
+        assertNull(NoteBodyFiles.store("small", "x".repeat(1_000)))
+        assertTrue(dir.listFiles()!!.isEmpty())
+    }
+
+    @Test
+    fun largeBody_roundTripsThroughFile() {
+        val content = "Ünïcødé ✓ 𝄞 line\n".repeat(20_000)
+        val name = NoteBodyFiles.store("abc123", content)!!
+        assertEquals(content, NoteBodyFiles.read(name))
+        assertTrue(NoteBodyFiles.readBytes(name).contentEquals(content.toByteArray()))
+        assertEquals(content, NoteBodyCodec.decode(NoteBodyCodec.CODEC_FILE, name.toByteArray()))
+        // Only the final file is left behind, no temp files
+        assertEquals(listOf(name), dir.list()!!.toList())
+    }
+
+    @Test
+    fun mappedPages_neverSplitCharacters() {
+        val content = "aé✓𝄞".repeat(60_000)
+        val body = NoteBodyFiles.map(NoteBodyFiles.store("paged", content)!!)
+        val rebuilt = StringBuilder()
+        var offset = 0
+        var pages = 0
+        while (offset < body.byteLength) {
+            // Odd page size so boundaries land inside multi-byte characters
+            val page = body.read(offset, 4_099)
+            assertFalse(page.text.contains('�'))
+            rebuilt.append(page.text)
+            offset = page.end
+            pages++
+        }
+        assertEquals(content, rebuilt.toString())
+        assertTrue(pages > 1)
+    }
+
+    @Test
+    fun sweep_removesOnlyOldUnreferencedFiles() {
+        val content = "y".repeat(NoteBodyFiles.FILE_THRESHOLD)
+        val kept = NoteBodyFiles.store("kept", content)!!
+        val orphan = NoteBodyFiles.store("orphan", content)!!
+        val recent = NoteBodyFiles.store("recent", content)!!
+        val later = System.currentTimeMillis() + 2 * 60 * 60 * 1000
+        File(dir, recent).setLastModified(later)
+
+        val freed = NoteBodyFiles.sweep(setOf(kept), now = later)
+        assertEquals(content.length.toLong(), freed)
+        assertTrue(File(dir, kept).exists())
+        assertFalse(File(dir, orphan).exists())
+        assertTrue(File(dir, recent).exists())
+    }
+}
@@ -0,0 +1,209 @@
+package com.xfire.textlinker
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class NoteSearchPipelineTest {
+    private val notes = listOf(
+        NoteSearchText(1, "Kotlin coroutines", "flows and channels"),
+        NoteSearchText(2, "Shopping", "milk, kottbullar"),
+        NoteSearchText(3, "Recipes", "a kotlin-flavoured stew"),
+        NoteSearchText(4, "Misc", "nothing to see")
+    )
+
+    private fun summary(text: NoteSearchText) = NoteSummary(text.id, text.title, 0L, text.content.length, text.content)
+
+    // Stand-in for the FTS query: same matching rules, run over the whole list
+    private fun scan(query: String, texts: List<NoteSearchText> = notes) = texts
+        .filter {
+            val title = it.title.lowercase()
+            val content = it.content.lowercase()
+            NoteSearch.matchesLocally(title, content, query, NoteSearch.fold(title), NoteSearch.fold(content))
+        }
+        .map(::summary)
+
+    @Test
+    fun extendedQuery_narrowsWithoutSearchingAgain() = runBlocking {
+        val searched = ArrayList<String>()
+        val results = Channel<NoteSearchPipeline.Result>(Channel.UNLIMITED)
+        val pipeline = NoteSearchPipeline(
+            this,
+            search = { searched += it; scan(it) },
+            loadTexts = { ids -> notes.filter { it.id in ids } },
+            onResult = { results.trySend(it) },
+            debounceMs = 0
+        )
+
+        pipeline.submit("kot")
+        assertEquals(listOf(1, 2, 3), withTimeout(1_000) { results.receive() }.summaries.map { it.id })
+        pipeline.submit("kotl")
+        assertEquals(listOf(1, 3), withTimeout(1_000) { results.receive() }.summaries.map { it.id })
+        pipeline.submit("kotlin co")
+        assertEquals(listOf(1), withTimeout(1_000) { results.receive() }.summaries.map { it.id })
+        assertEquals(listOf("kot"), searched)
+
+        // Not an extension of the last query, so it goes back to the index
+        pipeline.submit("stew")
+        assertEquals(listOf(3), withTimeout(1_000) { results.receive() }.summaries.map { it.id })
+        assertEquals(listOf("kot", "stew"), searched)
+
+        // After a change the snapshot is dropped even for an extension
+        pipeline.refresh()
+        withTimeout(1_000) { results.receive() }
+        assertEquals(listOf("kot", "stew", "stew"), searched)
+    }
+
+    @Test
+    fun narrowedQuery_foldsDiacriticsLikeAFreshSearch() = runBlocking {
+        val accented = listOf(
+            NoteSearchText(5, "Café list", "beans"),
+            NoteSearchText(6, "Misc", "a xcafé au lait"),
+            NoteSearchText(7, "Cafeteria", "lunch")
+        )
+        val searched = ArrayList<String>()
+        val results = Channel<NoteSearchPipeline.Result>(Channel.UNLIMITED)
+        val pipeline = NoteSearchPipeline(
+            this,
+            search = { searched += it; scan(it, accented) },
+            loadTexts = { ids -> accented.filter { it.id in ids } },
+            onResult = { results.trySend(it) },
+            debounceMs = 0
+        )
+
+        pipeline.submit("caf")
+        assertEquals(listOf(5, 6, 7), withTimeout(1_000) { results.receive() }.summaries.map { it.id })
+        // "cafe*" finds "Café" in notes_fts, but "xcafé" neither starts with it nor contains it unfolded
+        pipeline.submit("cafe")
+        val narrowed = withTimeout(1_000) { results.receive() }.summaries.map { it.id }
+        assertEquals(listOf("caf"), searched)
+        assertEquals(scan("cafe", accented).map { it.id }, narrowed)
+        assertEquals(listOf(5, 7), narrowed)
+        pipeline.cancel()
+    }
+
+    @Test
+    fun newerQuery_cancelsOlderOne() = runBlocking {
+        val slowStarted = CompletableDeferred<Unit>()
+        var slowCancelled = false
+        val results = Channel<NoteSearchPipeline.Result>(Channel.UNLIMITED)
+        val pipeline = NoteSearchPipeline(
+            this,
+            search = { query ->
+                if (query == "slow") {
+                    slowStarted.complete(Unit)
+                    try {
+                        CompletableDeferred<Unit>().await()
+                    } finally {
+                        slowCancelled = true
+                    }
+                }
+                scan(query)
+            },
+            loadTexts = { emptyList() },
+            onResult = { results.trySend(it) },
+            debounceMs = 0
+        )
+
+        pipeline.submit("slow")
+        slowStarted.await()
+        val seq = pipeline.submit("misc")
+        val result = withTimeout(1_000) { results.receive() }
+        assertTrue(slowCancelled)
+        assertEquals(seq, result.seq)
+        assertEquals("misc", result.query)
+        assertTrue(results.tryReceive().isFailure)
+    }
+
+    @Test
+    fun suggestions_followExactMatchesAndAreRecomputed() = runBlocking {
+        val titles = NoteTitleIndex()
+        notes.forEach { titles.put(it.id, it.title, it.content) }
+        val results = Channel<NoteSearchPipeline.Result>(Channel.UNLIMITED)
+        val pipeline = NoteSearchPipeline(
+            this,
+            search = { scan(it) },
+            loadTexts = { ids -> notes.filter { it.id in ids } },
+            suggest = { query, exact ->
+                titles.search(query, 10).filter { it.id !in exact }.map { match -> summary(notes.first { it.id == match.id }) }
+            },
+            onResult = { results.trySend(it) },
+            debounceMs = 0
+        )
+
+        pipeline.submit("kotli")
+        val exact = withTimeout(1_000) { results.receive() }
+        assertEquals(listOf(1, 3), exact.summaries.map { it.id })
+        assertEquals(2, exact.exactCount)
+        // Narrowed in memory to nothing exact, but the typo still finds both Kotlin notes
+        pipeline.submit("kotlin")
+        pipeline.submit("kotliin")
+        val fuzzy = withTimeout(1_000) { results.receive() }
+        assertEquals("kotliin", fuzzy.query)
+        assertEquals(0, fuzzy.exactCount)
+        assertEquals(listOf(3, 1), fuzzy.summaries.map { it.id })
+    }
+
+    @Test
+    fun failingSuggest_stillPublishesExactMatches() = runBlocking {
+        val results = Channel<NoteSearchPipeline.Result>(Channel.UNLIMITED)
+        val logged = ArrayList<Throwable>()
+        val pipeline = NoteSearchPipeline(
+            this,
+            search = { scan(it) },
+            loadTexts = { ids -> notes.filter { it.id in ids } },
+            suggest = { _, _ -> throw IllegalStateException("title index down") },
+            onResult = { results.trySend(it) },
+            debounceMs = 0,
+            logError = { _, e -> logged += e }
+        )
+
+        pipeline.submit("kotlin")
+        val result = withTimeout(1_000) { results.receive() }
+        assertEquals(listOf(1, 3), result.summaries.map { it.id })
+        assertEquals(2, result.exactCount)
+        assertEquals(listOf("title index down"), logged.map { it.message })
+        pipeline.cancel()
+    }
+
+    @Test
+    fun narrows_onlyWhenResultsCanOnlyShrink() {
+        assertTrue(NoteSearch.narrows("kot", "kotlin"))
+        assertTrue(NoteSearch.narrows("kotlin", "kotlin flow"))
+        assertFalse(NoteSearch.narrows("kotlin", "kot"))
+        assertFalse(NoteSearch.narrows("", "kot"))
+        // Punctuation-only input uses the LIKE fallback, which a token query doesn't narrow
+        assertFalse(NoteSearch.narrows("-", "-a"))
+        assertTrue(NoteSearch.narrows("-", "--"))
+    }
+
+    @Test
+    fun matchesLocally_requiresWordPrefixes() {
+        assertTrue(NoteSearch.matchesLocally("kotlin coroutines", "", "corou kot"))
+        assertTrue(NoteSearch.matchesLocally("", "a kotlin-flavoured stew", "flav"))
+        // Substrings match too, like the trigram index
+        assertTrue(NoteSearch.matchesLocally("", "a kotlin-flavoured stew", "otlin"))
+        assertFalse(NoteSearch.matchesLocally("", "a kotlin-flavoured stew", "stew kotlinx"))
+        assertTrue(NoteSearch.matchesLocally("", "c++ notes", "++"))
+        // Tokens match the folded text, whichever side carries the accent
+        assertTrue(NoteSearch.matchesLocally("café", "", "cafe", NoteSearch.fold("café")))
+        assertTrue(NoteSearch.matchesLocally("cafe", "", "café"))
+        assertEquals("uber naive", NoteSearch.fold("Über naïve"))
+    }
+
+    @Test
+    fun matchRanges_coverWholeQueryAndWordPrefixes() {
+        val title = "Kotlin notes: KOTLIN-flavoured ideas"
+        // Whole query anywhere, tokens only at word starts, overlaps merged, offsets into the original text
+        assertArrayEquals(intArrayOf(0, 6, 14, 20), NoteSearch.matchRanges(title, "kotlin"))
+        assertArrayEquals(intArrayOf(0, 3, 14, 17, 21, 25), NoteSearch.matchRanges(title, "kot flav"))
+        assertArrayEquals(intArrayOf(2, 5, 16, 19), NoteSearch.matchRanges(title, "tli"))
+        assertEquals(0, NoteSearch.matchRanges(title, "kotiln").size)
+    }
+}
@@ -0,0 +1,75 @@
+package com.xfire.textlinker
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+class NoteTitleIndexTest {
+
+    private fun randomWord(random: Random) = (1..3 + random.nextInt(7)).map { 'a' + random.nextInt(12) }.joinToString("")
+
+    private fun levenshtein(a: String, b: String): Int {
+        val d = Array(a.length + 1) { i -> IntArray(b.length + 1) { j -> if (i == 0) j else if (j == 0) i else 0 } }
+        for (i in 1..a.length) for (j in 1..b.length) {
+            d[i][j] = minOf(d[i - 1][j] + 1, d[i][j - 1] + 1, d[i - 1][j - 1] + if (a[i - 1] == b[j - 1]) 0 else 1)
+        }
+        return d[a.length][b.length]
+    }
+
+    @Test
+    fun typo_findsIntendedTitle_exactWordFirst() {
+        val index = NoteTitleIndex()
+        index.put(1, "Kotlin notes", "")
+        index.put(2, "Shopping", "kotiln typo kept as written")
+        index.put(3, "Recipes", "nothing close")
+        val matches = index.search("kotiln", 10)
+        assertEquals(listOf(2, 1), matches.map { it.id })
+        assertEquals(listOf(0, 2), matches.map { it.distance })
+        assertTrue(index.search("zzzzzz", 10).isEmpty())
+    }
+
+    @Test
+    fun search_matchesBruteForceThroughUpdatesAndDeletes() {
+        val random = Random(11)
+        val index = NoteTitleIndex()
+        val titles = HashMap<Int, String>()
+        repeat(6_000) {
+            val id = random.nextInt(3_000) + 1
+            if (random.nextInt(5) == 0) {
+                index.remove(id)
+                titles.remove(id)
+            } else {
+                val title = (1..2).joinToString(" ") { randomWord(random) }
+                index.put(id, title, "")
+                titles[id] = title
+            }
+        }
+        repeat(200) {
+            val query = randomWord(random)
+            val expected = titles.mapNotNull { (id, title) ->
+                val best = title.split(" ").minOf { levenshtein(query, it) }
+                if (best <= NoteTitleIndex.maxDistance(query.length)) id to best else null
+            }.sortedWith(compareBy<Pair<Int, Int>> { it.second }.thenByDescending { it.first }).take(25)
+            assertEquals(query, expected, index.search(query, 25).map { it.id to it.distance })
+        }
+    }
+
+    @Test
+    // Query time at this scale is measured by SearchFilterBenchmark.fuzzyTitle
+    fun fiftyThousandTitles_typoQueriesFindMatches() {
+        val random = Random(5)
+        // Titles share words the way real ones do: 20k distinct words over 50k notes
+        val vocabulary = (1..20_000).map { (1..3 + random.nextInt(7)).map { 'a' + random.nextInt(26) }.joinToString("") }
+        fun word() = vocabulary[random.nextInt(vocabulary.size)]
+        val index = NoteTitleIndex()
+        for (id in 1..50_000) index.put(id, "${word()} ${word()} ${word()}", word())
+        // Each query is a real word with one typo
+        val queries = (1..200).map {
+            val word = StringBuilder(word())
+            word.setCharAt(random.nextInt(word.length), 'a' + random.nextInt(26))
+            word.toString()
+        }
+        queries.forEach { assertTrue(it, index.search(it, 20).isNotEmpty()) }
+    }
+}
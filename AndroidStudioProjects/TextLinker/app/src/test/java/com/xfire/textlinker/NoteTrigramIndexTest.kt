@@ -0,0 +1,66 @@
+package com.xfire.textlinker
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+class NoteTrigramIndexTest {
+    private val words = listOf("Kotlin", "coroutine", "C++", "a.b", "Ünïcødé", "straße", "note", "TEXT", "linker", "qr")
+
+    private fun sentence(random: Random, length: Int) = (1..length).joinToString(" ") { words[random.nextInt(words.size)] }
+
+    // The plain filter the index has to agree with
+    private fun linear(notes: Map<Int, Pair<String, String>>, query: String): IntArray = notes
+        .filter { (_, note) -> note.first.contains(query, ignoreCase = true) || note.second.contains(query, ignoreCase = true) }
+        .keys.sortedDescending().toIntArray()
+
+    @Test
+    fun search_matchesLinearFilterThroughUpdatesAndDeletes() {
+        val random = Random(7)
+        val index = NoteTrigramIndex()
+        val notes = HashMap<Int, Pair<String, String>>()
+        repeat(2_000) {
+            val id = random.nextInt(500) + 1
+            when (random.nextInt(4)) {
+                0 -> {
+                    index.remove(id)
+                    notes.remove(id)
+                }
+                else -> {
+                    val note = sentence(random, 3) to sentence(random, 40)
+                    assertTrue(index.put(id, note.first, note.second))
+                    notes[id] = note
+                }
+            }
+        }
+        assertEquals(notes.size, index.size)
+        val queries = listOf("kot", "OTLIN CO", "c++", "a.b", "ünï", "STRASSE", "straße", "e t", "q", "qr no", "linkerx", "text linker")
+        for (query in queries) {
+            assertArrayEquals(query, linear(notes, query), index.search(query))
+        }
+    }
+
+    @Test
+    fun titleAndBody_neverMatchAcrossTheBoundary() {
+        val index = NoteTrigramIndex()
+        index.put(1, "end", "start")
+        assertEquals(0, index.search("endstart").size)
+        assertEquals(0, index.search("d s").size)
+        assertArrayEquals(intArrayOf(1), index.search("nd"))
+    }
+
+    @Test
+    fun memoryBudget_refusesNotesAndIsFreedOnRemove() {
+        val index = NoteTrigramIndex(maxBytes = 48 * 1024)
+        val body = sentence(Random(1), 1_000)
+        assertTrue(index.put(1, "first", body))
+        assertFalse(index.put(2, "second", body + body + body))
+        assertEquals(1, index.size)
+        index.remove(1)
+        assertEquals(0L, index.estimatedBytes)
+        assertTrue(index.put(2, "second", body))
+    }
+}
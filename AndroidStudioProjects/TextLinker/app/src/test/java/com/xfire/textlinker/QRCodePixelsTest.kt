@@ -0,0 +1,22 @@
+package com.xfire.textlinker
+
+import com.google.zxing.BarcodeFormat
+import com.google.zxing.EncodeHintType
+import com.google.zxing.qrcode.QRCodeWriter
+import com.xfire.textlinker.util.QRCodePixels
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+
+class QRCodePixelsTest {
+
+    @Test
+    fun fromMatrix_matchesPerPixelLookup() {
+        for (size in listOf(21, 333, 500)) {
+            val matrix = QRCodeWriter().encode("a1b2c3d4e5f6", BarcodeFormat.QR_CODE, size, size, mapOf(EncodeHintType.MARGIN to 1))
+            val expected = IntArray(matrix.width * matrix.height) { i ->
+                if (matrix.get(i % matrix.width, i / matrix.width)) QRCodePixels.BLACK else QRCodePixels.WHITE
+            }
+            assertArrayEquals(expected, QRCodePixels.fromMatrix(matrix))
+        }
+    }
+}
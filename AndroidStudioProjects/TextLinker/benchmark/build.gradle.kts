@@ -0,0 +1,86 @@
+import groovy.json.JsonSlurper
+
+// JVM-only JMH benchmarks for the app's pure-logic hot paths.
+// Run: ./gradlew :benchmark:jmh            (all benchmarks, default corpus sizes)
+//      ./gradlew :benchmark:jmh -PjmhIncludes=Search -PjmhNotes=50000
+//      ./gradlew :benchmark:jmhCompare      (latest results against baseline/results.json)
+plugins {
+    alias(libs.plugins.kotlin.jvm)
+    alias(libs.plugins.jmh)
+}
+
+kotlin {
+    sourceSets.main {
+        // Compile the shipped sources themselves, so the numbers track the app's code
+        kotlin.srcDir("../app/src/main/java")
+        kotlin.include(
+            "com/xfire/textlinker/NoteBodyCodec.kt",
+            "com/xfire/textlinker/NoteBodyFiles.kt",
+            "com/xfire/textlinker/NoteDelta.kt",
+            "com/xfire/textlinker/NoteRevisions.kt",
+            "com/xfire/textlinker/NoteSearch.kt",
+            "com/xfire/textlinker/NoteTrigramIndex.kt",
+            "com/xfire/textlinker/NoteTitleIndex.kt",
+            "com/xfire/textlinker/util/CombinedPayload.kt",
+            "com/xfire/textlinker/util/QRCodePixels.kt",
+            "com/xfire/textlinker/network/TextLinkerJson.kt"
+        )
+    }
+}
+
+dependencies {
+    implementation("com.google.zxing:core:3.5.2")
+    // Android ships org.json; on the JVM it comes from Maven
+    implementation("org.json:json:20240303")
+}
+
+val jmhResults = layout.buildDirectory.file("results/jmh/results.json")
+
+jmh {
+    jmhVersion.set("1.37")
+    warmupIterations.set(3)
+    warmup.set("1s")
+    iterations.set(5)
+    timeOnIteration.set("1s")
+    fork.set(1)
+    resultFormat.set("JSON")
+    resultsFile.set(jmhResults)
+    findProperty("jmhIncludes")?.let { includes.add(it.toString()) }
+    findProperty("jmhNotes")?.let { notes ->
+        benchmarkParameters.put("notes", objects.listProperty(String::class.java).value(notes.toString().split(',')))
+    }
+}
+
+// Prints each benchmark's score against the committed baseline and fails when one is more
+// than jmhTolerance (default 0.15) slower. Refresh the baseline by copying results.json over it.
+tasks.register("jmhCompare") {
+    group = "benchmark"
+    val baselineFile = file("baseline/results.json")
+    val resultsFile = jmhResults
+    val tolerance = (findProperty("jmhTolerance") ?: "0.15").toString().toDouble()
+    doLast {
+        fun scores(file: File): Map<String, Double> =
+            (JsonSlurper().parse(file) as List<*>).associate { entry ->
+                entry as Map<*, *>
+                val params = (entry["params"] as Map<*, *>?)?.entries?.joinToString(",") { "${it.key}=${it.value}" }
+                val metric = entry["primaryMetric"] as Map<*, *>
+                "${entry["benchmark"]}[${params ?: ""}]" to (metric["score"] as Number).toDouble()
+            }
+        val baseline = scores(baselineFile)
+        val latest = scores(resultsFile.get().asFile)
+        val regressions = ArrayList<String>()
+        for ((name, score) in latest.toSortedMap()) {
+            val before = baseline[name]
+            if (before == null) {
+                println("NEW   $name %.3f".format(score))
+                continue
+            }
+            // Scores are average times, so higher is slower
+            val change = score / before - 1
+            val flag = if (change > tolerance) "SLOW" else "ok"
+            if (change > tolerance) regressions += name
+            println("%-5s %s %.3f -> %.3f (%+.1f%%)".format(flag, name, before, score, change * 100))
+        }
+        if (regressions.isNotEmpty()) throw GradleException("${regressions.size} benchmark(s) slower than baseline: $regressions")
+    }
+}
@@ -0,0 +1,69 @@
+package com.xfire.textlinker.benchmark
+
+import com.xfire.textlinker.util.CombinedPayload
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/** Building the combined upload (ScanFragment) and picking the newest note back out of it (FirstFragment). */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class CombinedPayloadBenchmark {
+    @Param("100", "1000")
+    var notes = 0
+
+    @Param("2000")
+    var noteChars = 0
+
+    private lateinit var contents: List<String>
+    private lateinit var combined: String
+    private lateinit var plain: String
+
+    @Setup
+    fun setUp() {
+        contents = Corpus.notes(notes, noteChars).map { it.content }
+        combined = CombinedPayload.build(contents)
+        // No delimiter: long pasted text falls back to its last paragraph
+        plain = contents.joinToString("\n")
+    }
+
+    @Benchmark
+    fun build(): String = CombinedPayload.build(contents)
+
+    @Benchmark
+    fun countDelims(): Int = CombinedPayload.countDelims(combined)
+
+    @Benchmark
+    fun extractCandidate(): String = CombinedPayload.extractCandidate(combined)
+
+    @Benchmark
+    fun extractCandidatePlain(): String =
+        if (CombinedPayload.looksCombined(plain)) CombinedPayload.extractCandidate(plain) else plain
+
+    // The split-based versions FirstFragment used before, kept for comparison
+    @Benchmark
+    fun countDelimsSplit(): Int = combined.removePrefix(CombinedPayload.HEADER).split(CombinedPayload.DELIM).size - 1
+
+    @Benchmark
+    fun extractCandidateSplit(): String = splitCandidate(combined)
+
+    @Benchmark
+    fun extractCandidatePlainSplit(): String {
+        val looksCombined = plain.contains(CombinedPayload.DELIM) || plain.startsWith(CombinedPayload.HEADER) ||
+            plain.count { it == '\n' } > 200
+        return if (looksCombined) splitCandidate(plain) else plain
+    }
+
+    private fun splitCandidate(text: String): String {
+        val body = text.removePrefix(CombinedPayload.HEADER)
+        val parts = body.split(CombinedPayload.DELIM)
+        return if (parts.size >= 2) parts.last().trim() else body.split(Regex("\n{2,}")).last().trim()
+    }
+}
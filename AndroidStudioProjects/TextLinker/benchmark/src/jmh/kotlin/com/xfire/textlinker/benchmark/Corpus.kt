@@ -0,0 +1,44 @@
+package com.xfire.textlinker.benchmark
+
+import com.xfire.textlinker.NoteSearchText
+import kotlin.random.Random
+
+/**
+ * Deterministic synthetic notes: words drawn from a fixed vocabulary with a Zipf-like skew,
+ * so posting lists and typo neighbourhoods look like real text rather than random strings.
+ */
+object Corpus {
+    private const val SEED = 42
+    private val SYLLABLES = listOf(
+        "ko", "tlin", "co", "rou", "tine", "flow", "shop", "ping", "re", "cipe", "stew", "milk",
+        "link", "text", "note", "sync", "qr", "scan", "web", "page", "list", "draft", "idea", "plan"
+    )
+
+    val vocabulary: List<String> = Random(SEED).let { random ->
+        (0 until 5_000).map { (0 until 2 + random.nextInt(3)).joinToString("") { SYLLABLES[random.nextInt(SYLLABLES.size)] } }
+            .distinct()
+    }
+
+    fun notes(count: Int, meanChars: Int): List<NoteSearchText> {
+        val random = Random(SEED + count)
+        return (1..count).map { id ->
+            val title = sentence(random, 2 + random.nextInt(4))
+            val length = meanChars / 2 + random.nextInt(meanChars)
+            val body = StringBuilder(length + 16)
+            while (body.length < length) {
+                body.append(sentence(random, 6 + random.nextInt(10)))
+                body.append(if (random.nextInt(5) == 0) "\n\n" else ". ")
+            }
+            NoteSearchText(id, title, body.toString())
+        }
+    }
+
+    private fun sentence(random: Random, words: Int): String =
+        (0 until words).joinToString(" ") { word(random) }
+
+    // Squaring the uniform draw favours the start of the vocabulary
+    private fun word(random: Random): String {
+        val r = random.nextDouble()
+        return vocabulary[(r * r * vocabulary.size).toInt()]
+    }
+}
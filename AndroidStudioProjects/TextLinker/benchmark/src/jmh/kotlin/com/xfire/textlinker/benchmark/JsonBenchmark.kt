@@ -0,0 +1,54 @@
+package com.xfire.textlinker.benchmark
+
+import com.xfire.textlinker.network.TextLinkerJson
+import com.xfire.textlinker.util.CombinedPayload
+import org.json.JSONArray
+import org.json.JSONObject
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/** Encoding upload and chunk bodies, and decoding the unread-web messages response. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class JsonBenchmark {
+    // Notes in the combined upload and messages in the response
+    @Param("10", "100")
+    var notes = 0
+
+    @Param("2000")
+    var noteChars = 0
+
+    private val token = "a1b2c3d4e5f6"
+    private lateinit var payload: String
+    private lateinit var chunk: String
+    private lateinit var messages: String
+
+    @Setup
+    fun setUp() {
+        val contents = Corpus.notes(notes, noteChars).map { it.content }
+        payload = CombinedPayload.build(contents)
+        chunk = payload.take(8000)
+        messages = JSONObject().put("messages", JSONArray().apply {
+            contents.forEachIndexed { i, text ->
+                put(JSONObject().put("id", "msg-$i").put("text", text).put("created_at", "2025-01-01T00:00:00Z"))
+            }
+        }).toString()
+    }
+
+    @Benchmark
+    fun encodeUpload(): String = TextLinkerJson.uploadBody(token, payload)
+
+    @Benchmark
+    fun encodeChunk(): String = TextLinkerJson.chunkBody(token, 0, 4, chunk)
+
+    @Benchmark
+    fun decodeMessages(): Int = TextLinkerJson.parseMessages(messages)!!.size
+}
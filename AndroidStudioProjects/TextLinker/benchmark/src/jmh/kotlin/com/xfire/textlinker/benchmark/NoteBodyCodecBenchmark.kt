@@ -0,0 +1,86 @@
+package com.xfire.textlinker.benchmark
+
+import com.xfire.textlinker.NoteBodyCodec
+import org.openjdk.jmh.annotations.AuxCounters
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+import java.util.zip.Deflater
+
+/**
+ * Encoding and decoding a pasted log at a few sizes and deflate levels: the time each costs, and
+ * next to encode's time the size it buys, as EncodedSize's secondary metrics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class NoteBodyCodecBenchmark {
+    @Param("8000", "50000", "200000")
+    var chars = 0
+
+    @Param("${Deflater.BEST_SPEED}", "${Deflater.DEFAULT_COMPRESSION}", "${Deflater.BEST_COMPRESSION}")
+    var level = 0
+
+    private lateinit var body: String
+    private lateinit var encoded: NoteBodyCodec.Encoded
+
+    @Setup
+    fun setUp() {
+        body = syntheticLog(chars)
+        encoded = NoteBodyCodec.encode(body, level)
+    }
+
+    @Benchmark
+    fun encode(size: EncodedSize): NoteBodyCodec.Encoded {
+        val encoded = NoteBodyCodec.encode(body, level)
+        size.record(body, encoded)
+        return encoded
+    }
+
+    @Benchmark
+    fun decode(): String = NoteBodyCodec.decode(encoded.codec, encoded.data)
+
+    private fun syntheticLog(chars: Int): String {
+        val sb = StringBuilder(chars + 128)
+        var i = 0
+        while (sb.length < chars) {
+            sb.append("2025-01-01T12:00:").append(i % 60).append(" D/TextLinkerApi: OUT HTTP POST /upload token=abc")
+                .append(i % 97).append(" len=").append(i * 31 % 5000).append('\n')
+            i++
+        }
+        return sb.substring(0, chars)
+    }
+
+    /**
+     * Stored size per chars/level pair. Every encode of a run gives the same numbers, so they are
+     * set rather than summed: encodedBytes as stored in note_bodies.data, and ratio as that over
+     * the UTF-8 size, lower meaning smaller.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    open class EncodedSize {
+        @JvmField var encodedBytes = 0.0
+        @JvmField var ratio = 0.0
+
+        private var utf8Bytes = 0
+
+        @Setup(Level.Iteration)
+        fun clear() {
+            encodedBytes = 0.0
+            ratio = 0.0
+        }
+
+        fun record(body: String, encoded: NoteBodyCodec.Encoded) {
+            if (utf8Bytes == 0) utf8Bytes = body.toByteArray().size
+            encodedBytes = encoded.data.size.toDouble()
+            ratio = encodedBytes / utf8Bytes
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.xfire.textlinker.benchmark
+
+import com.xfire.textlinker.NoteBodyCodec
+import com.xfire.textlinker.NoteDelta
+import com.xfire.textlinker.NoteRevisions
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Note history: diffing one edit the way NoteDao.recordRevision does, and rebuilding the revision
+ * furthest from its keyframe, which is the slowest read NoteDao.getNoteRevision can make.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class NoteDeltaBenchmark {
+    @Param("10000", "100000")
+    var chars = 0
+
+    private lateinit var before: ByteArray
+    private lateinit var after: ByteArray
+    private lateinit var keyframe: NoteBodyCodec.Encoded
+    private lateinit var deltas: List<ByteArray>
+
+    @Setup
+    fun setUp() {
+        val random = Random(42)
+        var body = Corpus.notes(1, chars).single().content
+        keyframe = NoteBodyCodec.encode(body)
+        val chain = ArrayList<ByteArray>()
+        repeat(NoteRevisions.KEYFRAME_INTERVAL - 1) {
+            val previous = body.toByteArray()
+            body = edit(body, random)
+            chain += NoteDelta.diff(previous, body.toByteArray())
+        }
+        deltas = chain
+        before = body.toByteArray()
+        after = edit(body, random).toByteArray()
+    }
+
+    @Benchmark
+    fun diff(): ByteArray = NoteDelta.diff(before, after)
+
+    @Benchmark
+    fun rebuildLongestChain(): String = NoteRevisions.reconstruct(keyframe.codec, keyframe.data, deltas)
+
+    // A typed insertion, a deletion or an overwrite of up to a sentence
+    private fun edit(body: String, random: Random): String {
+        val at = random.nextInt(body.length)
+        val end = minOf(body.length, at + 1 + random.nextInt(80))
+        return when (random.nextInt(3)) {
+            0 -> body.substring(0, at) + Corpus.vocabulary[random.nextInt(Corpus.vocabulary.size)] + ' ' + body.substring(at)
+            1 -> body.substring(0, at) + body.substring(end)
+            else -> body.substring(0, at) + Corpus.vocabulary[random.nextInt(Corpus.vocabulary.size)] + body.substring(end)
+        }
+    }
+}
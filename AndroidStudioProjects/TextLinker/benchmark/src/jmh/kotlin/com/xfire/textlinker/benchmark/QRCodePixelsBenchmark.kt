@@ -0,0 +1,54 @@
+package com.xfire.textlinker.benchmark
+
+import com.google.zxing.BarcodeFormat
+import com.google.zxing.EncodeHintType
+import com.google.zxing.common.BitMatrix
+import com.google.zxing.qrcode.QRCodeWriter
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel
+import com.xfire.textlinker.util.QRCodePixels
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/** Converting an encoded token's BitMatrix to ARGB pixels, with the same hints as QRCodeGenerator. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class QRCodePixelsBenchmark {
+    @Param("500", "1000")
+    var size = 0
+
+    private lateinit var matrix: BitMatrix
+
+    @Setup
+    fun setUp() {
+        val hints = mapOf(
+            EncodeHintType.CHARACTER_SET to "UTF-8",
+            EncodeHintType.ERROR_CORRECTION to ErrorCorrectionLevel.H,
+            EncodeHintType.MARGIN to 1
+        )
+        matrix = QRCodeWriter().encode("a1b2c3d4e5f6", BarcodeFormat.QR_CODE, size, size, hints)
+    }
+
+    @Benchmark
+    fun fromMatrix(): IntArray = QRCodePixels.fromMatrix(matrix)
+
+    // One get(x, y) per pixel, column by column, as QRCodeGenerator did before
+    @Benchmark
+    fun perPixel(): IntArray {
+        val width = matrix.width
+        val pixels = IntArray(width * matrix.height)
+        for (x in 0 until width) {
+            for (y in 0 until matrix.height) {
+                pixels[y * width + x] = if (matrix.get(x, y)) QRCodePixels.BLACK else QRCodePixels.WHITE
+            }
+        }
+        return pixels
+    }
+}
@@ -0,0 +1,76 @@
+package com.xfire.textlinker.benchmark
+
+import com.xfire.textlinker.NoteSearch
+import com.xfire.textlinker.NoteSearchText
+import com.xfire.textlinker.NoteTitleIndex
+import com.xfire.textlinker.NoteTrigramIndex
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * The search filter: a linear [NoteSearch.matchesLocally] pass over every note (what narrowing
+ * does to a snapshot) against the trigram index's substring search, plus the fuzzy title lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class SearchFilterBenchmark {
+    @Param("1000", "10000", "50000")
+    var notes = 0
+
+    @Param("500")
+    var noteChars = 0
+
+    private lateinit var texts: List<NoteSearchText>
+    private lateinit var folded: Array<Pair<String, String>>
+    private val trigrams = NoteTrigramIndex(Long.MAX_VALUE)
+    private val titles = NoteTitleIndex()
+    private lateinit var common: String
+    private lateinit var rare: String
+    private lateinit var typo: String
+
+    @Setup
+    fun setUp() {
+        texts = Corpus.notes(notes, noteChars)
+        folded = texts.map { it.title.lowercase() to it.content.lowercase() }.toTypedArray()
+        trigrams.clear()
+        titles.clear()
+        for (text in texts) {
+            trigrams.put(text.id, text.title, text.content)
+            titles.put(text.id, text.title, text.content.substringBefore('\n').take(200))
+        }
+        common = Corpus.vocabulary[0].drop(1)
+        rare = Corpus.vocabulary[Corpus.vocabulary.size / 2]
+        // One substitution in the middle of a mid-frequency word
+        val word = Corpus.vocabulary[40]
+        typo = word.substring(0, word.length / 2) + 'x' + word.substring(word.length / 2 + 1)
+    }
+
+    private fun linear(query: String): Int {
+        var hits = 0
+        for ((title, content) in folded) if (NoteSearch.matchesLocally(title, content, query)) hits++
+        return hits
+    }
+
+    @Benchmark
+    fun linearCommon(): Int = linear(common)
+
+    @Benchmark
+    fun linearRare(): Int = linear(rare)
+
+    @Benchmark
+    fun trigramCommon(): Int = trigrams.search(common).size
+
+    @Benchmark
+    fun trigramRare(): Int = trigrams.search(rare).size
+
+    @Benchmark
+    fun fuzzyTitle(): Int = titles.search(typo, 20).size
+}
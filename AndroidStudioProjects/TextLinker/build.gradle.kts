@@ -3,6 +3,8 @@ plugins {
     // Version catalog aliases
     alias(libs.plugins.android.application) apply false
     alias(libs.plugins.kotlin.android) apply false
+    alias(libs.plugins.kotlin.jvm) apply false
+    alias(libs.plugins.jmh) apply false
 
     // Navigation Safe Args (not in version catalog)
     id("androidx.navigation.safeargs") version "2.7.7" apply false
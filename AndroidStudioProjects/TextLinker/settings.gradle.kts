@@ -26,4 +26,5 @@ dependencyResolutionManagement {
 }
 
 rootProject.name = "TextLinker"
-include(":app")
\ No newline at end of file
+include(":app")
+include(":benchmark")
\ No newline at end of file